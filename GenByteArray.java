@@ -1,19 +1,57 @@
 import static java.lang.Math.ceil;
 import static java.lang.Math.log;
 import static java.lang.Math.max;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.Comparator.comparing;
 import static java.util.Comparator.comparingInt;
 import static java.util.stream.Collectors.toList;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.function.Function;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.lang.model.SourceVersion;
 
@@ -35,128 +73,3243 @@ import javax.lang.model.SourceVersion;
  *         byte $=79,A=59,B=42,C=61,D=83,E=106,F=120,G=123,H=125,I=62,J=119,K=49;
  * 238 more output lines elided....
  * </pre>
+ *
+ * <p>For large files pass {@code --stream}.  The file is then memory
+ * mapped and the source is written out as it is generated, so memory
+ * use stays the same however large the file is:
+ * <pre>
+ * $ java GenByteArray.java --stream big.jar &gt; Payload.txt
+ * </pre>
+ *
+ * <p>With {@code --stream}, a codec deflates the file into a
+ * temporary file, which is then read the same way.  The {@code lz}
+ * and {@code auto} codecs need the whole file in memory and are
+ * refused.
+ *
+ * <p>A method can't hold more than 64KB of bytecode, which an array
+ * initializer reaches at around 10KB of data.  Pass {@code --chunk}
+ * (or {@code --chunk=<bytes>} to choose the budget, 32KB by default)
+ * to spread the array over several holder classes.  The output is
+ * then a body for {@code replacement()} that joins the chunks with
+ * {@code System.arraycopy}, followed by the holder classes.  Pass
+ * {@code --chunk-methods} for chunk methods in the enclosing class
+ * instead, and {@code --holder=<name>} to name the classes or
+ * methods.
+ *
+ * <p>An array initializer is the largest and slowest way to put bytes
+ * into a class.  {@code --encoding=latin1} writes them as String
+ * literals of one character per byte instead, and {@code
+ * --encoding=base64} as Base64 literals; either is decoded in bulk
+ * when {@code replacement()} is called:
+ * <pre>
+ * $ java GenByteArray.java --encoding=latin1 orig/Replacement1.class
+ *         String[] chunks = {
+ *             "\312\376\272\276\0\0\0=\0{\n\0\2\0\3\7\0\4\f\0\5\0\6\1\0\20java/" +
+ *             "lang/Object\1\0\6&lt;init&gt;\1\0\3()V\b\0\b\1\0\0012\b\0\n\1\0\0016\b" +
+ * 58 more output lines elided....
+ * </pre>
+ *
+ * <p>{@code --encoding=sidecar} keeps the bytes out of the source
+ * altogether.  They go to a file, {@code --sidecar=<file>} or the
+ * input file name with {@code .payload} appended, and the generated
+ * {@code Sidecar} class memory maps it.
+ *
+ * <p>{@code --codec=deflate} compresses the bytes before they are
+ * encoded, and adds a {@code Codec} class whose {@code decode} turns
+ * what {@code replacement()} returns back into them.  The payload
+ * starts with the decoded length, so they are inflated straight into
+ * an array of the right size.  {@code --codec=dictionary} deflates
+ * with a preset dictionary of class file strings, {@code
+ * --codec=stored} only adds the header, {@code --codec=lz} writes
+ * LZ4-style back references with a decoder that needs nothing from
+ * {@code java.util.zip}, and {@code --codec=auto} picks whichever is
+ * quickest to initialise and decode, by a cost model fitted by {@code
+ * bench/InitBench}.  Pass {@code
+ * --members} (or {@code --members=<bytes>}, 1MB by default, which
+ * implies {@code --codec=deflate} if no codec is given) to deflate
+ * large payloads in independent members, which are deflated and
+ * inflated in parallel.
+ *
+ * <p>Given a directory or a jar, every class file in it is read, in
+ * parallel, into one bundle.  The output is then a body that returns
+ * a {@code java.util.Map<String, byte[]>} of the class files by name,
+ * ready for the {@code redefine} methods of {@code HotSwap} in {@code
+ * finl}, and the class files share one payload and one variable
+ * table:
+ * <pre>
+ * $ java GenByteArray.java --encoding=latin1 --codec=deflate classes/
+ * </pre>
+ *
+ * <p>{@code --classfile} splits a class file along its structure.
+ * The text of its constant pool goes into String literals, which
+ * cost no bytecode, and the rest is written as an array in the
+ * chosen codec.  A generated {@code ClassFile} class puts the two
+ * back together byte for byte.  That shrinks an array payload by a
+ * third or more, but Latin-1 or Base64 literals of the whole file are
+ * smaller still, so it takes only the array encoding.
+ *
+ * <p>Pass {@code --cache} (or {@code --cache=<dir>}) to keep the
+ * generated source in a cache directory, by default
+ * {@code selfmod-<user>/cache} in the temporary directory, which only
+ * this user can enter, keyed by a digest of this generator, its
+ * options, the tolerance among them, and the input.  An unchanged
+ * input is then copied from the cache, and a changed one is written
+ * with the variable table of its previous generation if that costs at
+ * most {@code --tolerance=<percent>}, 1% by default, more than the
+ * new optimum.
  */
 /*
- * The code isn't optimal.  Some things I know we can do better:
+ * Variable names are chosen by a solver that minimises the size of
+ * the generated source, see optimal(int[]).  It takes into account
+ * what the first version of this program did not:
  *
  * <ul>
- * <li> Take positive and negative numbers into consideration
- * together.  If we used {@code byte a=100;} to represent 100 (just
- * {@code a}), then -100 would be {@code -a}.  Depending on the
- * frequency, {@code byte a = -100} might be better too</li>
- * <li> Include the cost of other additional Strings such as {@code
- * byte[]}, {@code byte}, {@code return} and so on.</li>
+ * <li> Positive and negative numbers are considered together.  If we
+ * use {@code final byte a=100;} to represent 100 (just {@code a}),
+ * then -100 is {@code -a}.  Depending on the frequency, {@code byte
+ * a=-100} might be better too, and the solver tries both.</li>
+ * <li> The cost of declarations ({@code byte}, {@code =} and the
+ * literal) and of line breaks is included.</li>
  * </ul>
+ *
+ * <p>Pass {@code --greedy} for the original assignment, {@code
+ * --alphabet=...} to choose the characters names are made of, and
+ * {@code --report} to print the characters saved over the greedy
+ * assignment to stderr.
  */
 public class GenByteArray {
+    private static final long MAX_REGION = 1L << 30;
+    private static final int LINE_LIMIT = 80;
+
+    /**
+     * The most elements in a chunk, so that every index fits {@code
+     * sipush}.
+     */
+    private static final int DEFAULT_CHUNK_BUDGET = 32 * 1024;
+
+    /**
+     * The most bytes of modified UTF-8 in a String constant.  The class
+     * file allows 65535, but javac also rejects constants of 65535
+     * chars, which all-ASCII chunks reach.
+     */
+    private static final int MAX_CONSTANT = 65534;
+
+    /**
+     * The printable ASCII characters as strings, so that literals can
+     * be written without a String per character.
+     */
+    private static final String[] ASCII = IntStream.range(0, 128)
+            .mapToObj(c -> String.valueOf((char) c))
+            .toArray(String[]::new);
+
+    /**
+     * {@code SELF}, the start of a sidecar file.
+     */
+    private static final int SIDECAR_MAGIC = 0x53454c46;
+    private static final int SIDECAR_HEADER = 16;
+
+    /**
+     * The codec byte and the decoded length that start a payload
+     * written with a {@link Codec}.
+     */
+    private static final int CODEC_HEADER = 5;
+
+    /**
+     * The time to load and initialise a byte of a {@code Codec}
+     * class and run the part of its {@code decode} that does not
+     * depend on the length of the payload, in nanoseconds, as fitted
+     * by {@code bench/InitBench}.
+     */
+    private static final double DECODER_BYTE_NANOS = 48;
+
+    /**
+     * The codec numbers of the generated {@code Codec}.
+     */
+    private static final byte STORED = 0;
+    private static final byte DEFLATE = 1;
+    private static final byte DICTIONARY = 2;
+    private static final byte MEMBERS = 3;
+    private static final byte LZ = 4;
+
+    /**
+     * The shortest back reference, the farthest one can reach and the
+     * most earlier positions compared for each, as in LZ4.
+     */
+    private static final int LZ_MIN_MATCH = 4;
+    private static final int LZ_WINDOW = 65535;
+    private static final int LZ_CHAIN = 256;
+
+    /**
+     * The default and the least decoded size of a member, below which
+     * starting a task costs more than it saves.
+     */
+    private static final int DEFAULT_MEMBER = 1 << 20;
+    private static final int MIN_MEMBER = 1 << 12;
+
+    /**
+     * How much larger, as a fraction, the source may get by keeping
+     * the variable table of the previous generation.
+     */
+    private static final double DEFAULT_TOLERANCE = 0.01;
+
+    /**
+     * A preset dictionary for deflating class files: the constant
+     * pool strings that most often occur in the classes of {@code
+     * java.base}, weighted by their length, the most frequent last
+     * where they are the cheapest to refer to.
+     */
+    private static final String CLASS_FILE_DICTIONARY = ""
+            + "(Ljava/lang/String;Ljava/lang/Throwable;)V(Ljava/lang/invoke"
+            + "/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/Me"
+            + "thodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/Meth"
+            + "odHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/Cal"
+            + "lSite;(Ljava/lang/String;)Ljava/lang/String;java/lang/invoke"
+            + "/MethodHandles$Lookup(Ljava/lang/Object;)Ljava/lang/StringBu"
+            + "ilder;(I)Ljava/lang/StringBuilder;(Ljava/lang/Object;Ljava/l"
+            + "ang/Object;)Ljava/lang/Object;()Ljava/util/Iterator;(Ljava/l"
+            + "ang/String;)Zjava/lang/IllegalArgumentException(Ljava/lang/O"
+            + "bject;)VEnclosingMethodjava/lang/Class(Ljava/lang/Object;)Lj"
+            + "ava/lang/Object;(Ljava/lang/String;)Ljava/lang/StringBuilder"
+            + ";Ljava/lang/Object;java/lang/StringBuilderConstantValuejava/"
+            + "io/IOException(Ljava/lang/Object;)Zjava/lang/StringtoString<"
+            + "clinit>Exceptions()Ljava/lang/Object;LocalVariableTypeTable("
+            + "Ljava/lang/String;)V()Ljava/lang/String;Ljava/lang/String;Si"
+            + "gnatureNestHostStackMapTablejava/lang/ObjectInnerClasses()V<"
+            + "init>thisLocalVariableTableLineNumberTableCodeSourceFile";
+
+    private static final int MAX_CHUNK = Short.MAX_VALUE + 1;
+    /**
+     * {@code iload} of a variable, which has at most 256 slots.
+     */
+    private static final int ILOAD_SIZE = 2;
+    /**
+     * {@code bipush} and {@code istore} of a variable.
+     */
+    private static final int DECLARATION_SIZE = 4;
+    /**
+     * {@code sipush}, {@code newarray} and {@code areturn}.
+     */
+    private static final int ARRAY_SIZE = 6;
+
+    /**
+     * The source of the class that reads sidecar files, which goes
+     * into the program along with {@code replacement()}.
+     */
+    private static final String[] SIDECAR_READER = {
+        "/**",
+        " * Reads a payload from a sidecar file written by {@code GenByteArray",
+        " * --encoding=sidecar}: a 16 byte header of the magic number {@code",
+        " * SELF}, the payload length as a long and the CRC32 of the payload,",
+        " * followed by the payload itself.",
+        " */",
+        "final class Sidecar {",
+        "    static final int MAGIC = 0x53454c46;",
+        "    static final int HEADER = 16;",
+        "",
+        "    /**",
+        "     * Maps the payload of the sidecar file at {@code path}.  Only the",
+        "     * header is read, unless {@code verify} asks for the checksum to",
+        "     * be checked.",
+        "     */",
+        "    static java.nio.ByteBuffer map(java.nio.file.Path path, boolean verify)",
+        "            throws java.io.IOException {",
+        "        try (var channel = java.nio.channels.FileChannel.open(path)) {",
+        "            var file = channel.map(",
+        "                    java.nio.channels.FileChannel.MapMode.READ_ONLY,",
+        "                    0,",
+        "                    channel.size());",
+        "            if (file.remaining() < HEADER",
+        "                    || file.getInt(0) != MAGIC",
+        "                    || file.getLong(4) != file.remaining() - HEADER) {",
+        "                throw new java.io.IOException(\"not a sidecar file: \" + path);",
+        "            }",
+        "            var payload = file.position(HEADER).slice();",
+        "            if (verify) {",
+        "                var crc = new java.util.zip.CRC32();",
+        "                crc.update(payload.duplicate());",
+        "                if ((int) crc.getValue() != file.getInt(12)) {",
+        "                    throw new java.io.IOException(\"bad checksum: \" + path);",
+        "                }",
+        "            }",
+        "",
+        "            return payload;",
+        "        }",
+        "    }",
+        "}",
+    };
+
+    /**
+     * The source of the class that decodes payloads written with a
+     * {@link Codec}.  The {@code PRESET} line is replaced by the
+     * dictionary if the payload needs it.
+     */
+    private static final String[] CODEC_DECODER = {
+        "/**",
+        " * Decodes a payload written by {@code GenByteArray --codec=...}: a",
+        " * byte naming the codec and the length of the decoded bytes as a",
+        " * big-endian int, followed by the bytes either stored or deflated",
+        " * without a zlib header, with or without a preset dictionary.",
+        " *",
+        " * <p>A payload of {@code MEMBERS} is deflated in pieces of the same",
+        " * size, which are inflated in parallel.  After the header come the",
+        " * codec of the members, their decoded size, their number and the",
+        " * length of each, then the members themselves.",
+        " */",
+        "final class Codec {",
+        "    static final int STORED = 0;",
+        "    static final int DEFLATE = 1;",
+        "    static final int DICTIONARY = 2;",
+        "    static final int MEMBERS = 3;",
+        "    static final int HEADER = 5;",
+        "",
+        "    PRESET",
+        "",
+        "    static byte[] decode(byte[] payload) {",
+        "        return decode(java.nio.ByteBuffer.wrap(payload));",
+        "    }",
+        "",
+        "    /**",
+        "     * Decodes {@code payload} into an array of exactly the decoded",
+        "     * length, without any intermediate buffers.",
+        "     */",
+        "    static byte[] decode(java.nio.ByteBuffer payload) {",
+        "        int start = payload.position();",
+        "        int codec = payload.get(start);",
+        "        var bytes = new byte[payload.getInt(start + 1)];",
+        "        var input = payload.duplicate().position(start + HEADER);",
+        "        if (codec == STORED) {",
+        "            input.get(bytes);",
+        "            return bytes;",
+        "        }",
+        "        if (codec != MEMBERS) {",
+        "            inflate(input, codec, bytes, 0, bytes.length);",
+        "            return bytes;",
+        "        }",
+        "",
+        "        int inner = input.get();",
+        "        int size = input.getInt();",
+        "        var ends = new int[input.getInt() + 1];",
+        "        ends[0] = input.position() + (ends.length - 1) * 4;",
+        "        for (int m = 1; m < ends.length; ++m) {",
+        "            ends[m] = ends[m - 1] + input.getInt();",
+        "        }",
+        "        java.util.stream.IntStream.range(0, ends.length - 1).parallel().forEach(m -> {",
+        "            var member = input.duplicate().position(ends[m]).limit(ends[m + 1]);",
+        "            int offset = m * size;",
+        "            inflate(member, inner, bytes, offset, Math.min(size, bytes.length - offset));",
+        "        });",
+        "",
+        "        return bytes;",
+        "    }",
+        "",
+        "    /**",
+        "     * Inflates {@code input} into {@code length} bytes of {@code bytes}",
+        "     * from {@code offset} on.",
+        "     */",
+        "    private static void inflate(",
+        "            java.nio.ByteBuffer input,",
+        "            int codec,",
+        "            byte[] bytes,",
+        "            int offset,",
+        "            int length) {",
+        "        if (codec != DEFLATE && (codec != DICTIONARY || PRESET == null)) {",
+        "            throw new IllegalArgumentException(\"unknown codec: \" + codec);",
+        "        }",
+        "",
+        "        var inflater = new java.util.zip.Inflater(true);",
+        "        try {",
+        "            inflater.setInput(input);",
+        "            if (codec == DICTIONARY) {",
+        "                inflater.setDictionary(PRESET.getBytes(",
+        "                        java.nio.charset.StandardCharsets.ISO_8859_1));",
+        "            }",
+        "            for (int n = 0; n < length; ) {",
+        "                int inflated = inflater.inflate(bytes, offset + n, length - n);",
+        "                if (inflated == 0",
+        "                        && (inflater.finished() || inflater.needsInput())) {",
+        "                    throw new IllegalArgumentException(\"truncated payload\");",
+        "                }",
+        "                n += inflated;",
+        "            }",
+        "        } catch (java.util.zip.DataFormatException e) {",
+        "            throw new IllegalArgumentException(e);",
+        "        } finally {",
+        "            inflater.end();",
+        "        }",
+        "    }",
+        "}",
+    };
+
+    /**
+     * The methods of the {@code ClassFile} class of {@link
+     * #classFile(byte[])}, which follow its {@code text()}.
+     */
+    private static final String[] CLASS_FILE_DECODER = {
+        "    /**",
+        "     * The size of each kind of constant pool entry, but a",
+        "     * {@code CONSTANT_Utf8}, with its tag, indexed by the tag.",
+        "     */",
+        "    private static final byte[] SIZES = {",
+        "        0, 0, 0, 5, 5, 9, 9, 3, 3, 5, 5, 5, 5, 0, 0, 4, 3, 5, 5, 3, 3,",
+        "    };",
+        "",
+        "    /**",
+        "     * Puts the class file back together from {@code structure}: its",
+        "     * length and the length of the ASCII text, then the class file",
+        "     * without the bytes of its {@code CONSTANT_Utf8} entries, which",
+        "     * come from {@code text()}.  An entry of ASCII keeps its tag and",
+        "     * length and is copied in bulk from the text, which starts with",
+        "     * them.  Any other has the tag 0 and the number of chars of its",
+        "     * text, which is encoded back into modified UTF-8.",
+        "     */",
+        "    static byte[] decode(byte[] structure) {",
+        "        var text = text();",
+        "        var ascii = text.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);",
+        "        var out = new byte[int32(structure, 0)];",
+        "        // the magic number, the versions and the constant pool count",
+        "        System.arraycopy(structure, 8, out, 0, 10);",
+        "        int count = (out[8] & 0xff) << 8 | out[9] & 0xff;",
+        "        int i = 18;",
+        "        int o = 10;",
+        "        int t = 0;",
+        "        int u = int32(structure, 4);",
+        "        for (int n = 1; n < count; ++n) {",
+        "            int tag = structure[i];",
+        "            if (tag == 1) {",
+        "                int length = (structure[i + 1] & 0xff) << 8 | structure[i + 2] & 0xff;",
+        "                System.arraycopy(structure, i, out, o, 3);",
+        "                System.arraycopy(ascii, t, out, o + 3, length);",
+        "                i += 3;",
+        "                o += 3 + length;",
+        "                t += length;",
+        "                continue;",
+        "            }",
+        "            if (tag != 0) {",
+        "                System.arraycopy(structure, i, out, o, SIZES[tag]);",
+        "                i += SIZES[tag];",
+        "                o += SIZES[tag];",
+        "                if (tag == 5 || tag == 6) {",
+        "                    ++n; // a long or a double takes two entries",
+        "                }",
+        "                continue;",
+        "            }",
+        "",
+        "            int end = u + ((structure[i + 1] & 0xff) << 8 | structure[i + 2] & 0xff);",
+        "            i += 3;",
+        "            out[o] = 1;",
+        "            int start = o += 3;",
+        "            for (; u < end; ++u) {",
+        "                char c = text.charAt(u);",
+        "                if (c != 0 && c < 0x80) {",
+        "                    out[o++] = (byte) c;",
+        "                } else if (c < 0x800) {",
+        "                    out[o++] = (byte) (0xc0 | c >> 6);",
+        "                    out[o++] = (byte) (0x80 | c & 0x3f);",
+        "                } else {",
+        "                    out[o++] = (byte) (0xe0 | c >> 12);",
+        "                    out[o++] = (byte) (0x80 | c >> 6 & 0x3f);",
+        "                    out[o++] = (byte) (0x80 | c & 0x3f);",
+        "                }",
+        "            }",
+        "            out[start - 2] = (byte) (o - start >> 8);",
+        "            out[start - 1] = (byte) (o - start);",
+        "        }",
+        "        System.arraycopy(structure, i, out, o, structure.length - i);",
+        "",
+        "        return out;",
+        "    }",
+        "",
+        "    private static int int32(byte[] bytes, int i) {",
+        "        return (bytes[i] & 0xff) << 24 | (bytes[i + 1] & 0xff) << 16",
+        "                | (bytes[i + 2] & 0xff) << 8 | bytes[i + 3] & 0xff;",
+        "    }",
+    };
+
+    /**
+     * The source of the class that decodes payloads written with
+     * {@link Codec#LZ}, in place of {@link #CODEC_DECODER}.
+     */
+    private static final String[] LZ_DECODER = {
+        "/**",
+        " * Decodes a payload written by {@code GenByteArray --codec=lz}: a",
+        " * byte naming the codec and the length of the decoded bytes as a",
+        " * big-endian int, followed by sequences in the block format of LZ4.",
+        " * A sequence is a token whose high four bits count the literals and",
+        " * low four bits the length of the back reference less four, 15",
+        " * meaning more in the bytes that follow, then the literals, then the",
+        " * distance back as a little-endian short.  The last sequence has no",
+        " * back reference.",
+        " */",
+        "final class Codec {",
+        "    static final int LZ = 4;",
+        "    static final int HEADER = 5;",
+        "",
+        "    static byte[] decode(java.nio.ByteBuffer payload) {",
+        "        if (payload.hasArray()) {",
+        "            return decode(payload.array(), payload.arrayOffset() + payload.position());",
+        "        }",
+        "        var bytes = new byte[payload.remaining()];",
+        "        payload.duplicate().get(bytes);",
+        "        return decode(bytes, 0);",
+        "    }",
+        "",
+        "    static byte[] decode(byte[] payload) {",
+        "        return decode(payload, 0);",
+        "    }",
+        "",
+        "    /**",
+        "     * Decodes the payload at {@code i} into an array of exactly the",
+        "     * decoded length, which is the only allocation.",
+        "     */",
+        "    static byte[] decode(byte[] in, int i) {",
+        "        if (in[i] != LZ) {",
+        "            throw new IllegalArgumentException(\"unknown codec: \" + in[i]);",
+        "        }",
+        "        var out = new byte[(in[i + 1] & 0xff) << 24 | (in[i + 2] & 0xff) << 16",
+        "                | (in[i + 3] & 0xff) << 8 | in[i + 4] & 0xff];",
+        "        i += HEADER;",
+        "        for (int o = 0; o < out.length; ) {",
+        "            int token = in[i++] & 0xff;",
+        "            int literals = token >>> 4;",
+        "            if (literals == 15) {",
+        "                for (int b = 255; b == 255; literals += b) {",
+        "                    b = in[i++] & 0xff;",
+        "                }",
+        "            }",
+        "            System.arraycopy(in, i, out, o, literals);",
+        "            i += literals;",
+        "            o += literals;",
+        "            if (o == out.length) {",
+        "                break;",
+        "            }",
+        "",
+        "            int from = o - (in[i] & 0xff | (in[i + 1] & 0xff) << 8);",
+        "            i += 2;",
+        "            int length = token & 15;",
+        "            if (length == 15) {",
+        "                for (int b = 255; b == 255; length += b) {",
+        "                    b = in[i++] & 0xff;",
+        "                }",
+        "            }",
+        "            length += 4;",
+        "            if (o - from >= length) {",
+        "                System.arraycopy(out, from, out, o, length);",
+        "                o += length;",
+        "            } else {",
+        "                // overlaps what it copies, a run",
+        "                for (int end = o + length; o < end; ) {",
+        "                    out[o++] = out[from++];",
+        "                }",
+        "            }",
+        "        }",
+        "",
+        "        return out;",
+        "    }",
+        "}",
+    };
+
+    /**
+     * How values are given variable names.
+     */
+    public enum Solver {
+        /**
+         * Names the values in order of the space their literals
+         * take up, as long as naming a value saves space.
+         */
+        GREEDY,
+        /**
+         * Finds the assignment of names that minimises the size of
+         * the generated source.  See {@link GenByteArray#optimal}.
+         */
+        OPTIMAL
+    }
+
+    /**
+     * Where the chunks of a chunked array go.
+     */
+    public enum ChunkStyle {
+        /**
+         * A top level class per chunk.  The enclosing class keeps its
+         * methods, which {@code redefineClasses} requires of the
+         * {@code finl} programs, and every chunk has a constant pool
+         * of its own.
+         */
+        CLASSES,
+        /**
+         * A method per chunk in the enclosing class.
+         */
+        METHODS
+    }
+
+    /**
+     * How the bytes are written into the source.
+     */
+    public enum Encoding {
+        /**
+         * An array initializer, {@code new byte[] {...}}.
+         */
+        ARRAY(2_000_000, 140),
+        /**
+         * String literals with one ISO-8859-1 character per byte,
+         * turned back into bytes by {@code String.getBytes}.  Most
+         * class file bytes are printable ASCII, which costs one byte
+         * in the class file.
+         */
+        LATIN1(0, 20),
+        /**
+         * Base64 String literals decoded by {@code java.util.Base64}.
+         * Four characters for three bytes, but never escaped.
+         */
+        BASE64(50_000, 12),
+        /**
+         * Not in the source at all but in a sidecar file, which is
+         * memory mapped when the payload is needed.
+         */
+        SIDECAR(200_000, 0.2);
+
+        /**
+         * The time to load, initialise and return a payload, in
+         * nanoseconds, whatever its length, as fitted by {@code
+         * bench/InitBench}.
+         */
+        final double initNanos;
+        /**
+         * The time to load, initialise and return a byte of payload,
+         * in nanoseconds, as fitted by {@code bench/InitBench}.  A
+         * sidecar file is mapped whole, so only its checksum and the
+         * copy out of it take time by the byte.
+         */
+        final double byteNanos;
+
+        Encoding(double initNanos, double byteNanos) {
+            this.initNanos = initNanos;
+            this.byteNanos = byteNanos;
+        }
+    }
+
+    /**
+     * How the bytes are compressed before they are encoded.  Every
+     * codec but {@link #NONE} starts the payload with a byte naming
+     * the codec and the decoded length, and adds a {@code Codec}
+     * class that decodes it in one go.
+     */
+    public enum Codec {
+        /**
+         * The bytes as they are, without a header.
+         */
+        NONE(0, 0),
+        /**
+         * The bytes as they are.
+         */
+        STORED(0.2, 3417),
+        /**
+         * Deflated without a zlib header or checksum.
+         */
+        DEFLATE(8.4, 3417),
+        /**
+         * Deflated with a preset dictionary of class file strings,
+         * which the decoder then has to carry.
+         */
+        DICTIONARY(8.3, 4381),
+        /**
+         * Literals and back references in the block format of LZ4.
+         * Less compact than deflate, but its {@code Codec} is a
+         * single loop over the output array that needs neither {@code
+         * java.util.zip} nor any other allocation.  Zero padding and
+         * runs are back references to the previous byte.
+         */
+        LZ(19.5, 1880),
+        /**
+         * Whichever of the others takes the least time to decode
+         * plus the time to initialise the encoded payload, by the
+         * cost model of {@code bench/InitBench}.
+         */
+        AUTO(0, 0);
+
+        /**
+         * The time to decode a byte, in nanoseconds, as fitted by
+         * {@code bench/InitBench}.
+         */
+        final double decodeNanos;
+        /**
+         * The size of the class file of the {@code Codec} class that
+         * decodes it, as {@code bench/InitBench} compiles it.
+         */
+        final int decoderBytes;
+
+        Codec(double decodeNanos, int decoderBytes) {
+            this.decodeNanos = decodeNanos;
+            this.decoderBytes = decoderBytes;
+        }
+    }
+
+    private final Solver solver;
+    private final String alphabet;
+
+    private Encoding encoding = Encoding.ARRAY;
+    private Codec codec = Codec.NONE;
+    private int memberSize;
+    private Path sidecar;
+
+    private int chunkBudget;
+    private ChunkStyle chunkStyle = ChunkStyle.CLASSES;
+    private String holder = "Payload";
+
+    /**
+     * The table of the previous generation from the same file, which
+     * is kept if its cost is within {@code tolerance} of the new one.
+     */
+    private VarTable previous;
+    private double tolerance;
+    /**
+     * The table the last array was written with.
+     */
+    private VarTable table;
+    /**
+     * Whether {@code main} writes the input with {@link
+     * #classFile(byte[])}.
+     */
+    private boolean splitClassFile;
+
+    public GenByteArray() {
+        this(Solver.OPTIMAL, ByteVarGenerator.COUNTERS);
+    }
+
+    /**
+     * @param solver how values are given names
+     * @param alphabet the characters variable names are made of.
+     * Shorter names are built from the characters earlier in the
+     * alphabet.
+     */
+    public GenByteArray(Solver solver, String alphabet) {
+        if (alphabet.chars().noneMatch(Character::isJavaIdentifierStart)) {
+            throw new IllegalArgumentException(
+                    "alphabet has no identifier characters: " + alphabet);
+        }
+        this.solver = solver;
+        this.alphabet = alphabet;
+    }
+
+    /**
+     * Splits the array into chunks whose code is at most {@code
+     * budget} bytes long, so that no method exceeds the 64KB limit of
+     * the JVM.
+     *
+     * @param budget the most bytecode per chunk, {@code 0} for a
+     * single array initializer
+     * @param style where the chunks go
+     * @param holder the name of the chunk classes or methods, to
+     * which the chunk number is appended
+     */
+    public GenByteArray chunked(int budget, ChunkStyle style, String holder) {
+        if (budget != 0 && (budget < 64 || budget > 65535)) {
+            throw new IllegalArgumentException("bad bytecode budget: " + budget);
+        }
+        this.chunkBudget = budget;
+        this.chunkStyle = style;
+        this.holder = holder;
+
+        return this;
+    }
+
+    /**
+     * Writes the bytes in {@code encoding}.  Variable names and
+     * chunks only apply to {@link Encoding#ARRAY}.
+     */
+    public GenByteArray encoded(Encoding encoding) {
+        this.encoding = encoding;
+
+        return this;
+    }
+
+    /**
+     * Compresses the bytes with {@code codec} before they are
+     * encoded.
+     */
+    public GenByteArray compressed(Codec codec) {
+        this.codec = codec;
+
+        return this;
+    }
+
+    /**
+     * Deflates the bytes in independent members of {@code size}
+     * bytes each, which the generated {@code Codec} inflates in
+     * parallel.
+     *
+     * @param size the decoded size of a member, {@code 0} for a
+     * single deflate stream
+     */
+    public GenByteArray members(int size) {
+        if (size != 0 && size < MIN_MEMBER) {
+            throw new IllegalArgumentException("bad member size: " + size);
+        }
+        this.memberSize = size;
+
+        return this;
+    }
+
+    /**
+     * Sets the file that {@link Encoding#SIDECAR} writes the bytes
+     * to.  The generated code opens the file by the same path.
+     */
+    public GenByteArray sidecar(Path sidecar) {
+        this.sidecar = sidecar;
+
+        return this;
+    }
+
     public static void main(String[] args) throws IOException {
-        if (args.length < 1) {
+        var stream = false;
+        var report = false;
+        var solver = Solver.OPTIMAL;
+        var alphabet = ByteVarGenerator.COUNTERS;
+        var encoding = Encoding.ARRAY;
+        var codec = Codec.NONE;
+        var memberSize = 0;
+        var chunkBudget = 0;
+        var chunkStyle = ChunkStyle.CLASSES;
+        String holder = null;
+        String sidecar = null;
+        String cache = null;
+        var tolerance = DEFAULT_TOLERANCE;
+        var classFile = false;
+        String pathname = null;
+        for (String arg : args) {
+            if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--classfile")) {
+                classFile = true;
+            } else if (arg.equals("--greedy")) {
+                solver = Solver.GREEDY;
+            } else if (arg.equals("--report")) {
+                report = true;
+            } else if (arg.startsWith("--alphabet=")) {
+                alphabet = arg.substring("--alphabet=".length());
+            } else if (arg.startsWith("--encoding=")) {
+                encoding = Encoding.valueOf(arg
+                        .substring("--encoding=".length())
+                        .toUpperCase(Locale.ROOT));
+            } else if (arg.startsWith("--codec=")) {
+                codec = Codec.valueOf(arg
+                        .substring("--codec=".length())
+                        .toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--members")) {
+                memberSize = DEFAULT_MEMBER;
+            } else if (arg.startsWith("--members=")) {
+                memberSize = Integer.parseInt(arg.substring("--members=".length()));
+            } else if (arg.equals("--chunk")) {
+                chunkBudget = DEFAULT_CHUNK_BUDGET;
+            } else if (arg.startsWith("--chunk=")) {
+                chunkBudget = Integer.parseInt(arg.substring("--chunk=".length()));
+            } else if (arg.equals("--chunk-methods")) {
+                chunkStyle = ChunkStyle.METHODS;
+            } else if (arg.startsWith("--holder=")) {
+                holder = arg.substring("--holder=".length());
+            } else if (arg.startsWith("--sidecar=")) {
+                sidecar = arg.substring("--sidecar=".length());
+            } else if (arg.equals("--cache")) {
+                cache = "";
+            } else if (arg.startsWith("--cache=")) {
+                cache = arg.substring("--cache=".length());
+            } else if (arg.startsWith("--tolerance=")) {
+                tolerance = Double.parseDouble(
+                        arg.substring("--tolerance=".length())) / 100;
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown option " + arg);
+            } else {
+                pathname = arg;
+            }
+        }
+        if (pathname == null) {
             throw new IllegalArgumentException("no data provided");
         }
-        String pathname = args[0];
-        byte[] array = Files.readAllBytes(Paths.get(pathname));
-
-        System.out.println(new GenByteArray().freq(array));
+
+        if (holder == null) {
+            holder = chunkStyle == ChunkStyle.CLASSES ? "Payload" : "chunk";
+        }
+        if (sidecar == null) {
+            sidecar = pathname + ".payload";
+        }
+        if (memberSize != 0 && codec == Codec.NONE) {
+            codec = Codec.DEFLATE;
+        }
+        var gen = new GenByteArray(solver, alphabet)
+                .chunked(chunkBudget, chunkStyle, holder)
+                .encoded(encoding)
+                .compressed(codec)
+                .members(memberSize)
+                .sidecar(Paths.get(sidecar));
+        gen.tolerance = tolerance;
+        gen.splitClassFile = classFile;
+        var path = Paths.get(pathname);
+        Map<String, byte[]> classes = null;
+        if (Files.isDirectory(path) || pathname.endsWith(".jar")) {
+            if (stream || report || classFile) {
+                throw new IllegalArgumentException(
+                        "--stream, --report and --classfile take a single file");
+            }
+
+            classes = readClasses(path);
+        }
+        if (stream && (codec == Codec.LZ || codec == Codec.AUTO)) {
+            throw new IllegalArgumentException(
+                    "--stream takes --codec=stored, deflate or dictionary;"
+                    + " --codec=" + codec.name().toLowerCase(Locale.ROOT)
+                    + " needs the whole file in memory");
+        }
+        if (classFile && (stream || report)) {
+            throw new IllegalArgumentException(
+                    "--classfile reads the whole class file");
+        }
+        if (classFile && encoding != Encoding.ARRAY) {
+            throw new IllegalArgumentException(
+                    "--classfile only helps --encoding=array; --encoding="
+                    + encoding.name().toLowerCase(Locale.ROOT)
+                    + " of the whole file is smaller");
+        }
+        if (cache != null) {
+            new Cache(cache.isEmpty() ? Cache.privateDirectory() : Paths.get(cache),
+                    List.of(GenByteArray.class),
+                    String.join(" ", Double.toString(tolerance),
+                    solver.name(), alphabet, encoding.name(), codec.name(),
+                    Integer.toString(memberSize), Integer.toString(chunkBudget),
+                    chunkStyle.name(), holder, sidecar, Boolean.toString(classFile)))
+                    .serve(path, classes, gen.encoding == Encoding.SIDECAR ? gen.sidecar : null,
+                            gen.cached(path, classes, stream));
+        } else {
+            var out = new BufferedWriter(
+                    new OutputStreamWriter(System.out, US_ASCII), 1 << 16);
+            gen.generate(path, classes, stream, out);
+            out.flush();
+        }
+
+        if (report) {
+            report(path, alphabet);
+        }
+    }
+
+    /**
+     * Writes the source for {@code path}, or for {@code classes} if
+     * it isn't {@code null}, followed by a line break.
+     */
+    private void generate(Path path, Map<String, byte[]> classes,
+            boolean stream, Writer out) throws IOException {
+        if (classes != null) {
+            out.write(bundle(classes));
+        } else if (splitClassFile) {
+            out.write(classFile(Files.readAllBytes(path)));
+        } else if (stream) {
+            stream(path, out);
+        } else {
+            out.write(freq(Files.readAllBytes(path)));
+        }
+        out.write(String.format("%n"));
+    }
+
+    /**
+     * Returns the generation the {@link Cache} runs if it has no
+     * source for {@code path} or {@code classes}, which starts from
+     * the variable table of the previous generation.
+     */
+    private Cache.Generation cached(Path path, Map<String, byte[]> classes,
+            boolean stream) {
+        return new Cache.Generation() {
+            @Override
+            public void generate(List<String> lines, Writer out) throws IOException {
+                previous = lines == null ? null : readTable(lines);
+                GenByteArray.this.generate(path, classes, stream, out);
+            }
+
+            @Override
+            public List<String> table() {
+                return table == null ? null : tableLines(table);
+            }
+        };
+    }
+
+    private static VarTable readTable(List<String> lines) {
+        var names = new String[256];
+        for (String line : lines.subList(1, lines.size())) {
+            int space = line.indexOf(' ');
+            names[Integer.parseInt(line.substring(0, space))] =
+                    line.substring(space + 1);
+        }
+
+        return new VarTable(names, lines.get(0).equals("final"), Double.NaN);
+    }
+
+    /**
+     * Returns {@code table} as a line saying whether its names are
+     * final, followed by the index and name of every named value.
+     */
+    private static List<String> tableLines(VarTable table) {
+        var lines = new ArrayList<String>();
+        lines.add(table.constant ? "final" : "plain");
+        for (int i = 0; i < table.names.length; ++i) {
+            if (table.names[i] != null) {
+                lines.add(i + " " + table.names[i]);
+            }
+        }
+
+        return lines;
+    }
+
+    /**
+     * Prints to stderr how much smaller the optimal assignment makes
+     * the source of {@code path} compared to the greedy one.
+     */
+    private static void report(Path path, String alphabet)
+            throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var regions = map(channel);
+
+            long greedy = new GenByteArray(Solver.GREEDY, alphabet)
+                    .measure(regions);
+            long optimal = new GenByteArray(Solver.OPTIMAL, alphabet)
+                    .measure(regions);
+
+            report(greedy, optimal);
+        }
+    }
+
+    /**
+     * Prints to stderr the sizes of the greedy and the optimal source,
+     * and that the optimal one is only a heuristic bound: the size of
+     * a source that can be generated, not a proven minimum of it.
+     */
+    static void report(long greedy, long optimal) {
+        System.err.printf(
+                "greedy: %d chars, optimal: %d chars, saved: %d chars (%.2f%%)%n",
+                greedy,
+                optimal,
+                greedy - optimal,
+                greedy == 0 ? 0d : 100d * (greedy - optimal) / greedy);
+        System.err.printf(
+                "optimal is a heuristic bound, not a proven minimum: line breaks"
+                + " are estimated per character and names longer than two"
+                + " characters are given greedily%n");
+    }
+
+    public String freq(byte[] bytes) {
+        var out = new StringWriter();
+        try {
+            write(List.of(ByteBuffer.wrap(bytes)), out);
+        } catch (IOException e) {
+            // a StringWriter never throws
+            throw new UncheckedIOException(e);
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Generates a body for a method returning a {@code
+     * java.util.Map<String, byte[]>} of {@code classes}, in the order
+     * of their names, which is what the {@code redefine} methods of
+     * {@code HotSwap} in {@code finl} take.
+     *
+     * <p>The class files share one payload, in the encoding and codec
+     * of this generator, behind an index of their names and lengths.
+     * Class files have much the same distribution of bytes, so a
+     * single variable table for all of them is smaller than one for
+     * each, and counting and solving happen once.  The payload is
+     * returned by {@code Bundle.bytes()}, which comes after the
+     * {@code ---8<---} line with any other classes.  With {@link
+     * Encoding#ARRAY} the payload is always chunked, within the
+     * default budget of {@code --chunk} if none was given.
+     */
+    public String bundle(Map<String, byte[]> classes) {
+        var index = new ByteArrayOutputStream();
+        var data = new ArrayList<ByteBuffer>(classes.size() + 1);
+        data.add(null);
+        try (var out = new DataOutputStream(index)) {
+            out.writeInt(classes.size());
+            for (var e : new TreeMap<>(classes).entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                data.add(ByteBuffer.wrap(e.getValue()));
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream never throws
+            throw new UncheckedIOException(e);
+        }
+        data.set(0, ByteBuffer.wrap(index.toByteArray()));
+
+        // the array initializer of even a handful of class files is
+        // beyond the 64KB of code a method may have
+        int budget = chunkBudget;
+        if (encoding == Encoding.ARRAY && budget == 0) {
+            chunkBudget = DEFAULT_CHUNK_BUDGET;
+        }
+        var payload = new StringWriter();
+        try {
+            write(data, payload);
+        } catch (IOException e) {
+            // a StringWriter never throws
+            throw new UncheckedIOException(e);
+        } finally {
+            chunkBudget = budget;
+        }
+
+        var out = new StringBuilder();
+        out.append(String.format("        var in = new java.io.DataInputStream(%n"));
+        out.append(String.format("                new java.io.ByteArrayInputStream(%s));%n",
+                codec == Codec.NONE ? "Bundle.bytes()" : "Codec.decode(Bundle.bytes())"));
+        out.append(String.format("        var classes = new java.util.LinkedHashMap<String, byte[]>();%n"));
+        out.append(String.format("        try {%n"));
+        out.append(String.format("            var names = new String[in.readInt()];%n"));
+        out.append(String.format("            var lengths = new int[names.length];%n"));
+        out.append(String.format("            for (int i = 0; i < names.length; ++i) {%n"));
+        out.append(String.format("                names[i] = in.readUTF();%n"));
+        out.append(String.format("                lengths[i] = in.readInt();%n"));
+        out.append(String.format("            }%n"));
+        out.append(String.format("            for (int i = 0; i < names.length; ++i) {%n"));
+        out.append(String.format("                var bytes = new byte[lengths[i]];%n"));
+        out.append(String.format("                in.readFully(bytes);%n"));
+        out.append(String.format("                classes.put(names[i], bytes);%n"));
+        out.append(String.format("            }%n"));
+        out.append(String.format("        } catch (java.io.IOException e) {%n"));
+        out.append(String.format("            throw new java.io.UncheckedIOException(e);%n"));
+        out.append(String.format("        }%n"));
+        out.append(String.format("        return classes;"));
+
+        return enclose(out.toString(), "Bundle", "", payload.toString());
+    }
+
+    /**
+     * Generates a body for {@code replacement()} that returns the
+     * class file {@code bytes}, split along its structure: the text of
+     * its {@code CONSTANT_Utf8} entries, which is most of a class file,
+     * goes into String literals, which the compiler stores in the
+     * same modified UTF-8 and which cost no bytecode, and everything
+     * else is written as an array in the codec of this generator.
+     * {@code ClassFile.decode}, which comes after the {@code ---8<---}
+     * line, puts the two back together into an array of exactly the
+     * length of the class file.
+     *
+     * <p>Only {@link Encoding#ARRAY} pays for the split: the other
+     * encodings cost a byte or two of class file per byte of payload
+     * either way, and the whole file in them is smaller.
+     *
+     * @throws IllegalArgumentException if {@code bytes} is not a class
+     * file whose constants survive the round trip
+     * @throws IllegalStateException if the encoding is not {@link
+     * Encoding#ARRAY}
+     */
+    public String classFile(byte[] bytes) {
+        if (encoding != Encoding.ARRAY) {
+            throw new IllegalStateException(
+                    "the class file split only helps the array encoding");
+        }
+        var parts = ClassFileParts.of(bytes);
+        if (!Arrays.equals(parts.join(), bytes)) {
+            throw new IllegalArgumentException("class file does not round trip");
+        }
+
+        var text = new StringWriter();
+        try {
+            text.write(String.format("    static String text() {%n"));
+            text.write(String.format("        String[] chunks = {%n"));
+            var literals = new StringLiteralWriter(text);
+            for (int i = 0; i < parts.text.length(); ++i) {
+                char c = parts.text.charAt(i);
+                int next = i + 1 < parts.text.length() ? parts.text.charAt(i + 1) : -1;
+                int utf = c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+                literals.append(c <= 0xff
+                        ? latin1Escape(c, next)
+                        : String.format("\\u%04x", (int) c), utf);
+            }
+            literals.finish();
+            text.write(String.format("        };%n"));
+            text.write(String.format("        return String.join(\"\", chunks);%n"));
+            text.write(String.format("    }%n%n"));
+            for (String line : CLASS_FILE_DECODER) {
+                text.write(line);
+                text.write(String.format("%n"));
+            }
+            text.write(String.format("%n"));
+        } catch (IOException e) {
+            // a StringWriter never throws
+            throw new UncheckedIOException(e);
+        }
+
+        var payload = new StringWriter();
+        try {
+            write(List.of(ByteBuffer.wrap(parts.structure)), payload);
+        } catch (IOException e) {
+            // a StringWriter never throws
+            throw new UncheckedIOException(e);
+        }
+
+        return enclose(
+                String.format("        return ClassFile.decode(%s);",
+                        codec == Codec.NONE
+                                ? "ClassFile.bytes()"
+                                : "Codec.decode(ClassFile.bytes())"),
+                "ClassFile",
+                text.toString(),
+                payload.toString());
+    }
+
+    /**
+     * Returns {@code body} followed by a class {@code type} whose
+     * {@code bytes()} returns the payload {@code generated}.  The body
+     * of {@code generated} goes into {@code bytes()} and any methods
+     * meant for the enclosing class into {@code type}, after {@code
+     * members}, while its classes stay outside.
+     */
+    private static String enclose(
+            String body,
+            String type,
+            String members,
+            String generated) {
+        var payload = new StringBuilder();
+        var methods = new StringBuilder();
+        var rest = new StringBuilder();
+        var section = payload;
+        for (String line : generated.split("\\R", -1)) {
+            if (line.startsWith("// ---8<---")) {
+                section = line.contains("methods") ? methods : rest;
+                continue;
+            }
+            section.append(line).append(String.format("%n"));
+        }
+
+        var out = new StringBuilder(body);
+        out.append(String.format("%n%n%s%n%n",
+                "// ---8<--- paste the classes below after the enclosing class"));
+        out.append(String.format("final class %s {%n", type));
+        out.append(members);
+        out.append(String.format("    static byte[] bytes() {%n"));
+        out.append(payload.toString().stripTrailing());
+        out.append(String.format("%n    }%n"));
+        if (methods.length() > 0) {
+            out.append(methods.toString().stripTrailing());
+            out.append(String.format("%n"));
+        }
+        out.append(String.format("}%n"));
+        out.append(rest.toString().stripTrailing());
+
+        return out.toString().stripTrailing();
+    }
+
+    /**
+     * Reads the class files in the directory or jar at {@code path},
+     * in parallel, by binary name.
+     */
+    static Map<String, byte[]> readClasses(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                return files
+                        .filter(f -> f.toString().endsWith(".class"))
+                        .collect(toList())
+                        .parallelStream()
+                        .collect(Collectors.toConcurrentMap(
+                                f -> className(path.relativize(f).toString()
+                                        .replace(f.getFileSystem().getSeparator(), "/")),
+                                f -> readAll(() -> Files.newInputStream(f))));
+            }
+        }
+
+        try (var jar = new JarFile(path.toFile())) {
+            return jar.stream()
+                    .filter(e -> e.getName().endsWith(".class"))
+                    .filter(e -> !e.getName().startsWith("META-INF/"))
+                    .collect(toList())
+                    .parallelStream()
+                    .collect(Collectors.toConcurrentMap(
+                            e -> className(e.getName()),
+                            e -> readAll(() -> jar.getInputStream(e))));
+        }
+    }
+
+    private interface Opener {
+        InputStream open() throws IOException;
+    }
+
+    private static byte[] readAll(Opener opener) {
+        try (var in = opener.open()) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String className(String path) {
+        return path.substring(0, path.length() - ".class".length()).replace('/', '.');
+    }
+
+    /**
+     * Writes the same source as {@link #freq(byte[])} to {@code out}
+     * without holding the file or the source in memory.  The file is
+     * memory mapped and read twice: once to count the bytes and once
+     * to write them out.  A payload is compressed into a temporary
+     * file first, which is then read the same way.  The {@code LZ}
+     * and {@code AUTO} codecs need the whole file in memory and are
+     * refused.
+     */
+    public void stream(Path path, Writer out) throws IOException {
+        if (codec == Codec.LZ || codec == Codec.AUTO) {
+            throw new IllegalArgumentException(
+                    "the " + codec.name().toLowerCase(Locale.ROOT)
+                    + " codec does not stream");
+        }
+
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var regions = map(channel);
+            if (codec == Codec.NONE) {
+                writeEncoded(regions, out);
+                return;
+            }
+
+            var payload = Files.createTempFile("selfmod", ".payload");
+            try {
+                try (var compressed = FileChannel.open(payload,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    compress(regions, codec, memberSize, compressed);
+                    writeEncoded(map(compressed), out);
+                }
+                writeDecoder(codec, out);
+            } finally {
+                Files.deleteIfExists(payload);
+            }
+        }
+    }
+
+    private long measure(List<ByteBuffer> data) throws IOException {
+        var out = new CountingWriter();
+        write(data, out);
+
+        return out.count;
+    }
+
+    private void write(List<ByteBuffer> data, Writer out)
+            throws IOException {
+        if (codec == Codec.NONE) {
+            writeEncoded(data, out);
+            return;
+        }
+
+        var chosen = codec == Codec.AUTO ? choose(data) : codec;
+        writeEncoded(List.of(compress(data, chosen, memberSize)), out);
+        writeDecoder(chosen, out);
+    }
+
+    /**
+     * Writes the {@code Codec} class that decodes payloads in {@code
+     * chosen}, after the line to cut the source at.
+     */
+    private void writeDecoder(Codec chosen, Writer out) throws IOException {
+        out.write(String.format("%n%n%s%n%n",
+                "// ---8<--- paste the class below after the enclosing class"));
+        for (String line : chosen == Codec.LZ ? LZ_DECODER : CODEC_DECODER) {
+            if (line.trim().equals("PRESET")) {
+                writePreset(chosen == Codec.DICTIONARY, out);
+            } else {
+                out.write(line);
+                out.write(String.format("%n"));
+            }
+        }
+    }
+
+    private void writeEncoded(List<ByteBuffer> data, Writer out)
+            throws IOException {
+        if (encoding == Encoding.SIDECAR) {
+            writeSidecar(data, out);
+            return;
+        }
+        if (encoding != Encoding.ARRAY) {
+            writeStrings(data, out);
+            return;
+        }
+
+        int[] counter = histogram(data);
+        var table = solver == Solver.GREEDY
+                ? greedy(counter)
+                : optimal(counter);
+        // keeping the previous names keeps the declarations, and
+        // the diff to the previous source, small
+        if (previous != null
+                && cost(previous, counter) <= cost(table, counter) * (1 + tolerance)) {
+            table = previous;
+        }
+        this.table = table;
+        if (chunkBudget > 0) {
+            writeChunked(table, data, out);
+            return;
+        }
+
+        writeDeclarations(table, null, out);
+
+        // one token per byte value, so that the values themselves
+        // are never boxed or converted to strings
+        var tokens = table.tokens();
+
+        // generate the byte array itself
+        out.write(String.format("        return new byte[] {%n"));
+        var bytevalues = new LinePacker(
+                out,
+                "            ",
+                ',',
+                String.format(",%n"),
+                LINE_LIMIT);
+        for (ByteBuffer buffer : data) {
+            var values = buffer.duplicate();
+            while (values.hasRemaining()) {
+                bytevalues.append(tokens[values.get() & 0xff]);
+            }
+        }
+        bytevalues.finish();
+        out.write(String.format("        };"));
+    }
+
+    /**
+     * Declares the variables of {@code table}, or only those in
+     * {@code used} if it isn't {@code null}.
+     */
+    private void writeDeclarations(VarTable table, BitSet used, Writer out)
+            throws IOException {
+        var byteVarname = table.names;
+
+        var byteVarnames = IntStream.range(0, byteVarname.length)
+                .filter(i -> byteVarname[i] != null)
+                .filter(i -> used == null || used.get(i))
+                .boxed()
+                .sorted((i1, i2) ->
+                        (byteVarname[i1].length() == byteVarname[i2].length()
+                         ? byteVarname[i1].compareTo(byteVarname[i2])
+                         : byteVarname[i1].length() - byteVarname[i2].length()))
+                .collect(toList());
+        var declarations = new LinePacker(
+                out,
+                table.constant ? "        final byte " : "        byte ",
+                ',',
+                String.format(";%n"),
+                LINE_LIMIT);
+        for (int i : byteVarnames) {
+            declarations.append(String.format(
+                    "%s=%d", byteVarname[i], (byte) i));
+        }
+        declarations.finish();
+    }
+
+    /**
+     * Writes the array as a number of chunks whose bytecode stays
+     * within {@code chunkBudget} bytes, followed by the chunks
+     * themselves.
+     *
+     * <p>An element of an array initializer compiles to {@code dup},
+     * the index, the value and {@code bastore}: between four and seven
+     * bytes.  A chunk ends before the element that would take it over
+     * budget, counting the initialisation of the variables it uses and
+     * the array allocation.  Every estimate is rounded up, so javac
+     * never produces more than the budget.
+     */
+    private void writeChunked(VarTable table, List<ByteBuffer> data, Writer out)
+            throws IOException {
+        var tokens = table.tokens();
+
+        // the variable each value is written with, -1 for a literal
+        int[] variable = new int[256];
+        // bytecode to push each value
+        int[] push = new int[256];
+        for (int i = 0; i < tokens.length; ++i) {
+            int negation = -(byte) i & 0xff;
+            variable[i] = table.names[i] != null ? i
+                    : tokens[i].startsWith("-") && table.names[negation] != null
+                    ? negation
+                    : -1;
+            // final variables are folded into the code as constants
+            push[i] = variable[i] >= 0 && !table.constant
+                    ? ILOAD_SIZE
+                    : pushSize((byte) i);
+        }
+
+        // first pass: where the chunks end and which variables each uses
+        var lengths = new ArrayList<Integer>();
+        var used = new ArrayList<BitSet>();
+        var cursor = new Cursor(data);
+        var names = new BitSet(256);
+        int length = 0;
+        int size = ARRAY_SIZE;
+        long total = 0;
+        while (cursor.hasNext()) {
+            int i = cursor.next() & 0xff;
+            int cost = 1 + indexSize(length) + push[i] + 1;
+            if (variable[i] >= 0 && !names.get(variable[i])) {
+                cost += DECLARATION_SIZE;
+            }
+            if (length > 0
+                    && (size + cost > chunkBudget || length == MAX_CHUNK)) {
+                lengths.add(length);
+                used.add(names);
+                names = new BitSet(256);
+                length = 0;
+                size = ARRAY_SIZE;
+                cost = 1 + indexSize(length) + push[i] + 1
+                        + (variable[i] >= 0 ? DECLARATION_SIZE : 0);
+            }
+            if (size + cost > chunkBudget) {
+                throw new IllegalArgumentException(
+                        "bytecode budget too small: " + chunkBudget);
+            }
+            if (variable[i] >= 0) {
+                names.set(variable[i]);
+            }
+            size += cost;
+            ++length;
+            ++total;
+        }
+        if (length > 0) {
+            lengths.add(length);
+            used.add(names);
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too large for an array: " + total);
+        }
+
+        writeAssembler(lengths.size(), total, out);
+
+        // second pass: the chunks
+        out.write(String.format("%n%s%n", chunkStyle == ChunkStyle.CLASSES
+                ? "// ---8<--- paste the classes below after the enclosing class"
+                : "// ---8<--- paste the methods below into the enclosing class"));
+        cursor = new Cursor(data);
+        for (int c = 0; c < lengths.size(); ++c) {
+            out.write(String.format("%n"));
+            if (chunkStyle == ChunkStyle.CLASSES) {
+                out.write(String.format("final class %s%d {%n", holder, c));
+                out.write(String.format("    static byte[] chunk() {%n"));
+            } else {
+                out.write(String.format(
+                        "    private static byte[] %s%d() {%n", holder, c));
+            }
+            writeDeclarations(table, used.get(c), out);
+            out.write(String.format("        return new byte[] {%n"));
+            var bytevalues = new LinePacker(
+                    out,
+                    "            ",
+                    ',',
+                    String.format(",%n"),
+                    LINE_LIMIT);
+            for (int e = lengths.get(c); e > 0; --e) {
+                bytevalues.append(tokens[cursor.next() & 0xff]);
+            }
+            bytevalues.finish();
+            out.write(String.format("        };%n"));
+            out.write(String.format("    }%n"));
+            if (chunkStyle == ChunkStyle.CLASSES) {
+                out.write(String.format("}%n"));
+            }
+        }
+    }
+
+    /**
+     * Writes the body of {@code replacement()} which concatenates the
+     * chunks.
+     */
+    private void writeAssembler(int chunks, long total, Writer out)
+            throws IOException {
+        // a call costs at most dup, sipush, invokestatic and aastore
+        boolean direct = ARRAY_SIZE + chunks * 8L + 64 <= chunkBudget;
+        if (!direct && chunkStyle == ChunkStyle.METHODS) {
+            throw new IllegalArgumentException(String.format(
+                    "%d chunk methods are too many to call from one method", chunks));
+        }
+
+        out.write(String.format("        byte[] bytes = new byte[%d];%n", total));
+        if (direct) {
+            out.write(String.format("        byte[][] chunks = {%n"));
+            var calls = new LinePacker(
+                    out,
+                    "            ",
+                    ',',
+                    String.format(",%n"),
+                    LINE_LIMIT);
+            for (int c = 0; c < chunks; ++c) {
+                calls.append(chunkStyle == ChunkStyle.CLASSES
+                        ? String.format("%s%d.chunk()", holder, c)
+                        : String.format("%s%d()", holder, c));
+            }
+            calls.finish();
+            out.write(String.format("        };%n"));
+            out.write(String.format("        int offset = 0;%n"));
+            out.write(String.format("        for (byte[] chunk : chunks) {%n"));
+            out.write(String.format("            System.arraycopy(chunk, 0, bytes, offset, chunk.length);%n"));
+            out.write(String.format("            offset += chunk.length;%n"));
+            out.write(String.format("        }%n"));
+        } else {
+            // too many holders to name each one in the code
+            out.write(String.format("        try {%n"));
+            out.write(String.format("            for (int i = 0, offset = 0; i < %d; ++i) {%n", chunks));
+            out.write(String.format("                var chunk = (byte[]) Class.forName(\"%s\" + i)%n", holder));
+            out.write(String.format("                        .getDeclaredMethod(\"chunk\")%n"));
+            out.write(String.format("                        .invoke(null);%n"));
+            out.write(String.format("                System.arraycopy(chunk, 0, bytes, offset, chunk.length);%n"));
+            out.write(String.format("                offset += chunk.length;%n"));
+            out.write(String.format("            }%n"));
+            out.write(String.format("        } catch (ReflectiveOperationException e) {%n"));
+            out.write(String.format("            throw new IllegalStateException(e);%n"));
+            out.write(String.format("        }%n"));
+        }
+        out.write(String.format("        return bytes;"));
+    }
+
+    /**
+     * Writes the bytes as String literals which are decoded in bulk.
+     *
+     * <p>A String constant can't take more than 65535 bytes of
+     * modified UTF-8 in the class file, so the literals are split into
+     * chunks that each stay within that limit.  Constant expressions
+     * are folded by javac, so the chunks are separate elements of an
+     * array rather than concatenated.
+     */
+    private void writeStrings(List<ByteBuffer> data, Writer out)
+            throws IOException {
+        long total = data.stream().mapToLong(ByteBuffer::remaining).sum();
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too large for an array: " + total);
+        }
+
+        out.write(String.format("        String[] chunks = {%n"));
+        var literals = new StringLiteralWriter(out);
+        if (encoding == Encoding.LATIN1) {
+            var cursor = new Cursor(data);
+            // the next byte decides whether an octal escape may be short
+            int next = cursor.hasNext() ? cursor.next() & 0xff : -1;
+            while (next >= 0) {
+                int b = next;
+                next = cursor.hasNext() ? cursor.next() & 0xff : -1;
+                // modified UTF-8 takes two bytes for NUL and above 0x7f
+                int utf = b == 0 || b > 0x7f ? 2 : 1;
+                literals.append(latin1Escape(b, next), utf);
+            }
+        } else {
+            var encoder = Base64.getEncoder();
+            // whole groups of three bytes, so that the chunks can be
+            // decoded one at a time
+            var group = new byte[MAX_CONSTANT / 4 * 3];
+            var cursor = new Cursor(data);
+            while (cursor.hasNext()) {
+                int length = 0;
+                while (length < group.length && cursor.hasNext()) {
+                    group[length++] = cursor.next();
+                }
+                String encoded = encoder.encodeToString(
+                        Arrays.copyOf(group, length));
+                for (int i = 0; i < encoded.length(); ++i) {
+                    literals.append(ASCII[encoded.charAt(i)], 1);
+                }
+                literals.endChunk();
+            }
+        }
+
+        String decode = encoding == Encoding.LATIN1
+                ? "chunk.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1)"
+                : "java.util.Base64.getDecoder().decode(chunk)";
+        literals.finish();
+        out.write(String.format("        };%n"));
+        out.write(String.format("        byte[] bytes = new byte[%d];%n", total));
+        out.write(String.format("        int offset = 0;%n"));
+        out.write(String.format("        for (String chunk : chunks) {%n"));
+        out.write(String.format("            byte[] decoded = %s;%n", decode));
+        out.write(String.format("            System.arraycopy(decoded, 0, bytes, offset, decoded.length);%n"));
+        out.write(String.format("            offset += decoded.length;%n"));
+        out.write(String.format("        }%n"));
+        out.write(String.format("        return bytes;"));
+    }
+
+    /**
+     * Writes the bytes to the sidecar file instead of the source,
+     * and a {@code replacement()} which maps the file and copies the
+     * payload out of it.  The program can use {@code Sidecar.map} to
+     * work on the mapped payload directly.
+     *
+     * <p>The file starts with a header of the magic number, the length
+     * and the CRC32 of the payload, see {@link #SIDECAR_READER}.
+     */
+    private void writeSidecar(List<ByteBuffer> data, Writer out)
+            throws IOException {
+        if (sidecar == null) {
+            throw new IllegalStateException("no sidecar file given");
+        }
+
+        long length = 0;
+        var crc = new CRC32();
+        try (var channel = FileChannel.open(
+                sidecar,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            channel.position(SIDECAR_HEADER);
+            for (ByteBuffer buffer : data) {
+                crc.update(buffer.duplicate());
+                length += buffer.remaining();
+                for (var payload = buffer.duplicate(); payload.hasRemaining(); ) {
+                    channel.write(payload);
+                }
+            }
+
+            var header = ByteBuffer.allocate(SIDECAR_HEADER)
+                    .putInt(SIDECAR_MAGIC)
+                    .putLong(length)
+                    .putInt((int) crc.getValue())
+                    .flip();
+            for (long position = 0; header.hasRemaining(); ) {
+                position += channel.write(header, position);
+            }
+        }
+
+        String path = sidecar.toString()
+                .replace("\\", "\\\\")
+                .replace("\"", "\\\"");
+        out.write(String.format("        try {%n"));
+        out.write(String.format("            var payload = Sidecar.map(%n"));
+        out.write(String.format("                    java.nio.file.Paths.get(\"%s\"), true);%n", path));
+        out.write(String.format("            var bytes = new byte[payload.remaining()];%n"));
+        out.write(String.format("            payload.get(bytes);%n"));
+        out.write(String.format("            return bytes;%n"));
+        out.write(String.format("        } catch (java.io.IOException e) {%n"));
+        out.write(String.format("            throw new java.io.UncheckedIOException(e);%n"));
+        out.write(String.format("        }"));
+        out.write(String.format("%n%n%s%n%n",
+                "// ---8<--- paste the class below after the enclosing class"));
+        for (String line : SIDECAR_READER) {
+            out.write(line);
+            out.write(String.format("%n"));
+        }
+    }
+
+    /**
+     * Writes the {@code PRESET} field of the decoder: the dictionary,
+     * or {@code null} if the payload does without.
+     */
+    private static void writePreset(boolean needed, Writer out)
+            throws IOException {
+        if (!needed) {
+            out.write(String.format("    private static final String PRESET = null;%n"));
+            return;
+        }
+
+        out.write(String.format("    private static final String PRESET = \"\"%n"));
+        var literal = new StringBuilder();
+        for (int i = 0; i < CLASS_FILE_DICTIONARY.length(); ++i) {
+            int next = i + 1 < CLASS_FILE_DICTIONARY.length()
+                    ? CLASS_FILE_DICTIONARY.charAt(i + 1)
+                    : -1;
+            literal.append(latin1Escape(CLASS_FILE_DICTIONARY.charAt(i), next));
+            if (literal.length() >= 60 || next == -1) {
+                out.write(String.format("            + \"%s\"%s%n",
+                        literal, next == -1 ? ";" : ""));
+                literal.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Returns the codec that {@link Codec#AUTO} stands for: the one
+     * that takes the least time to initialise its payload in the
+     * chosen encoding, decode it and load its decoder, by the
+     * constants {@code bench/InitBench} fitted.  Only the length of
+     * each payload is measured, so the same input always gets the
+     * same codec, and ties go to the codec listed first.
+     */
+    private Codec choose(List<ByteBuffer> data) {
+        long decoded = data.stream().mapToLong(ByteBuffer::remaining).sum();
+        Codec best = null;
+        double bestNanos = Double.POSITIVE_INFINITY;
+        for (var candidate : List.of(
+                Codec.STORED, Codec.DEFLATE, Codec.DICTIONARY, Codec.LZ)) {
+            var payload = compress(data, candidate, memberSize);
+            double nanos = encoding.initNanos
+                    + encoding.byteNanos * payload.remaining()
+                    + candidate.decodeNanos * decoded
+                    + DECODER_BYTE_NANOS * candidate.decoderBytes;
+            if (nanos < bestNanos) {
+                best = candidate;
+                bestNanos = nanos;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns the payload of {@code data} in {@code codec}: the codec
+     * byte, the length of {@code data} and the stored or deflated
+     * bytes.  With a {@code memberSize} the bytes are deflated in
+     * parallel into independent members, which are indexed by their
+     * lengths.
+     */
+    private static ByteBuffer compress(
+            List<ByteBuffer> data,
+            Codec codec,
+            int memberSize) {
+        long total = data.stream().mapToLong(ByteBuffer::remaining).sum();
+        if (total > Integer.MAX_VALUE - 8 - CODEC_HEADER) {
+            throw new IllegalArgumentException(
+                    "too many bytes to compress: " + total);
+        }
+
+        if (codec == Codec.STORED) {
+            var payload = ByteBuffer.allocate(CODEC_HEADER + (int) total)
+                    .put(STORED)
+                    .putInt((int) total);
+            data.forEach(buffer -> payload.put(buffer.duplicate()));
+
+            return payload.flip();
+        }
+        if (codec == Codec.LZ) {
+            var bytes = new byte[(int) total];
+            int offset = 0;
+            for (ByteBuffer buffer : data) {
+                int length = buffer.remaining();
+                buffer.duplicate().get(bytes, offset, length);
+                offset += length;
+            }
+            var out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+            out.write(LZ);
+            out.write(bytes.length >>> 24);
+            out.write(bytes.length >>> 16);
+            out.write(bytes.length >>> 8);
+            out.write(bytes.length);
+            lz(bytes, out);
+
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+
+        byte inner = codec == Codec.DEFLATE ? DEFLATE : DICTIONARY;
+        if (memberSize == 0 || total <= memberSize) {
+            var deflated = deflate(data, inner == DICTIONARY);
+
+            return ByteBuffer.allocate(CODEC_HEADER + deflated.remaining())
+                    .put(inner)
+                    .putInt((int) total)
+                    .put(deflated)
+                    .flip();
+        }
+
+        int count = (int) ((total + memberSize - 1) / memberSize);
+        var members = IntStream.range(0, count)
+                .parallel()
+                .mapToObj(m -> deflate(
+                        slice(data, (long) m * memberSize, memberSize),
+                        inner == DICTIONARY))
+                .collect(toList());
+
+        long length = CODEC_HEADER + 9L + 4L * count
+                + members.stream().mapToLong(ByteBuffer::remaining).sum();
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(
+                    "too many bytes to compress: " + total);
+        }
+        var payload = ByteBuffer.allocate((int) length)
+                .put(MEMBERS)
+                .putInt((int) total)
+                .put(inner)
+                .putInt(memberSize)
+                .putInt(count);
+        members.forEach(member -> payload.putInt(member.remaining()));
+        members.forEach(payload::put);
+
+        return payload.flip();
+    }
+
+    /**
+     * Writes the payload {@link #compress(List, Codec, int)} returns
+     * to {@code out} instead, holding no more than a member per core
+     * of it in memory at a time, and none at all without members.
+     * Takes every codec but {@code LZ} and {@code AUTO}.
+     */
+    private static void compress(
+            List<ByteBuffer> data,
+            Codec codec,
+            int memberSize,
+            FileChannel out) throws IOException {
+        long total = data.stream().mapToLong(ByteBuffer::remaining).sum();
+        if (total > Integer.MAX_VALUE - 8 - CODEC_HEADER) {
+            throw new IllegalArgumentException(
+                    "too many bytes to compress: " + total);
+        }
+
+        if (codec == Codec.STORED) {
+            writeFully(out, ByteBuffer.allocate(CODEC_HEADER)
+                    .put(STORED)
+                    .putInt((int) total)
+                    .flip());
+            for (ByteBuffer buffer : data) {
+                writeFully(out, buffer.duplicate());
+            }
+            return;
+        }
+
+        byte inner = codec == Codec.DEFLATE ? DEFLATE : DICTIONARY;
+        if (memberSize == 0 || total <= memberSize) {
+            writeFully(out, ByteBuffer.allocate(CODEC_HEADER)
+                    .put(inner)
+                    .putInt((int) total)
+                    .flip());
+            deflate(data, inner == DICTIONARY, out);
+            return;
+        }
+
+        // the header, then the member lengths once they are known
+        int count = (int) ((total + memberSize - 1) / memberSize);
+        writeFully(out, ByteBuffer.allocate(CODEC_HEADER + 9)
+                .put(MEMBERS)
+                .putInt((int) total)
+                .put(inner)
+                .putInt(memberSize)
+                .putInt(count)
+                .flip());
+        long lengthsAt = out.position();
+        var lengths = ByteBuffer.allocate(4 * count);
+        out.position(lengthsAt + lengths.capacity());
+
+        int batch = Runtime.getRuntime().availableProcessors();
+        for (int first = 0; first < count; first += batch) {
+            int from = first;
+            var members = IntStream.range(from, Math.min(count, from + batch))
+                    .parallel()
+                    .mapToObj(m -> deflate(
+                            slice(data, (long) m * memberSize, memberSize),
+                            inner == DICTIONARY))
+                    .collect(toList());
+            for (ByteBuffer member : members) {
+                lengths.putInt(member.remaining());
+                writeFully(out, member);
+            }
+        }
+        if (out.position() > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(
+                    "too many bytes to compress: " + total);
+        }
+        out.write(lengths.flip(), lengthsAt);
+    }
+
+    /**
+     * Deflates {@code data} as {@link #deflate(List, boolean)} does,
+     * straight into {@code out}.
+     */
+    private static void deflate(List<ByteBuffer> data, boolean preset, FileChannel out)
+            throws IOException {
+        var deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            if (preset) {
+                deflater.setDictionary(
+                        CLASS_FILE_DICTIONARY.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            var deflated = new byte[1 << 16];
+            for (ByteBuffer buffer : data) {
+                deflater.setInput(buffer.duplicate());
+                while (!deflater.needsInput()) {
+                    int length = deflater.deflate(deflated);
+                    writeFully(out, ByteBuffer.wrap(deflated, 0, length));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                int length = deflater.deflate(deflated);
+                writeFully(out, ByteBuffer.wrap(deflated, 0, length));
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Returns the buffers of at most {@code length} bytes of {@code
+     * data} from {@code offset} on.
+     */
+    private static List<ByteBuffer> slice(
+            List<ByteBuffer> data,
+            long offset,
+            int length) {
+        var slices = new ArrayList<ByteBuffer>();
+        for (ByteBuffer buffer : data) {
+            if (length == 0) {
+                break;
+            }
+            if (offset >= buffer.remaining()) {
+                offset -= buffer.remaining();
+                continue;
+            }
+            int from = buffer.position() + (int) offset;
+            int to = from + Math.min(length, buffer.remaining() - (int) offset);
+            slices.add(buffer.duplicate().position(from).limit(to));
+            length -= to - from;
+            offset = 0;
+        }
+
+        return slices;
+    }
+
+    /**
+     * Deflates {@code data} without a zlib header, with the class file
+     * dictionary if {@code preset}.
+     */
+    private static ByteBuffer deflate(List<ByteBuffer> data, boolean preset) {
+        long total = data.stream().mapToLong(ByteBuffer::remaining).sum();
+        var deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            if (preset) {
+                deflater.setDictionary(
+                        CLASS_FILE_DICTIONARY.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            var deflated = new byte[(int) Math.min(Integer.MAX_VALUE - 8, total / 2 + 64)];
+            int length = 0;
+            for (ByteBuffer buffer : data) {
+                deflater.setInput(buffer.duplicate());
+                while (!deflater.needsInput()) {
+                    if (length == deflated.length) {
+                        deflated = Arrays.copyOf(deflated, grow(deflated.length));
+                    }
+                    length += deflater.deflate(deflated, length, deflated.length - length);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == deflated.length) {
+                    deflated = Arrays.copyOf(deflated, grow(deflated.length));
+                }
+                length += deflater.deflate(deflated, length, deflated.length - length);
+            }
+
+            return ByteBuffer.wrap(deflated, 0, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes {@code data} as the sequences of literals and back
+     * references that the {@code Codec} of {@link #LZ_DECODER}
+     * decodes.  Earlier positions are found through hash chains of
+     * their first four bytes, and a match is put off by a byte if the
+     * next position has a longer one.
+     */
+    private static void lz(byte[] data, ByteArrayOutputStream out) {
+        var matcher = new LzMatcher(data);
+        int anchor = 0;
+        int i = 0;
+        while (i + LZ_MIN_MATCH <= data.length) {
+            long match = matcher.find(i);
+            if ((int) match < LZ_MIN_MATCH) {
+                ++i;
+                continue;
+            }
+            while (i + 1 + LZ_MIN_MATCH <= data.length) {
+                long next = matcher.find(i + 1);
+                if ((int) next <= (int) match) {
+                    break;
+                }
+                ++i;
+                match = next;
+            }
+
+            int length = (int) match;
+            int distance = (int) (match >>> 32);
+            writeSequence(data, anchor, i - anchor, length, out);
+            out.write(distance);
+            out.write(distance >>> 8);
+            if (length - LZ_MIN_MATCH >= 15) {
+                writeLength(length - LZ_MIN_MATCH - 15, out);
+            }
+            i += length;
+            anchor = i;
+        }
+        if (anchor < data.length) {
+            writeSequence(data, anchor, data.length - anchor, 0, out);
+        }
+    }
+
+    /**
+     * Writes the token, the literal count and the literals of a
+     * sequence, whose back reference is {@code length} bytes long or
+     * absent if {@code 0}.
+     */
+    private static void writeSequence(
+            byte[] data,
+            int from,
+            int literals,
+            int length,
+            ByteArrayOutputStream out) {
+        int matched = length == 0 ? 0 : length - LZ_MIN_MATCH;
+        out.write(Math.min(literals, 15) << 4 | Math.min(matched, 15));
+        if (literals >= 15) {
+            writeLength(literals - 15, out);
+        }
+        out.write(data, from, literals);
+    }
+
+    private static void writeLength(int length, ByteArrayOutputStream out) {
+        for (; length >= 255; length -= 255) {
+            out.write(255);
+        }
+        out.write(length);
+    }
+
+    /**
+     * Finds the longest earlier match of each position, in order, in
+     * the last {@code LZ_WINDOW} bytes.
+     */
+    private static final class LzMatcher {
+        private static final int HASH_BITS = 16;
+
+        private final byte[] data;
+        /**
+         * The last position of each hash, and the position before
+         * each one, indexed modulo the window, with the same hash.
+         */
+        private final int[] head = new int[1 << HASH_BITS];
+        private final int[] previous = new int[LZ_WINDOW + 1];
+        /**
+         * The next position to go into the chains.
+         */
+        private int next;
+
+        LzMatcher(byte[] data) {
+            this.data = data;
+            Arrays.fill(head, -1);
+        }
+
+        /**
+         * Returns the distance of the longest match of {@code i} in
+         * the high half and its length in the low half, then adds
+         * {@code i} to the chains.
+         */
+        long find(int i) {
+            while (next < i) {
+                insert(next++);
+            }
+
+            int bestLength = 0;
+            int bestDistance = 0;
+            int limit = data.length - i;
+            int chain = LZ_CHAIN;
+            for (int candidate = head[hash(i)];
+                    candidate >= 0 && i - candidate <= LZ_WINDOW && chain-- > 0;
+                    candidate = previous[candidate & LZ_WINDOW]) {
+                if (data[candidate + bestLength] != data[i + bestLength]) {
+                    continue;
+                }
+                int length = 0;
+                while (length < limit && data[candidate + length] == data[i + length]) {
+                    ++length;
+                }
+                if (length > bestLength) {
+                    bestLength = length;
+                    bestDistance = i - candidate;
+                    if (length == limit) {
+                        break;
+                    }
+                }
+            }
+            insert(next++);
+
+            return (long) bestDistance << 32 | bestLength;
+        }
+
+        private void insert(int i) {
+            if (i + LZ_MIN_MATCH > data.length) {
+                return;
+            }
+            int h = hash(i);
+            previous[i & LZ_WINDOW] = head[h];
+            head[h] = i;
+        }
+
+        private int hash(int i) {
+            int word = (data[i] & 0xff) << 24 | (data[i + 1] & 0xff) << 16
+                    | (data[i + 2] & 0xff) << 8 | data[i + 3] & 0xff;
+
+            return word * 0x9E3779B1 >>> 32 - HASH_BITS;
+        }
+    }
+
+    private static int grow(int length) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, length * 2L);
+    }
+
+    /**
+     * Decodes {@code payload} as the generated {@code Codec} does, for
+     * {@code InflateBenchmark} to time it.
+     */
+    private static byte[] decompress(ByteBuffer payload) {
+        var bytes = new byte[payload.getInt(1)];
+        var input = payload.duplicate().position(CODEC_HEADER);
+        byte codec = payload.get(0);
+        if (codec == STORED) {
+            input.get(bytes);
+            return bytes;
+        }
+        if (codec == LZ) {
+            unlz(input, bytes);
+            return bytes;
+        }
+        if (codec != MEMBERS) {
+            inflate(input, codec, bytes, 0, bytes.length);
+            return bytes;
+        }
+
+        byte inner = input.get();
+        int size = input.getInt();
+        var ends = new int[input.getInt() + 1];
+        ends[0] = input.position() + (ends.length - 1) * 4;
+        for (int m = 1; m < ends.length; ++m) {
+            ends[m] = ends[m - 1] + input.getInt();
+        }
+        IntStream.range(0, ends.length - 1).parallel().forEach(m -> {
+            var member = input.duplicate().position(ends[m]).limit(ends[m + 1]);
+            int offset = m * size;
+            inflate(member, inner, bytes, offset, Math.min(size, bytes.length - offset));
+        });
+
+        return bytes;
+    }
+
+    /**
+     * Decodes the sequences of {@code input} into {@code bytes}, as
+     * the {@code Codec} of {@link #LZ_DECODER} does.
+     */
+    private static void unlz(ByteBuffer input, byte[] bytes) {
+        var in = new byte[input.remaining()];
+        input.duplicate().get(in);
+        int i = 0;
+        for (int o = 0; o < bytes.length; ) {
+            int token = in[i++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                for (int b = 255; b == 255; literals += b) {
+                    b = in[i++] & 0xff;
+                }
+            }
+            System.arraycopy(in, i, bytes, o, literals);
+            i += literals;
+            o += literals;
+            if (o == bytes.length) {
+                break;
+            }
+
+            int from = o - (in[i] & 0xff | (in[i + 1] & 0xff) << 8);
+            i += 2;
+            int length = token & 15;
+            if (length == 15) {
+                for (int b = 255; b == 255; length += b) {
+                    b = in[i++] & 0xff;
+                }
+            }
+            length += LZ_MIN_MATCH;
+            if (o - from >= length) {
+                System.arraycopy(bytes, from, bytes, o, length);
+                o += length;
+            } else {
+                for (int end = o + length; o < end; ) {
+                    bytes[o++] = bytes[from++];
+                }
+            }
+        }
     }
 
-    public String freq(byte[] bytes) {
-        Map<String, Integer> counter = new HashMap<>(256);
+    private static void inflate(
+            ByteBuffer input,
+            byte codec,
+            byte[] bytes,
+            int offset,
+            int length) {
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            if (codec == DICTIONARY) {
+                inflater.setDictionary(
+                        CLASS_FILE_DICTIONARY.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            for (int n = 0; n < length; ) {
+                int inflated = inflater.inflate(bytes, offset + n, length - n);
+                if (inflated == 0
+                        && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("truncated payload");
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
 
-        for (byte b : bytes) {
-            counter.merge(Byte.toString(b), 1, (i, j) -> i + j);
+    /**
+     * Returns the shortest escape of Latin-1 character {@code c} in a
+     * Java String literal.  Octal escapes take all three digits when
+     * the character that follows, {@code next}, is an octal digit.
+     */
+    private static String latin1Escape(int c, int next) {
+        switch (c) {
+        case '"':
+            return "\\\"";
+        case '\\':
+            return "\\\\";
+        case '\n':
+            return "\\n";
+        case '\r':
+            return "\\r";
+        case '\t':
+            return "\\t";
+        case '\b':
+            return "\\b";
+        case '\f':
+            return "\\f";
+        default:
+            if (c >= 0x20 && c < 0x7f) {
+                return ASCII[c];
+            }
+            return next >= '0' && next <= '7'
+                    ? String.format("\\%03o", c)
+                    : String.format("\\%o", c);
         }
+    }
+
+    /**
+     * Returns the size of the instruction that pushes array index
+     * {@code i}: {@code iconst_<i>}, {@code bipush} or {@code sipush}.
+     */
+    private static int indexSize(int i) {
+        return i <= 5 ? 1 : i <= Byte.MAX_VALUE ? 2 : 3;
+    }
 
-        var mostFreq = counter.entrySet().stream()
-                .sorted(comparingInt((Entry<String, Integer> e)
-                        -> e.getKey().length() * e.getValue())
+    /**
+     * Returns the size of the instruction that pushes the constant
+     * {@code b}: {@code iconst_<b>} or {@code bipush}.
+     */
+    private static int pushSize(byte b) {
+        return b >= -1 && b <= 5 ? 1 : 2;
+    }
+
+    private VarTable greedy(int[] counter) {
+        var mostFreq = IntStream.range(0, counter.length)
+                .filter(i -> counter[i] > 0)
+                .boxed()
+                .sorted(comparingInt((Integer i)
+                        -> literalLength((byte) i.intValue()) * counter[i])
                         .reversed())
                 .collect(toList());
 
-        var byteVarname = new HashMap<Byte, String>(256);
-        var varCounter = new ByteVarGenerator();
+        var byteVarname = new String[256];
+        var varCounter = new ByteVarGenerator(alphabet);
         String variable = null;
-        for (Entry<String, Integer> e : mostFreq) {
-            byte v = Byte.parseByte(e.getKey());
-            int freq = e.getValue().intValue();
+        for (int i : mostFreq) {
+            byte v = (byte) i;
+            int freq = counter[i];
 
-            int bytesOccupied = e.getKey().length() * freq;
+            int bytesOccupied = literalLength(v) * freq;
             variable = variable == null ? varCounter.nextVar() : variable;
             int bytesSaved = bytesOccupied - ((variable.length() * freq)
                     + variable.length() + 2);
 
             if (bytesSaved > 0) {
-                byteVarname.put(Byte.valueOf(v), variable);
+                byteVarname[i] = variable;
                 variable = null;
             }
         }
 
-        var buf = new StringBuilder();
-        var byteVarnames = byteVarname.entrySet().stream()
-                .sorted((e1, e2) ->
-                        (e1.getValue().length() == e2.getValue().length()
-                         ? e1.getValue().compareTo(e2.getValue())
-                         : e1.getValue().length() - e2.getValue().length()))
+        return new VarTable(byteVarname, false, Double.NaN);
+    }
+
+    /**
+     * Returns the assignment of names to byte values that minimises
+     * the size of the generated source.
+     *
+     * <p>The cost model counts every character that depends on the
+     * assignment: the name, {@code =}, the literal and separator of
+     * each declaration, and the token and comma of each array
+     * element.  Line breaks and indentation are spread over the
+     * characters of a line, so a declaration character costs {@code
+     * 80 / (80 - 15)} and an element character {@code 80 / (80 - 14)}.
+     *
+     * <p>A value {@code v} and its negation {@code -v} are decided
+     * together.  Either may be a literal or get a name of its own, and
+     * when only one of them has a name the other may be written as
+     * {@code -name}.  That only compiles if the names are declared
+     * {@code final}, which costs another six characters per
+     * declaration line, so the assignment is solved both with and
+     * without sharing signs and the cheaper one is kept.
+     *
+     * <p>Names come in two lengths: the short ones (the single
+     * characters of the alphabet) are scarce and the long ones (two
+     * characters) are, for 256 values and most alphabets, not.  Each
+     * pair of values thus has up to nine ways to be written and what
+     * they compete for is the short names.  A knapsack over the pairs
+     * with the number of short names used as its capacity gives the
+     * minimum of the cost model.  An alphabet too small to name every
+     * value in two characters makes the long names scarce as well,
+     * and they become a second capacity of the knapsack, whose result
+     * is then the minimum over the names of the two shortest lengths.
+     * Names of three characters or more go afterwards to the values
+     * it left as literals, the most frequent first, where they still
+     * pay for themselves.
+     *
+     * <p>The result is a heuristic bound, not a proven minimum of the
+     * source: the line breaks actually written depend on where tokens
+     * fall, not on the fraction of a character the model charges for
+     * them, and the names past two characters are given greedily.
+     * {@code --report} prints the size it comes to, which is the size
+     * of a source that can be generated and so bounds the minimum from
+     * above.
+     */
+    private VarTable optimal(int[] counter) {
+        var plain = solve(counter, false);
+        var shared = solve(counter, true);
+
+        return plain.cost <= shared.cost ? plain : shared;
+    }
+
+    private VarTable solve(int[] counter, boolean constant) {
+        // the pairs {v, -v} and the two values without a negation
+        var groups = new ArrayList<int[]>();
+        groups.add(new int[] { 0 });
+        groups.add(new int[] { 128 });
+        for (int v = 1; v < 128; ++v) {
+            groups.add(new int[] { v, -v & 0xff });
+        }
+
+        var names = names(
+                (int) Arrays.stream(counter).filter(c -> c > 0).count());
+        int shortLength = names.isEmpty() ? 1 : names.get(0).length();
+        int shortNames = (int) names.stream()
+                .filter(n -> n.length() == shortLength)
+                .count();
+        int longLength = names.stream()
+                .mapToInt(String::length)
+                .filter(l -> l != shortLength)
+                .findFirst()
+                .orElse(shortLength + 1);
+        int longNames = (int) names.stream()
+                .filter(n -> n.length() == longLength)
+                .count();
+        // the long names run out before every value is named
+        boolean longScarce = names.size() > shortNames + longNames;
+        int longCapacity = longScarce ? longNames : 0;
+
+        String prefix = constant ? "        final byte " : "        byte ";
+        double declChar = lineCost(prefix.length() + 2);
+        double elemChar = lineCost("            ".length() + 2);
+        int[] lengths = { 0, shortLength, longLength };
+
+        // cost[g][o]: cost of writing group g in way o, where way o
+        // gives member m the name kind (o / 3^m) % 3: 0 for a literal,
+        // 1 for a short name and 2 for a long one
+        double[][] cost = new double[groups.size()][];
+        for (int g = 0; g < groups.size(); ++g) {
+            int[] members = groups.get(g);
+            int ways = members.length == 1 ? 3 : 9;
+            cost[g] = new double[ways];
+            for (int o = 0; o < ways; ++o) {
+                int[] kinds = { o % 3, o / 3 % 3 };
+                double c = 0;
+                for (int m = 0; m < members.length; ++m) {
+                    int v = members[m];
+                    int literal = literalLength((byte) v);
+                    int token;
+                    if (kinds[m] != 0) {
+                        token = lengths[kinds[m]];
+                        c += declChar * (token + 1 + literal + 1);
+                    } else if (constant
+                            && members.length == 2
+                            && kinds[1 - m] != 0) {
+                        token = Math.min(literal, lengths[kinds[1 - m]] + 1);
+                    } else {
+                        token = literal;
+                    }
+                    c += elemChar * counter[v] * (token + 1);
+                }
+                cost[g][o] = c;
+            }
+        }
+
+        // best[g][u * (longCapacity + 1) + w]: least cost of groups
+        // g.. using at most u short names and, if they are scarce, at
+        // most w long ones
+        int groupCount = groups.size();
+        int width = longCapacity + 1;
+        int states = (shortNames + 1) * width;
+        double[][] best = new double[groupCount + 1][states];
+        int[][] way = new int[groupCount][states];
+        for (int g = groupCount - 1; g >= 0; --g) {
+            for (int u = 0; u <= shortNames; ++u) {
+                for (int w = 0; w <= longCapacity; ++w) {
+                    int state = u * width + w;
+                    best[g][state] = Double.POSITIVE_INFINITY;
+                    for (int o = 0; o < cost[g].length; ++o) {
+                        int used = (o % 3 == 1 ? 1 : 0) + (o / 3 % 3 == 1 ? 1 : 0);
+                        int usedLong = !longScarce ? 0
+                                : (o % 3 == 2 ? 1 : 0) + (o / 3 % 3 == 2 ? 1 : 0);
+                        if (used > u || usedLong > w) {
+                            continue;
+                        }
+                        double c = cost[g][o]
+                                + best[g + 1][(u - used) * width + w - usedLong];
+                        if (c < best[g][state]) {
+                            best[g][state] = c;
+                            way[g][state] = o;
+                        }
+                    }
+                }
+            }
+        }
+
+        var byteVarname = new String[256];
+        var shortNamesLeft = names.stream()
+                .filter(n -> n.length() == shortLength)
+                .iterator();
+        var longNamesLeft = names.stream()
+                .filter(n -> n.length() == longLength)
+                .iterator();
+        for (int g = 0, u = shortNames, w = longCapacity; g < groupCount; ++g) {
+            int o = way[g][u * width + w];
+            int[] members = groups.get(g);
+            int[] kinds = { o % 3, o / 3 % 3 };
+            for (int m = 0; m < members.length; ++m) {
+                if (kinds[m] == 1) {
+                    byteVarname[members[m]] = shortNamesLeft.next();
+                    --u;
+                } else if (kinds[m] == 2) {
+                    byteVarname[members[m]] = longNamesLeft.next();
+                    w -= longScarce ? 1 : 0;
+                }
+            }
+        }
+        if (!longScarce) {
+            return new VarTable(byteVarname, constant,
+                    best[0][shortNames * width + longCapacity]);
+        }
+
+        // the longer names, for the most frequent of the values
+        // written as literals that they pay for
+        var longerNames = names.stream()
+                .filter(n -> n.length() > longLength)
+                .iterator();
+        var literals = IntStream.range(0, 256)
+                .filter(v -> counter[v] > 0 && byteVarname[v] == null
+                        && byteVarname[-(byte) v & 0xff] == null)
+                .boxed()
+                .sorted(comparingInt((Integer v) -> counter[v]).reversed())
                 .collect(toList());
-        var declarations = append(
-                byteVarnames,
-                "        byte ",
-                e -> String.format("%s=%d", e.getValue(), e.getKey()),
-                ',',
-                String.format(";%n"),
-                80);
-        buf.append(declarations);
+        String next = longerNames.hasNext() ? longerNames.next() : null;
+        for (int v : literals) {
+            if (next == null) {
+                break;
+            }
+            int literal = literalLength((byte) v);
+            if (declChar * (next.length() + 1 + literal + 1)
+                    + elemChar * counter[v] * (next.length() + 1)
+                    < elemChar * counter[v] * (literal + 1)) {
+                byteVarname[v] = next;
+                next = longerNames.hasNext() ? longerNames.next() : null;
+            }
+        }
+        var table = new VarTable(byteVarname, constant, 0);
 
-        var bytevalues = append(
-                IntStream.range(0, bytes.length)
-                        .mapToObj(i -> Byte.valueOf(bytes[i]))
-                        .collect(toList()),
-                "            ",
-                b -> byteVarname.getOrDefault(
-                        b, b.toString()),
-                ',',
-                String.format(",%n"),
-                80);
+        return new VarTable(byteVarname, constant, cost(table, counter));
+    }
 
-        // generate the byte array itself
-        buf
-                .append(String.format("        return new byte[] {%n"))
-                .append(bytevalues)
-                .append(String.format("        };"));
+    /**
+     * Returns the cost of writing the bytes counted in {@code counter}
+     * with {@code table}, in the cost model of {@link
+     * #optimal(int[])}.
+     */
+    private static double cost(VarTable table, int[] counter) {
+        String prefix = table.constant ? "        final byte " : "        byte ";
+        double declChar = lineCost(prefix.length() + 2);
+        double elemChar = lineCost("            ".length() + 2);
+        var tokens = table.tokens();
+
+        double c = 0;
+        for (int v = 0; v < counter.length; ++v) {
+            if (table.names[v] != null) {
+                c += declChar * (table.names[v].length() + 1
+                        + literalLength((byte) v) + 1);
+            }
+            c += elemChar * counter[v] * (tokens[v].length() + 1);
+        }
+
+        return c;
+    }
+
+    /**
+     * Returns the first {@code count} names of the alphabet, shortest
+     * first.
+     */
+    private List<String> names(int count) {
+        var varCounter = new ByteVarGenerator(alphabet);
+
+        return IntStream.range(0, count)
+                .mapToObj(i -> varCounter.nextVar())
+                .collect(toList());
+    }
+
+    /**
+     * Returns the cost of a character on a line that spends {@code
+     * overhead} characters on indentation and termination.
+     */
+    private static double lineCost(int overhead) {
+        return LINE_LIMIT / (double) (LINE_LIMIT - overhead);
+    }
+
+    /**
+     * Counts the occurrences of every byte value in {@code bytes}.
+     * The count of byte {@code b} is at index {@code b & 0xff} of the
+     * returned array.
+     */
+    public static int[] histogram(byte[] bytes) {
+        int[] counter = new int[256];
+
+        for (byte b : bytes) {
+            ++counter[b & 0xff];
+        }
+
+        return counter;
+    }
+
+    private static int[] histogram(List<ByteBuffer> data) {
+        if (data.size() > 1) {
+            // the regions of a large file or the classes of a bundle
+            return data.parallelStream()
+                    .map(buffer -> histogram(List.of(buffer)))
+                    .reduce((a, b) -> {
+                        Arrays.setAll(a, i -> a[i] + b[i]);
+                        return a;
+                    })
+                    .orElseThrow();
+        }
+
+        int[] counter = new int[256];
+        var chunk = new byte[1 << 16];
+
+        for (ByteBuffer buffer : data) {
+            var values = buffer.duplicate();
+            while (values.hasRemaining()) {
+                int length = Math.min(chunk.length, values.remaining());
+                values.get(chunk, 0, length);
+                for (int i = 0; i < length; ++i) {
+                    ++counter[chunk[i] & 0xff];
+                }
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * Maps the whole of {@code channel} as a list of read-only
+     * regions; a single mapping cannot exceed 2GB.
+     */
+    private static List<ByteBuffer> map(FileChannel channel)
+            throws IOException {
+        var regions = new ArrayList<ByteBuffer>();
+        long size = channel.size();
+
+        for (long position = 0; position < size; position += MAX_REGION) {
+            long length = Math.min(MAX_REGION, size - position);
+            regions.add(channel.map(MapMode.READ_ONLY, position, length));
+        }
+
+        return regions;
+    }
+
+    /**
+     * Returns the length of the decimal literal of {@code b}, that
+     * is, {@code Byte.toString(b).length()}.
+     */
+    static int literalLength(byte b) {
+        int v = b < 0 ? -b : b;
+        int sign = b < 0 ? 1 : 0;
+
+        return sign + (v < 10 ? 1 : v < 100 ? 2 : 3);
+    }
+
+    /**
+     * Packs tokens into lines that are at most {@code limit}
+     * characters long.  Every line begins with {@code prfx}, tokens
+     * are joined with {@code joinChar} and each line ends with {@code
+     * suffix} in place of its last {@code joinChar}.
+     *
+     * <p>Lines are assembled in a single reusable buffer and written
+     * straight to the underlying writer.
+     */
+    static final class LinePacker {
+        private final Writer out;
+        private final String prfx;
+        private final char joinChar;
+        private final String suffix;
+        private final int limit;
+
+        private char[] lyn;
+        private int length;
+
+        LinePacker(
+                Writer out,
+                String prfx,
+                char joinChar,
+                String suffix,
+                int limit) {
+            this.out = out;
+            this.prfx = prfx;
+            this.joinChar = joinChar;
+            this.suffix = suffix;
+            this.limit = limit;
+            this.lyn = new char[limit + 1];
+            reset();
+        }
+
+        void append(String decl) throws IOException {
+            var joinLen = 1; // joinChar.length = 1
+            if (length + decl.length() + joinLen + suffix.length() > limit
+                    && length > prfx.length()) {
+                flush();
+            }
+            if (length + decl.length() + joinLen > lyn.length) {
+                lyn = Arrays.copyOf(lyn, length + decl.length() + joinLen);
+            }
+            decl.getChars(0, decl.length(), lyn, length);
+            length += decl.length();
+            lyn[length++] = joinChar;
+        }
+
+        void finish() throws IOException {
+            if (length > prfx.length()) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            out.write(lyn, 0, length - 1);
+            out.write(suffix);
+            reset();
+        }
+
+        private void reset() {
+            prfx.getChars(0, prfx.length(), lyn, 0);
+            length = prfx.length();
+        }
+    }
+
+    /**
+     * The variable names chosen for the byte values.
+     */
+    private static final class VarTable {
+        /**
+         * The name of byte {@code b} at index {@code b & 0xff}, or
+         * {@code null} if {@code b} is written as a literal.
+         */
+        final String[] names;
+        /**
+         * Whether the names are declared {@code final}, which allows
+         * {@code -name} to stand for the negation of a named value.
+         */
+        final boolean constant;
+        /**
+         * The cost of this table according to the cost model of the
+         * solver that built it.
+         */
+        final double cost;
 
-        return buf.toString();
+        VarTable(String[] names, boolean constant, double cost) {
+            this.names = names;
+            this.constant = constant;
+            this.cost = cost;
+        }
+
+        /**
+         * Returns the shortest token for every byte value.
+         */
+        String[] tokens() {
+            var tokens = new String[256];
+            for (int i = 0; i < tokens.length; ++i) {
+                int negation = -(byte) i & 0xff;
+                String literal = Byte.toString((byte) i);
+                if (names[i] != null) {
+                    tokens[i] = names[i];
+                } else if (constant
+                        && i != 128
+                        && negation != 128
+                        && names[negation] != null
+                        && names[negation].length() + 1 < literal.length()) {
+                    tokens[i] = "-" + names[negation];
+                } else {
+                    tokens[i] = literal;
+                }
+            }
+
+            return tokens;
+        }
+    }
+
+    /**
+     * Writes String literals as the elements of an array initializer,
+     * one chunk per element.  A chunk may span several lines, which
+     * are concatenated with {@code +}, and is ended once its modified
+     * UTF-8 length would exceed a String constant's limit.
+     */
+    private static final class StringLiteralWriter {
+        private static final String INDENT = "            ";
+
+        private final Writer out;
+        private final StringBuilder lyn = new StringBuilder(LINE_LIMIT);
+        private int utfLength;
+
+        StringLiteralWriter(Writer out) {
+            this.out = out;
+        }
+
+        /**
+         * Appends the escaped character {@code escape} which takes
+         * up {@code utf} bytes in the constant pool.
+         */
+        void append(String escape, int utf) throws IOException {
+            if (utfLength + utf > MAX_CONSTANT) {
+                endChunk();
+            }
+            // room for the indentation, quotes and " +"
+            if (lyn.length() + escape.length()
+                    > LINE_LIMIT - INDENT.length() - 4) {
+                writeLine(" +");
+            }
+            lyn.append(escape);
+            utfLength += utf;
+        }
+
+        void endChunk() throws IOException {
+            if (lyn.length() > 0) {
+                writeLine(",");
+            }
+            utfLength = 0;
+        }
+
+        void finish() throws IOException {
+            endChunk();
+        }
+
+        private void writeLine(String separator) throws IOException {
+            out.write(INDENT);
+            out.write('"');
+            out.append(lyn);
+            out.write('"');
+            out.write(separator);
+            out.write(String.format("%n"));
+            lyn.setLength(0);
+        }
+    }
+
+    /**
+     * A class file split into the text of its {@code CONSTANT_Utf8}
+     * entries and its structure, as {@code ClassFile.decode} of {@link
+     * #CLASS_FILE_DECODER} takes them.  {@code join} encodes every
+     * entry the slow way, so that it checks the text of ASCII entries
+     * too.
+     */
+    private static final class ClassFileParts {
+        private static final int MAGIC = 0xcafebabe;
+        private static final byte[] SIZES = {
+            0, 0, 0, 5, 5, 9, 9, 3, 3, 5, 5, 5, 5, 0, 0, 4, 3, 5, 5, 3, 3,
+        };
+
+        final String text;
+        final byte[] structure;
+
+        private ClassFileParts(String text, byte[] structure) {
+            this.text = text;
+            this.structure = structure;
+        }
+
+        static ClassFileParts of(byte[] bytes) {
+            var in = ByteBuffer.wrap(bytes);
+            var ascii = new StringBuilder();
+            var other = new StringBuilder();
+            var structure = new ByteArrayOutputStream(bytes.length / 2);
+            try {
+                if (in.getInt() != MAGIC) {
+                    throw new IllegalArgumentException("not a class file");
+                }
+                // the length of the ASCII text is filled in at the end
+                structure.write(new byte[8]);
+                structure.write(bytes, 0, 10);
+                in.position(10);
+                int count = in.getShort(8) & 0xffff;
+                for (int n = 1; n < count; ++n) {
+                    int at = in.position();
+                    int tag = in.get();
+                    if (tag != 1) {
+                        if (tag < 0 || tag >= SIZES.length || SIZES[tag] == 0) {
+                            throw new IllegalArgumentException(
+                                    "unknown constant pool tag " + tag + " at " + at);
+                        }
+                        structure.write(bytes, at, SIZES[tag]);
+                        in.position(at + SIZES[tag]);
+                        if (tag == 5 || tag == 6) {
+                            ++n;
+                        }
+                        continue;
+                    }
+
+                    int length = in.getShort() & 0xffff;
+                    var utf = new DataInputStream(
+                            new ByteArrayInputStream(bytes, at + 1, 2 + length));
+                    String constant = utf.readUTF();
+                    in.position(at + 3 + length);
+                    // ASCII is copied as it is, anything else encoded
+                    boolean isAscii = constant.chars().allMatch(c -> c != 0 && c < 0x80);
+                    (isAscii ? ascii : other).append(constant);
+                    structure.write(isAscii ? 1 : 0);
+                    structure.write(constant.length() >>> 8);
+                    structure.write(constant.length());
+                }
+                structure.write(bytes, in.position(), in.remaining());
+            } catch (BufferUnderflowException | IOException e) {
+                throw new IllegalArgumentException("not a class file", e);
+            }
+
+            var parts = ByteBuffer.wrap(structure.toByteArray())
+                    .putInt(0, bytes.length)
+                    .putInt(4, ascii.length());
+            return new ClassFileParts(
+                    ascii.append(other).toString(), parts.array());
+        }
+
+        /**
+         * Puts the class file back together as {@code ClassFile.decode}
+         * does, to check that it comes out the same.
+         */
+        byte[] join() {
+            var in = ByteBuffer.wrap(structure);
+            var out = ByteBuffer.allocate(in.getInt());
+            out.put(structure, 8, 10);
+            int count = out.getShort(8) & 0xffff;
+            int t = 0;
+            int u = in.getInt();
+            in.position(18);
+            for (int n = 1; n < count; ++n) {
+                int tag = in.get(in.position());
+                if (tag > 1) {
+                    out.put(in.slice().limit(SIZES[tag]));
+                    in.position(in.position() + SIZES[tag]);
+                    if (tag == 5 || tag == 6) {
+                        ++n;
+                    }
+                    continue;
+                }
+
+                // ASCII comes first in the text, the rest after it
+                boolean isAscii = in.get() == 1;
+                int from = isAscii ? t : u;
+                int end = from + (in.getShort() & 0xffff);
+                int start = out.position() + 3;
+                out.put((byte) 1).putShort((short) 0);
+                for (int k = from; k < end; ++k) {
+                    char c = text.charAt(k);
+                    if (c != 0 && c < 0x80) {
+                        out.put((byte) c);
+                    } else if (c < 0x800) {
+                        out.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+                    } else {
+                        out.put((byte) (0xe0 | c >> 12))
+                                .put((byte) (0x80 | c >> 6 & 0x3f))
+                                .put((byte) (0x80 | c & 0x3f));
+                    }
+                }
+                out.putShort(start - 2, (short) (out.position() - start));
+                if (isAscii) {
+                    t = end;
+                } else {
+                    u = end;
+                }
+            }
+            out.put(in);
+
+            return out.array();
+        }
+    }
+
+    /**
+     * Reads the bytes of a list of buffers one after the other.
+     */
+    private static final class Cursor {
+        private final Iterator<ByteBuffer> buffers;
+        private ByteBuffer current;
+
+        Cursor(List<ByteBuffer> data) {
+            this.buffers = data.iterator();
+            this.current = ByteBuffer.allocate(0);
+        }
+
+        boolean hasNext() {
+            while (!current.hasRemaining() && buffers.hasNext()) {
+                current = buffers.next().duplicate();
+            }
+
+            return current.hasRemaining();
+        }
+
+        byte next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return current.get();
+        }
     }
 
-    private <T> String append(
-            List<? extends T> list,
-            String prfx,
-            Function<? super T, String> toString,
-            char joinChar,
-            String suffix,
-            int limit) {
-        var buf = new StringBuilder(4096);
-        var lyn = new StringBuilder(limit + 1);
-        var joinLen = 1; // joinChar.length = 1
-        lyn.append(prfx);
+    /**
+     * A directory of generated sources, keyed by a digest of the
+     * generator, its options and the input, which {@code GenIntArray}
+     * uses as well.  An input that hasn't changed is served by copying
+     * its source, and the payload of {@link Encoding#SIDECAR}, from
+     * the cache.
+     *
+     * <p>An input that has changed is generated afresh, but given the
+     * names of the previous generation from the same file, which the
+     * generator keeps if they are within its tolerance: a small change
+     * to the input then makes a small change to the source.
+     */
+    static final class Cache {
+        /**
+         * A generation of a source, which the cache runs on a miss.
+         */
+        interface Generation {
+            /**
+             * Writes the source to {@code out}.
+             *
+             * @param previous the lines {@link #table()} returned for
+             * the previous generation from the same file, or {@code
+             * null} if there was none
+             */
+            void generate(List<String> previous, Writer out) throws IOException;
+
+            /**
+             * Returns the names the source was written with, as lines
+             * to hand the next generation, or {@code null} if it has
+             * none.
+             */
+            List<String> table();
+        }
+
+        private final Path dir;
+        private final List<Class<?>> generators;
+        private final String options;
+
+        /**
+         * @param generators the classes of the generator, whose class
+         * files are digested into every key
+         */
+        Cache(Path dir, List<Class<?>> generators, String options) throws IOException {
+            this.dir = Files.createDirectories(dir);
+            this.generators = generators;
+            this.options = options;
+        }
+
+        /**
+         * Returns {@code cache} in {@code selfmod-<user>} in the
+         * temporary directory, which is created readable, writable and
+         * searchable by this user alone: what the cache holds is pasted
+         * into source.  Where the file system has POSIX permissions, a
+         * directory of that name that is a link, is owned by someone
+         * else or lets anyone else in is refused rather than used.
+         */
+        static Path privateDirectory() throws IOException {
+            var dir = Paths.get(System.getProperty("java.io.tmpdir"),
+                    "selfmod-" + System.getProperty("user.name"));
+            var posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if (!posix) {
+                return Files.createDirectories(dir.resolve("cache"));
+            }
+
+            var owner = PosixFilePermissions.fromString("rwx------");
+            if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(owner));
+                } catch (FileAlreadyExistsException e) {
+                    // Created by another run meanwhile, and checked below.
+                }
+            }
+            var attributes = Files.getFileAttributeView(
+                    dir, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).readAttributes();
+            var user = dir.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!attributes.isDirectory()
+                    || !attributes.owner().equals(user)
+                    || !attributes.permissions().equals(owner)) {
+                throw new IOException(dir + " is not a directory private to "
+                        + user.getName());
+            }
+
+            return Files.createDirectories(dir.resolve("cache"));
+        }
+
+        /**
+         * Copies the source of {@code path} to standard output, from
+         * the cache or from {@code generation}.
+         *
+         * @param classes the class files the source is of, if not of
+         * {@code path} as it is
+         * @param sidecar the file the source reads its payload from,
+         * or {@code null}
+         */
+        void serve(Path path, Map<String, byte[]> classes, Path sidecar,
+                Generation generation) throws IOException {
+            var key = key(path, classes);
+            var source = dir.resolve(key + ".txt");
+            var payload = dir.resolve(key + ".payload");
+            if (Files.exists(source)) {
+                if (sidecar != null) {
+                    Files.copy(payload, sidecar, StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.copy(source, System.out);
+                System.out.flush();
+                return;
+            }
+
+            var tables = dir.resolve("table-" + hex(digest(
+                    options, path.toAbsolutePath().normalize().toString())) + ".txt");
+            var previous = Files.exists(tables)
+                    ? Files.readAllLines(tables, StandardCharsets.UTF_8)
+                    : null;
+
+            var temp = Files.createTempFile(dir, key, ".tmp");
+            try (var out = new BufferedWriter(new OutputStreamWriter(
+                    Files.newOutputStream(temp), US_ASCII), 1 << 16)) {
+                generation.generate(previous, out);
+            }
+            // the payload goes first, so that a source in the cache
+            // always has one
+            if (sidecar != null) {
+                install(sidecar, payload);
+            }
+            Files.move(temp, source, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            var table = generation.table();
+            if (table != null) {
+                var lines = Files.createTempFile(dir, "table", ".tmp");
+                Files.write(lines, table, StandardCharsets.UTF_8);
+                Files.move(lines, tables, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            Files.copy(source, System.out);
+            System.out.flush();
+        }
+
+        /**
+         * Returns the key of the source of {@code path}, or of {@code
+         * classes} if it isn't {@code null}.
+         */
+        private String key(Path path, Map<String, byte[]> classes)
+                throws IOException {
+            var digest = sha256();
+            for (var type : generators) {
+                generator(type, digest);
+            }
+            digest.update(options.getBytes(StandardCharsets.UTF_8));
+            if (classes != null) {
+                for (var entry : new TreeMap<>(classes).entrySet()) {
+                    digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                    digest.update(entry.getValue());
+                    digest.update((byte) 0);
+                }
+            } else {
+                try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    for (var region : map(channel)) {
+                        digest.update(region);
+                    }
+                }
+            }
+
+            return hex(digest.digest());
+        }
+
+        /**
+         * Digests the class files of {@code type} and its nested
+         * classes, so that a changed generator misses the cache.
+         */
+        private static void generator(Class<?> type, MessageDigest digest)
+                throws IOException {
+            var name = "/" + type.getName().replace('.', '/') + ".class";
+            try (var in = type.getResourceAsStream(name)) {
+                if (in == null) {
+                    throw new IllegalStateException("no class file for " + type);
+                }
+                digest.update(in.readAllBytes());
+            }
+            for (var nested : type.getDeclaredClasses()) {
+                generator(nested, digest);
+            }
+        }
+
+        /**
+         * Copies {@code from} to {@code to} in the cache so that
+         * {@code to} is never seen half written.
+         */
+        private void install(Path from, Path to) throws IOException {
+            var temp = Files.createTempFile(dir, "payload", ".tmp");
+            Files.copy(from, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, to, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private static byte[] digest(String... parts) {
+            var digest = sha256();
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+
+            return digest.digest();
+        }
 
-        for (T e : list) {
-            String decl = toString.apply(e);
-            if (lyn.length() + decl.length() + joinLen + suffix.length() > limit) {
-                // flush
-                buf
-                        .append(lyn.substring(0, lyn.length() - 1))
-                        .append(suffix);
-                lyn.delete(0, lyn.length());
-                lyn.append(prfx);
+        private static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // every JVM has SHA-256
+                throw new IllegalStateException(e);
             }
-            lyn.append(decl).append(joinChar);
         }
 
-        if (lyn.length() > 0) {
-            buf.append(lyn.substring(0, lyn.length() - 1))
-                    .append(suffix);
+        private static String hex(byte[] digest) {
+            return String.format("%064x", new BigInteger(1, digest));
+        }
+    }
+
+    /**
+     * A writer that only counts the characters written to it.
+     */
+    static final class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str) {
+            count += str.length();
+        }
+
+        @Override
+        public void flush() {
         }
 
-        return buf.toString();
+        @Override
+        public void close() {
+        }
     }
 
     /**
@@ -177,16 +3330,22 @@ public class GenByteArray {
     private static final class ByteVarGenerator {
         private static final String COUNTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789$_";
 
+        private final String counters;
+
         private int counterId = 0;
 
+        ByteVarGenerator(String counters) {
+            this.counters = counters;
+        }
+
         /**
          * Returns the next variable name.
          */
         public String nextVar() {
             String num;
-            for (num = toBase(counterId, COUNTERS, new StringBuilder());
+            for (num = toBase(counterId, counters, new StringBuilder());
                     !SourceVersion.isName(num);
-                    num = toBase(counterId, COUNTERS, new StringBuilder())) {
+                    num = toBase(counterId, counters, new StringBuilder())) {
                 ++counterId;
             }
 
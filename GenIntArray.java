@@ -1,159 +1,1220 @@
-import static java.lang.Math.max;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.Comparator.comparingInt;
 import static java.util.stream.Collectors.toList;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
 
 import javax.lang.model.SourceVersion;
 
 /**
  * Given a file, generates an int array which can represent that file.
  *
+ * <p>It keeps its sources in the cache of {@code GenByteArray}, and is
+ * compiled along with it:
+ * <pre><code>
+ * $ javac -d out GenByteArray.java GenIntArray.java
+ * </code></pre>
+ *
  * <p>Sample usage:
  * <pre><code>
- * $ java GenIntArray.java <(echo -ne '\xA\xA\xA\xA\xAA AAAAddddd\x1\x1')
- *         int a=-1440726719,b=1684300801,c=1094804580,d=168430090,e=16777216;
+ * $ java -cp out GenIntArray <(echo -ne '\xA\xA\xA\xA\xAA AAAAddddd\x1\x1')
  *         return new int[] {
- *             1,d,a,c,b,e,
+ *             17,168430090,-1440726719,1094804580,1684300801,16777216,
  *         };
  * </code></pre>
+ *
+ * <p>The first element is the length of the file in bytes.  The
+ * bytes follow in big-endian words, the last one padded with zeros.
+ * {@code --width=long} packs eight bytes into each element of a
+ * {@code long} array instead, which halves the number of elements
+ * and so the bytecode and the time to initialise the array.  With
+ * {@code --decode} the generated code turns the words back into the
+ * bytes through a view buffer:
+ * <pre><code>
+ * $ java -cp out GenIntArray --width=long --decode <(echo -ne '\xA\xA\xA\xA\xAA AAAAddddd\x1\x1')
+ *         long[] words = {
+ *             17,723401731066577217L,4702149868295316481L,72057594037927936L,
+ *         };
+ *         var buffer = java.nio.ByteBuffer.allocate((words.length - 1) * 8);
+ *         buffer.asLongBuffer().put(words, 1, words.length - 1);
+ *         return java.util.Arrays.copyOf(buffer.array(), (int) words[0]);
+ * </code></pre>
+ *
+ * <p>Pass {@code --stream} to memory map the file and write the
+ * source out as it is generated instead of building it in memory.
+ *
+ * <p>Names are chosen as in {@code GenByteArray}, and the same
+ * {@code --greedy}, {@code --alphabet=...} and {@code --report}
+ * options apply, as do {@code --chunk}, {@code --chunk-methods} and
+ * {@code --holder=...} for arrays too large for a single method, and
+ * {@code --cache} and {@code --tolerance=...} for an incremental
+ * cache of the generated sources.  A changed input keeps the names
+ * of its previous generation, without solving again, if they cost at
+ * most the tolerance more per element than when they were solved for.
  */
 public class GenIntArray {
+    private static final long MAX_REGION = 1L << 30;
+    private static final int LINE_LIMIT = 80;
+
+    private static final int DEFAULT_CHUNK_BUDGET = 32 * 1024;
+
+    /**
+     * How much larger, as a fraction, the source may get by keeping
+     * the names of the previous generation.
+     */
+    private static final double DEFAULT_TOLERANCE = 0.01;
+
+    /**
+     * The number of values past which they are counted in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    private static final int MAX_CHUNK = Short.MAX_VALUE + 1;
+    /**
+     * {@code sipush}, {@code newarray} and {@code areturn}.
+     */
+    private static final int ARRAY_SIZE = 6;
+
+    /**
+     * The width of the words the bytes are packed into.
+     */
+    public enum Width {
+        INT(Integer.BYTES, "int", "asIntBuffer"),
+        LONG(Long.BYTES, "long", "asLongBuffer");
+
+        final int bytes;
+        /**
+         * The Java type of the words.
+         */
+        final String type;
+        /**
+         * The {@code ByteBuffer} method that views the bytes as words.
+         */
+        final String view;
+
+        Width(int bytes, String type, String view) {
+            this.bytes = bytes;
+            this.type = type;
+            this.view = view;
+        }
+
+        /**
+         * Whether {@code v} is a value of this width.
+         */
+        boolean fits(long v) {
+            return this == LONG || v == (int) v;
+        }
+    }
+
+    /**
+     * How values are given variable names.
+     */
+    public enum Solver {
+        /**
+         * Names the values in order of the space their literals
+         * take up, as long as naming a value saves space.
+         */
+        GREEDY,
+        /**
+         * Finds the assignment of names that minimises the size of
+         * the generated source.  See {@link GenIntArray#optimal}.
+         */
+        OPTIMAL
+    }
+
+    /**
+     * Where the chunks of a chunked array go.
+     */
+    public enum ChunkStyle {
+        /**
+         * A top level class per chunk.  The enclosing class keeps its
+         * methods, which {@code redefineClasses} requires of the
+         * {@code finl} programs, and every chunk has a constant pool
+         * of its own.
+         */
+        CLASSES,
+        /**
+         * A method per chunk in the enclosing class.
+         */
+        METHODS
+    }
+
+    private final Solver solver;
+    private final String alphabet;
+
+    private int chunkBudget;
+    private ChunkStyle chunkStyle = ChunkStyle.CLASSES;
+    private String holder = "Payload";
+    private Width width = Width.INT;
+    private boolean decode;
+
+    /**
+     * The names of the previous generation from the same file and
+     * their cost per element when they were solved for.  They are
+     * kept, and the solver skipped, if they cost within {@code
+     * tolerance} of that on the new values.
+     */
+    private Map<Long, String> previous;
+    private double previousCost;
+    private double tolerance;
+    /**
+     * The names the last array was written with and their cost per
+     * element.
+     */
+    private Map<Long, String> table;
+    private double tableCost;
+
+    public GenIntArray() {
+        this(Solver.OPTIMAL, VarGenerator.COUNTERS);
+    }
+
+    /**
+     * @param solver how values are given names
+     * @param alphabet the characters variable names are made of.
+     * Shorter names are built from the characters earlier in the
+     * alphabet.
+     */
+    public GenIntArray(Solver solver, String alphabet) {
+        if (alphabet.chars().noneMatch(Character::isJavaIdentifierStart)) {
+            throw new IllegalArgumentException(
+                    "alphabet has no identifier characters: " + alphabet);
+        }
+        this.solver = solver;
+        this.alphabet = alphabet;
+    }
+
+    /**
+     * Splits the array into chunks whose code is at most {@code
+     * budget} bytes long, so that no method exceeds the 64KB limit of
+     * the JVM.
+     *
+     * @param budget the most bytecode per chunk, {@code 0} for a
+     * single array initializer
+     * @param style where the chunks go
+     * @param holder the name of the chunk classes or methods, to
+     * which the chunk number is appended
+     */
+    public GenIntArray chunked(int budget, ChunkStyle style, String holder) {
+        if (budget != 0 && (budget < 64 || budget > 65535)) {
+            throw new IllegalArgumentException("bad bytecode budget: " + budget);
+        }
+        this.chunkBudget = budget;
+        this.chunkStyle = style;
+        this.holder = holder;
+
+        return this;
+    }
+
+    /**
+     * Sets the width of the words {@link #stream} packs the bytes
+     * into.
+     */
+    public GenIntArray width(Width width) {
+        this.width = width;
+
+        return this;
+    }
+
+    /**
+     * Makes the generated code return the bytes the words stand for
+     * rather than the words themselves.
+     */
+    public GenIntArray decoding(boolean decode) {
+        this.decode = decode;
+
+        return this;
+    }
+
     public static void main(String[] args) throws IOException {
-        if (args.length < 1) {
+        var stream = false;
+        var report = false;
+        var decode = false;
+        var width = Width.INT;
+        var solver = Solver.OPTIMAL;
+        var alphabet = VarGenerator.COUNTERS;
+        var chunkBudget = 0;
+        var chunkStyle = ChunkStyle.CLASSES;
+        String holder = null;
+        String cache = null;
+        var tolerance = DEFAULT_TOLERANCE;
+        String pathname = null;
+        for (String arg : args) {
+            if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--greedy")) {
+                solver = Solver.GREEDY;
+            } else if (arg.equals("--report")) {
+                report = true;
+            } else if (arg.equals("--decode")) {
+                decode = true;
+            } else if (arg.startsWith("--width=")) {
+                width = Width.valueOf(arg.substring("--width=".length())
+                        .toUpperCase(Locale.ROOT));
+            } else if (arg.startsWith("--alphabet=")) {
+                alphabet = arg.substring("--alphabet=".length());
+            } else if (arg.equals("--chunk")) {
+                chunkBudget = DEFAULT_CHUNK_BUDGET;
+            } else if (arg.startsWith("--chunk=")) {
+                chunkBudget = Integer.parseInt(arg.substring("--chunk=".length()));
+            } else if (arg.equals("--chunk-methods")) {
+                chunkStyle = ChunkStyle.METHODS;
+            } else if (arg.startsWith("--holder=")) {
+                holder = arg.substring("--holder=".length());
+            } else if (arg.equals("--cache")) {
+                cache = "";
+            } else if (arg.startsWith("--cache=")) {
+                cache = arg.substring("--cache=".length());
+            } else if (arg.startsWith("--tolerance=")) {
+                tolerance = Double.parseDouble(
+                        arg.substring("--tolerance=".length())) / 100;
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown option " + arg);
+            } else {
+                pathname = arg;
+            }
+        }
+        if (pathname == null) {
             throw new IllegalArgumentException("no data provided");
         }
-        String pathname = args[0];
-        byte[] array = Files.readAllBytes(Paths.get(pathname));
 
-        System.out.println(new GenIntArray().freq(toIntArray(array)));
+        if (holder == null) {
+            holder = chunkStyle == ChunkStyle.CLASSES ? "Payload" : "chunk";
+        }
+        var gen = new GenIntArray(solver, alphabet)
+                .chunked(chunkBudget, chunkStyle, holder)
+                .width(width)
+                .decoding(decode);
+        gen.tolerance = tolerance;
+        var path = Paths.get(pathname);
+        if (cache != null) {
+            new GenByteArray.Cache(cache.isEmpty()
+                            ? GenByteArray.Cache.privateDirectory()
+                            : Paths.get(cache),
+                    List.of(GenIntArray.class, GenByteArray.class),
+                    String.join(" ", Double.toString(tolerance),
+                    solver.name(), alphabet, width.name(),
+                    Boolean.toString(decode), Integer.toString(chunkBudget),
+                    chunkStyle.name(), holder))
+                    .serve(path, null, null, gen.cached(path, stream));
+        } else {
+            var out = new BufferedWriter(
+                    new OutputStreamWriter(System.out, US_ASCII), 1 << 16);
+            gen.generate(path, stream, out);
+            out.flush();
+        }
+
+        if (report) {
+            var greedy = new GenByteArray.CountingWriter();
+            new GenIntArray(Solver.GREEDY, alphabet)
+                    .width(width)
+                    .stream(Paths.get(pathname), greedy);
+            var optimal = new GenByteArray.CountingWriter();
+            new GenIntArray(Solver.OPTIMAL, alphabet)
+                    .width(width)
+                    .stream(Paths.get(pathname), optimal);
+
+            GenByteArray.report(greedy.count, optimal.count);
+        }
+    }
+
+    /**
+     * Writes the source for {@code path} followed by a line break.
+     */
+    private void generate(Path path, boolean stream, Writer out)
+            throws IOException {
+        if (stream) {
+            stream(path, out);
+        } else {
+            byte[] array = Files.readAllBytes(path);
+
+            out.write(width == Width.INT
+                    ? freq(toIntArray(array))
+                    : freq(toLongArray(array)));
+        }
+        out.write(String.format("%n"));
+    }
+
+    /**
+     * Returns the generation the {@code GenByteArray.Cache} runs if it
+     * has no source for {@code path}, which starts from the names of
+     * the previous generation.
+     */
+    private GenByteArray.Cache.Generation cached(Path path, boolean stream) {
+        return new GenByteArray.Cache.Generation() {
+            @Override
+            public void generate(List<String> lines, Writer out) throws IOException {
+                if (lines != null) {
+                    readTable(lines);
+                }
+                GenIntArray.this.generate(path, stream, out);
+            }
+
+            @Override
+            public List<String> table() {
+                return table == null ? null : tableLines(table, tableCost);
+            }
+        };
+    }
+
+    private void readTable(List<String> lines) {
+        var names = new HashMap<Long, String>();
+        for (String line : lines.subList(1, lines.size())) {
+            int space = line.indexOf(' ');
+            names.put(Long.parseLong(line.substring(0, space)),
+                    line.substring(space + 1));
+        }
+
+        previous = names;
+        previousCost = Double.parseDouble(lines.get(0));
     }
 
+    /**
+     * Returns the cost per element of {@code table}, followed by the
+     * value and name of every named value, as lines.
+     */
+    private static List<String> tableLines(Map<Long, String> table, double cost) {
+        var lines = new ArrayList<String>();
+        lines.add(Double.toString(cost));
+        for (Entry<Long, String> e : table.entrySet()) {
+            lines.add(e.getKey() + " " + e.getValue());
+        }
+
+        return lines;
+    }
+
+    /**
+     * Packs {@code array} into the length of the array followed by
+     * its bytes four to an element, big-endian, the last element
+     * padded with zeros.
+     */
     public static int[] toIntArray(byte[] array) {
-        if (array.length % 4 != 0) {
-            throw new IllegalArgumentException("Cannot convert to a retrievable byte array");
+        return words(List.of(ByteBuffer.wrap(array)), Width.INT)
+                .mapToInt(v -> (int) v)
+                .toArray();
+    }
+
+    /**
+     * Packs {@code array} as {@link #toIntArray} does, but eight bytes
+     * to an element.
+     */
+    public static long[] toLongArray(byte[] array) {
+        return words(List.of(ByteBuffer.wrap(array)), Width.LONG)
+                .toArray();
+    }
+
+    /**
+     * Returns the length of the bytes of {@code data} followed by the
+     * bytes packed into words of {@code width}.  Every buffer but the
+     * last must hold {@code MAX_REGION} bytes.
+     *
+     * <p>The words are looked up by their index, so that a parallel
+     * stream splits them evenly.
+     */
+    private static LongStream words(List<ByteBuffer> data, Width width) {
+        long size = data.stream().mapToLong(ByteBuffer::remaining).sum();
+        if (!width.fits(size)) {
+            throw new IllegalArgumentException("too many bytes: " + size);
         }
 
-        int len = 1 + max((int) Math.ceil(array.length / 4.0d), 1);
-        int[] result = new int[len];
+        return LongStream.concat(
+                LongStream.of(size),
+                LongStream.range(0, (size + width.bytes - 1) / width.bytes)
+                        .map(i -> {
+                            long offset = i * width.bytes;
+                            var r = data.get((int) (offset / MAX_REGION));
+                            return word(r, (int) (offset % MAX_REGION), width);
+                        }));
+    }
 
-        for (int i = 0; i < array.length; i += 4) {
-            result[i / 4] = 0
-                    | array[i + 0] << (3 * 8)
-                    | array[i + 1] << (2 * 8)
-                    | array[i + 2] << (1 * 8)
-                    | array[i + 3] << (0 * 8);
+    /**
+     * Returns the word of {@code width} at {@code i}, zero padded
+     * past the limit of {@code buffer}.
+     */
+    private static long word(ByteBuffer buffer, int i, Width width) {
+        if (i + width.bytes <= buffer.limit()) {
+            return width == Width.INT ? buffer.getInt(i) : buffer.getLong(i);
+        }
+
+        long word = 0;
+        for (int b = 0; b < width.bytes; ++b) {
+            word = word << 8
+                    | (i + b < buffer.limit() ? buffer.get(i + b) & 0xff : 0);
         }
 
-        return result;
+        return width == Width.INT ? (int) word : word;
     }
 
     public String freq(int[] array) {
-        Map<String, Integer> counter = new HashMap<>(array.length / 2);
+        var out = new StringWriter();
+        try {
+            write(() -> Arrays.stream(array).asLongStream(),
+                    array.length, Width.INT, out);
+        } catch (IOException e) {
+            // a StringWriter never throws
+            throw new UncheckedIOException(e);
+        }
+
+        return out.toString();
+    }
 
-        for (int v : array) {
-            counter.merge(Integer.toString(v), 1, (i, j) -> i + j);
+    public String freq(long[] array) {
+        var out = new StringWriter();
+        try {
+            write(() -> Arrays.stream(array), array.length, Width.LONG, out);
+        } catch (IOException e) {
+            // a StringWriter never throws
+            throw new UncheckedIOException(e);
         }
 
-        var mostFreq = counter.entrySet().stream()
-                .sorted(comparingInt((Entry<String, Integer> e)
-                                -> e.getKey().length() * e.getValue())
-                        .reversed())
-                .collect(toList());
+        return out.toString();
+    }
 
-        var intVarnames = new HashMap<Integer, String>(array.length);
-        var varGen = new VarGenerator();
-        String variable = null;
-        for (Entry<String, Integer> e : mostFreq) {
-            int v = Integer.parseInt(e.getKey());
-            int freq = e.getValue().intValue();
+    /**
+     * Writes the same source as {@code freq(toIntArray(bytes))}, or
+     * {@code freq(toLongArray(bytes))} if the width is {@code long},
+     * to {@code out} without reading the whole file into memory.  The
+     * file is memory mapped and read twice: once to count the values
+     * and once to write them out.  Only the table of distinct values
+     * is held in memory.
+     */
+    public void stream(Path path, Writer out) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (!width.fits(size) || size / width.bytes + 2 > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("too many bytes: " + size);
+            }
 
-            int bytesOccupied = e.getKey().length() * freq;
-            variable = variable == null ? varGen.nextVar() : variable;
-            int bytesSaved = bytesOccupied - ((variable.length() * freq)
-                    + variable.length() + 2);
+            // MAX_REGION is a multiple of the width, so only the last
+            // region ends in the middle of a word
+            var regions = new ArrayList<ByteBuffer>();
+            for (long position = 0; position < size; position += MAX_REGION) {
+                long length = Math.min(MAX_REGION, size - position);
+                regions.add(channel.map(MapMode.READ_ONLY, position, length));
+            }
 
-            if (bytesSaved > 0) {
-                intVarnames.put(Integer.valueOf(v), variable);
-                variable = null;
+            int len = (int) (1 + (size + width.bytes - 1) / width.bytes);
+            write(() -> words(regions, width), len, width, out);
+        }
+    }
+
+    private void write(
+            Supplier<LongStream> values,
+            int length,
+            Width width,
+            Writer out) throws IOException {
+        var counter = histogram(values.get(), length);
+
+        // keeping the previous names saves solving again, and keeps
+        // the declarations and the diff to the previous source small
+        Map<Long, String> intVarnames;
+        if (previous != null
+                && cost(previous, counter, width) / length
+                        <= previousCost * (1 + tolerance)) {
+            intVarnames = previous;
+            tableCost = previousCost;
+        } else {
+            intVarnames = solver == Solver.GREEDY
+                    ? greedy(counter, length)
+                    : optimal(counter, width);
+            tableCost = cost(intVarnames, counter, width) / length;
+        }
+        table = intVarnames;
+
+        // values without a name of their own that are written as the
+        // negation of a named value
+        var negations = new HashMap<Long, String>();
+        for (Entry<Long, String> e : intVarnames.entrySet()) {
+            long v = e.getKey().longValue();
+            String name = e.getValue();
+            if (negatable(v, width)
+                    && !intVarnames.containsKey(-v)
+                    && name.length() + 1 < literalLength(-v)) {
+                negations.put(-v, "-" + name);
+            }
+        }
+
+        if (chunkBudget > 0) {
+            writeChunked(values, intVarnames, negations, width, out);
+            return;
+        }
+
+        writeDeclarations(intVarnames, null, width, out);
+
+        // generate the byte array itself
+        out.write(decode
+                ? String.format("        %s[] words = {%n", width.type)
+                : String.format("        return new %s[] {%n", width.type));
+        var intvalues = new GenByteArray.LinePacker(
+                out,
+                "            ",
+                ',',
+                String.format(",%n"),
+                LINE_LIMIT);
+        for (var it = values.get().iterator(); it.hasNext(); ) {
+            long v = it.nextLong();
+            String name = intVarnames.get(v);
+            if (name == null) {
+                name = negations.get(v);
             }
+            intvalues.append(name != null ? name : literal(v));
+        }
+        intvalues.finish();
+        out.write(String.format("        };"));
+        if (decode) {
+            writeDecoder(width, out);
         }
+    }
+
+    /**
+     * Counts the occurrences of every value in {@code array}.
+     */
+    public static Counts histogram(int[] array) {
+        return histogram(Arrays.stream(array).asLongStream(), array.length);
+    }
 
-        var buf = new StringBuilder();
+    /**
+     * Counts {@code values} into a table of primitives, in parallel
+     * if there are enough of them.  Each thread fills a table of its
+     * own and the tables are merged as the threads finish.
+     */
+    private static Counts histogram(LongStream values, int length) {
+        if (length < PARALLEL_THRESHOLD) {
+            var counter = new Counts();
+            values.forEach(counter::add);
+
+            return counter;
+        }
+
+        return values.parallel().collect(
+                Counts::new, Counts::add, Counts::addAll);
+    }
+
+    /**
+     * Writes the code that turns {@code words} back into the bytes
+     * they stand for and returns them.  The view buffer stores the
+     * words in bulk, big-endian, so there is no shifting to do.
+     */
+    private static void writeDecoder(Width width, Writer out)
+            throws IOException {
+        out.write(String.format("%n"));
+        out.write(String.format("        var buffer = java.nio.ByteBuffer.allocate((words.length - 1) * %d);%n", width.bytes));
+        out.write(String.format("        buffer.%s().put(words, 1, words.length - 1);%n", width.view));
+        out.write(String.format("        return java.util.Arrays.copyOf(buffer.array(), %swords[0]);",
+                width == Width.INT ? "" : "(int) "));
+    }
+
+    /**
+     * Whether {@code -v} is a value of {@code width} other than
+     * {@code v}.
+     */
+    private static boolean negatable(long v, Width width) {
+        return v != -v && width.fits(-v);
+    }
+
+    /**
+     * Declares the variables of {@code intVarnames}, or only those of
+     * the values in {@code used} if it isn't {@code null}.
+     */
+    private void writeDeclarations(
+            Map<Long, String> intVarnames,
+            Set<Long> used,
+            Width width,
+            Writer out) throws IOException {
         var varnames = intVarnames.entrySet().stream()
+                .filter(e -> used == null || used.contains(e.getKey()))
                 .sorted((e1, e2) ->
                         (e1.getValue().length() == e2.getValue().length()
                          ? e1.getValue().compareTo(e2.getValue())
                          : e1.getValue().length() - e2.getValue().length()))
                 .collect(toList());
-        var declarations = append(
-                varnames,
-                "        int ",
-                e -> String.format("%s=%d", e.getValue(), e.getKey()),
+        var declarations = new GenByteArray.LinePacker(
+                out,
+                String.format("        %s ", width.type),
                 ',',
                 String.format(";%n"),
-                80);
-        buf.append(declarations);
+                LINE_LIMIT);
+        for (Entry<Long, String> e : varnames) {
+            declarations.append(String.format(
+                    "%s=%s", e.getValue(), literal(e.getKey())));
+        }
+        declarations.finish();
+    }
 
-        var intvalues = append(
-                Arrays.stream(array)
-                        .boxed()
-                        .collect(toList()),
-                "            ",
-                v -> intVarnames.getOrDefault(
-                        v, v.toString()),
-                ',',
-                String.format(",%n"),
-                80);
+    /**
+     * Writes the array as a number of chunks whose bytecode stays
+     * within {@code chunkBudget} bytes, followed by the chunks
+     * themselves.  See {@code GenByteArray.writeChunked}; an {@code
+     * int} element takes up to eight bytes as its value may need an
+     * {@code ldc} and a negated name an {@code ineg}, and so does a
+     * {@code long} element with {@code ldc2_w} and {@code lneg}.
+     */
+    private void writeChunked(
+            Supplier<LongStream> values,
+            Map<Long, String> intVarnames,
+            Map<Long, String> negations,
+            Width width,
+            Writer out) throws IOException {
+        // past 256 local variable slots the loads and stores need a
+        // wide prefix, and a long takes up two
+        boolean wide = intVarnames.size() * (width == Width.INT ? 1 : 2) > 256;
+        int iload = wide ? 4 : 2;
+        int declaration = 3 + (wide ? 4 : 2);
 
-        // generate the byte array itself
-        buf
-                .append(String.format("        return new int[] {%n"))
-                .append(intvalues)
-                .append(String.format("        };"));
+        // first pass: where the chunks end and which variables each uses
+        var lengths = new ArrayList<Integer>();
+        var used = new ArrayList<Set<Long>>();
+        var names = new HashSet<Long>();
+        int length = 0;
+        int size = ARRAY_SIZE;
+        long total = 0;
+        for (var it = values.get().iterator(); it.hasNext(); ) {
+            long v = it.nextLong();
+            Long variable = intVarnames.containsKey(v) ? Long.valueOf(v)
+                    : negations.containsKey(v) ? Long.valueOf(-v)
+                    : null;
+            int push = variable == null ? pushSize(v, width)
+                    : variable.longValue() == v ? iload
+                    : iload + 1;
+            int cost = 1 + indexSize(length) + push + 1;
+            if (variable != null && !names.contains(variable)) {
+                cost += declaration;
+            }
+            if (length > 0
+                    && (size + cost > chunkBudget || length == MAX_CHUNK)) {
+                lengths.add(length);
+                used.add(names);
+                names = new HashSet<>();
+                length = 0;
+                size = ARRAY_SIZE;
+                cost = 1 + indexSize(length) + push + 1
+                        + (variable != null ? declaration : 0);
+            }
+            if (size + cost > chunkBudget) {
+                throw new IllegalArgumentException(
+                        "bytecode budget too small: " + chunkBudget);
+            }
+            if (variable != null) {
+                names.add(variable);
+            }
+            size += cost;
+            ++length;
+            ++total;
+        }
+        if (length > 0) {
+            lengths.add(length);
+            used.add(names);
+        }
+
+        writeAssembler(lengths.size(), total, width, out);
 
-        return buf.toString();
+        // second pass: the chunks
+        out.write(String.format("%n%s%n", chunkStyle == ChunkStyle.CLASSES
+                ? "// ---8<--- paste the classes below after the enclosing class"
+                : "// ---8<--- paste the methods below into the enclosing class"));
+        var it = values.get().iterator();
+        for (int c = 0; c < lengths.size(); ++c) {
+            out.write(String.format("%n"));
+            if (chunkStyle == ChunkStyle.CLASSES) {
+                out.write(String.format("final class %s%d {%n", holder, c));
+                out.write(String.format("    static %s[] chunk() {%n", width.type));
+            } else {
+                out.write(String.format(
+                        "    private static %s[] %s%d() {%n", width.type, holder, c));
+            }
+            writeDeclarations(intVarnames, used.get(c), width, out);
+            out.write(String.format("        return new %s[] {%n", width.type));
+            var intvalues = new GenByteArray.LinePacker(
+                    out,
+                    "            ",
+                    ',',
+                    String.format(",%n"),
+                    LINE_LIMIT);
+            for (int e = lengths.get(c); e > 0; --e) {
+                long v = it.nextLong();
+                String name = intVarnames.get(v);
+                if (name == null) {
+                    name = negations.get(v);
+                }
+                intvalues.append(name != null ? name : literal(v));
+            }
+            intvalues.finish();
+            out.write(String.format("        };%n"));
+            out.write(String.format("    }%n"));
+            if (chunkStyle == ChunkStyle.CLASSES) {
+                out.write(String.format("}%n"));
+            }
+        }
     }
 
-    private <T> String append(
-            List<? extends T> list,
-            String prfx,
-            Function<? super T, String> toString,
-            char joinChar,
-            String suffix,
-            int limit) {
-        var buf = new StringBuilder(4096);
-        var lyn = new StringBuilder(limit + 1);
-        var joinLen = 1; // joinChar.length = 1
-        lyn.append(prfx);
+    /**
+     * Writes the body of {@code replacement()} which concatenates the
+     * chunks.
+     */
+    private void writeAssembler(
+            int chunks,
+            long total,
+            Width width,
+            Writer out) throws IOException {
+        // a call costs at most dup, sipush, invokestatic and aastore
+        boolean direct = ARRAY_SIZE + chunks * 8L + 64 <= chunkBudget;
+        if (!direct && chunkStyle == ChunkStyle.METHODS) {
+            throw new IllegalArgumentException(String.format(
+                    "%d chunk methods are too many to call from one method", chunks));
+        }
 
-        for (T e : list) {
-            String decl = toString.apply(e);
-            if (lyn.length() + decl.length() + joinLen + suffix.length() > limit) {
-                // flush
-                buf
-                        .append(lyn.substring(0, lyn.length() - 1))
-                        .append(suffix);
-                lyn.delete(0, lyn.length());
-                lyn.append(prfx);
+        String type = width.type;
+        out.write(String.format("        %s[] words = new %s[%d];%n", type, type, total));
+        if (direct) {
+            out.write(String.format("        %s[][] chunks = {%n", type));
+            var calls = new GenByteArray.LinePacker(
+                    out,
+                    "            ",
+                    ',',
+                    String.format(",%n"),
+                    LINE_LIMIT);
+            for (int c = 0; c < chunks; ++c) {
+                calls.append(chunkStyle == ChunkStyle.CLASSES
+                        ? String.format("%s%d.chunk()", holder, c)
+                        : String.format("%s%d()", holder, c));
             }
-            lyn.append(decl).append(joinChar);
+            calls.finish();
+            out.write(String.format("        };%n"));
+            out.write(String.format("        int offset = 0;%n"));
+            out.write(String.format("        for (%s[] chunk : chunks) {%n", type));
+            out.write(String.format("            System.arraycopy(chunk, 0, words, offset, chunk.length);%n"));
+            out.write(String.format("            offset += chunk.length;%n"));
+            out.write(String.format("        }%n"));
+        } else {
+            // too many holders to name each one in the code
+            out.write(String.format("        try {%n"));
+            out.write(String.format("            for (int i = 0, offset = 0; i < %d; ++i) {%n", chunks));
+            out.write(String.format("                var chunk = (%s[]) Class.forName(\"%s\" + i)%n", type, holder));
+            out.write(String.format("                        .getDeclaredMethod(\"chunk\")%n"));
+            out.write(String.format("                        .invoke(null);%n"));
+            out.write(String.format("                System.arraycopy(chunk, 0, words, offset, chunk.length);%n"));
+            out.write(String.format("                offset += chunk.length;%n"));
+            out.write(String.format("            }%n"));
+            out.write(String.format("        } catch (ReflectiveOperationException e) {%n"));
+            out.write(String.format("            throw new IllegalStateException(e);%n"));
+            out.write(String.format("        }%n"));
+        }
+        if (decode) {
+            writeDecoder(width, out);
+        } else {
+            out.write(String.format("        return words;"));
         }
+    }
 
-        if (lyn.length() > 0) {
-            buf.append(lyn.substring(0, lyn.length() - 1))
-                    .append(suffix);
+    /**
+     * Returns the size of the instruction that pushes array index
+     * {@code i}: {@code iconst_<i>}, {@code bipush} or {@code sipush}.
+     */
+    private static int indexSize(int i) {
+        return i <= 5 ? 1 : i <= Byte.MAX_VALUE ? 2 : 3;
+    }
+
+    /**
+     * Returns the size of the instruction that pushes the constant
+     * {@code v}: {@code iconst_<v>}, {@code bipush}, {@code sipush} or
+     * {@code ldc_w} for an {@code int}, {@code lconst_<v>} or {@code
+     * ldc2_w} for a {@code long}.
+     */
+    private static int pushSize(long v, Width width) {
+        if (width == Width.LONG) {
+            return v == 0 || v == 1 ? 1 : 3;
+        }
+
+        return v >= -1 && v <= 5 ? 1
+                : v == (byte) v ? 2
+                : 3;
+    }
+
+    private Map<Long, String> greedy(Counts counter, int length) {
+        var mostFreq = Arrays.stream(counter.keys())
+                .boxed()
+                .sorted(comparingInt((Long v)
+                                -> literalLength(v) * counter.get(v))
+                        .reversed())
+                .collect(toList());
+
+        var intVarnames = new HashMap<Long, String>(length);
+        var varGen = new VarGenerator(alphabet);
+        String variable = null;
+        for (Long value : mostFreq) {
+            long v = value.longValue();
+            int freq = counter.get(v);
+
+            int bytesOccupied = literalLength(v) * freq;
+            variable = variable == null ? varGen.nextVar() : variable;
+            int bytesSaved = bytesOccupied - ((variable.length() * freq)
+                    + variable.length() + 2);
+
+            if (bytesSaved > 0) {
+                intVarnames.put(Long.valueOf(v), variable);
+                variable = null;
+            }
         }
 
-        return buf.toString();
+        return intVarnames;
+    }
+
+    /**
+     * Returns the assignment of names to values that minimises the
+     * size of the generated source.
+     *
+     * <p>The cost model and the solver are those of {@code
+     * GenByteArray.optimal}: every character of a declaration and of
+     * an array element is counted, line overhead is spread over the
+     * characters of a line, and a value and its negation are decided
+     * together so that one name can serve both as {@code a} and
+     * {@code -a}.  An {@code int} or a {@code long} needs no {@code
+     * final} for that.
+     *
+     * <p>Most values of an {@code int} array occur only once and can
+     * never pay for a declaration, so only the pairs that would gain
+     * from a short name go into the knapsack.  Past the one and two
+     * character names, the names of three characters or more go to
+     * the most frequent of the remaining values, and only to those
+     * they still pay for at that length; the others stay literals.
+     *
+     * <p>As for {@code GenByteArray}, the result is a heuristic bound
+     * and not a proven minimum: the knapsack is exact only for the
+     * fractional line cost of the model, and the longer names are
+     * given greedily.
+     */
+    private Map<Long, String> optimal(Counts counter, Width width) {
+        var varGen = new VarGenerator(alphabet);
+        var shortNames = new ArrayList<String>();
+        String first = varGen.nextVar();
+        String next = first;
+        for (; next.length() == first.length(); next = varGen.nextVar()) {
+            shortNames.add(next);
+        }
+        int[] lengths = { 0, first.length(), next.length() };
+        double declChar = lineCost("        ".length() + width.type.length() + 3);
+        double elemChar = lineCost("            ".length() + 2);
+
+        // the pairs {v, -v} that gain from being named
+        var candidates = new ArrayList<long[]>();
+        var costs = new ArrayList<double[]>();
+        for (long v : counter.keys()) {
+            if (v < 0 && negatable(v, width)
+                    && counter.get(-v) > 0) {
+                continue; // seen as the negation of -v
+            }
+            long[] members = negatable(v, width)
+                    ? new long[] { v, -v }
+                    : new long[] { v };
+            double[] cost = costs(
+                    members, counter, lengths, declChar, elemChar);
+            double literal = cost[0];
+            double named = cost[1];
+            for (int o = 3; o < cost.length; ++o) {
+                named = Math.min(named, cost[o]);
+            }
+            if (named < literal) {
+                candidates.add(members);
+                costs.add(cost);
+            }
+        }
+
+        // best[g][u]: least cost of candidates g.. using at most u
+        // short names
+        int groupCount = candidates.size();
+        int capacity = shortNames.size();
+        double[][] best = new double[groupCount + 1][capacity + 1];
+        byte[][] way = new byte[groupCount][capacity + 1];
+        for (int g = groupCount - 1; g >= 0; --g) {
+            double[] cost = costs.get(g);
+            for (int u = 0; u <= capacity; ++u) {
+                best[g][u] = Double.POSITIVE_INFINITY;
+                for (int o = 0; o < cost.length; ++o) {
+                    int used = (o % 3 == 1 ? 1 : 0) + (o / 3 % 3 == 1 ? 1 : 0);
+                    if (used <= u
+                            && cost[o] + best[g + 1][u - used] < best[g][u]) {
+                        best[g][u] = cost[o] + best[g + 1][u - used];
+                        way[g][u] = (byte) o;
+                    }
+                }
+            }
+        }
+
+        var intVarnames = new HashMap<Long, String>();
+        var longNames = new ArrayList<Long>();
+        for (int g = 0, u = capacity; g < groupCount; ++g) {
+            int o = way[g][u];
+            long[] members = candidates.get(g);
+            int[] kinds = { o % 3, o / 3 % 3 };
+            for (int m = 0; m < members.length; ++m) {
+                if (kinds[m] == 1) {
+                    intVarnames.put(members[m], shortNames.get(--u));
+                } else if (kinds[m] == 2) {
+                    longNames.add(members[m]);
+                }
+            }
+        }
+        // the most frequent values take the long names that did not
+        // fit in two characters the least, and values the longer
+        // names no longer pay for stay literals
+        longNames.sort(comparingInt((Long v) -> counter.get(v)).reversed());
+        for (Long v : longNames) {
+            if (next.length() == lengths[2]
+                    || pays(v, counter.get(v), next.length(), declChar, elemChar)) {
+                intVarnames.put(v, next);
+                next = varGen.nextVar();
+            }
+        }
+
+        return intVarnames;
+    }
+
+    /**
+     * Returns whether a name of {@code length} characters for {@code v},
+     * which occurs {@code count} times, costs less than writing it as
+     * a literal.
+     */
+    private static boolean pays(
+            long v, int count, int length, double declChar, double elemChar) {
+        int literal = literalLength(v);
+
+        return declChar * (length + 1 + literal + 1)
+                + elemChar * count * (length + 1)
+                < elemChar * count * (literal + 1);
+    }
+
+    /**
+     * Returns the cost of each way of writing {@code members}.  Way
+     * {@code o} gives member {@code m} the name kind {@code (o / 3^m) %
+     * 3}: 0 for a literal, 1 for a short name and 2 for a long one.
+     */
+    private static double[] costs(
+            long[] members,
+            Counts counter,
+            int[] lengths,
+            double declChar,
+            double elemChar) {
+        int ways = members.length == 1 ? 3 : 9;
+        double[] cost = new double[ways];
+        for (int o = 0; o < ways; ++o) {
+            int[] kinds = { o % 3, o / 3 % 3 };
+            double c = 0;
+            for (int m = 0; m < members.length; ++m) {
+                long v = members[m];
+                int literal = literalLength(v);
+                int token;
+                if (kinds[m] != 0) {
+                    token = lengths[kinds[m]];
+                    c += declChar * (token + 1 + literal + 1);
+                } else if (members.length == 2 && kinds[1 - m] != 0) {
+                    token = Math.min(literal, lengths[kinds[1 - m]] + 1);
+                } else {
+                    token = literal;
+                }
+                c += elemChar * counter.get(v) * (token + 1);
+            }
+            cost[o] = c;
+        }
+
+        return cost;
+    }
+
+    /**
+     * Returns the cost of writing the values counted in {@code
+     * counter} with the names of {@code intVarnames}, in the cost
+     * model of {@link #optimal(Counts, Width)}.
+     */
+    private static double cost(
+            Map<Long, String> intVarnames,
+            Counts counter,
+            Width width) {
+        double declChar = lineCost("        ".length() + width.type.length() + 3);
+        double elemChar = lineCost("            ".length() + 2);
+
+        double c = 0;
+        for (Entry<Long, String> e : intVarnames.entrySet()) {
+            c += declChar * (e.getValue().length() + 1
+                    + literalLength(e.getKey()) + 1);
+        }
+        for (long v : counter.keys()) {
+            int token = literalLength(v);
+            String name = intVarnames.get(v);
+            if (name != null) {
+                token = name.length();
+            } else if (negatable(v, width)
+                    && (name = intVarnames.get(-v)) != null) {
+                token = Math.min(token, name.length() + 1);
+            }
+            c += elemChar * counter.get(v) * (token + 1);
+        }
+
+        return c;
+    }
+
+    /**
+     * Returns the decimal literal of {@code v}, with an {@code L} if
+     * it is out of the range of an {@code int}.
+     */
+    static String literal(long v) {
+        return v == (int) v ? Long.toString(v) : v + "L";
+    }
+
+    /**
+     * Returns the length of the decimal literal of {@code v}, that
+     * is, {@code literal(v).length()}.
+     */
+    static int literalLength(long v) {
+        if (v == Long.MIN_VALUE) {
+            return 21;
+        }
+        int length = v < 0 ? 2 : 1;
+        for (long m = Math.abs(v); m >= 10; m /= 10) {
+            ++length;
+        }
+
+        return v == (int) v ? length : length + 1;
+    }
+
+    /**
+     * Returns the cost of a character on a line that spends {@code
+     * overhead} characters on indentation and termination.
+     */
+    private static double lineCost(int overhead) {
+        return LINE_LIMIT / (double) (LINE_LIMIT - overhead);
+    }
+
+    /**
+     * Counts of {@code long} values, kept in an open addressing hash
+     * table with linear probing so that neither the values nor the
+     * counts are boxed.  A slot whose count is zero is free.
+     */
+    public static final class Counts {
+        private long[] values;
+        private int[] counts;
+        private int size;
+
+        Counts() {
+            values = new long[16];
+            counts = new int[16];
+        }
+
+        /**
+         * Returns the number of times {@code v} was counted.
+         */
+        public int get(long v) {
+            int mask = values.length - 1;
+            for (int i = hash(v) & mask; counts[i] != 0; i = (i + 1) & mask) {
+                if (values[i] == v) {
+                    return counts[i];
+                }
+            }
+
+            return 0;
+        }
+
+        /**
+         * Returns the number of distinct values counted.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the distinct values counted in ascending order, so
+         * that the order does not depend on the order of counting.
+         */
+        public long[] keys() {
+            var keys = new long[size];
+            for (int i = 0, k = 0; i < values.length; ++i) {
+                if (counts[i] != 0) {
+                    keys[k++] = values[i];
+                }
+            }
+            Arrays.sort(keys);
+
+            return keys;
+        }
+
+        void add(long v) {
+            add(v, 1);
+        }
+
+        void addAll(Counts other) {
+            for (int i = 0; i < other.values.length; ++i) {
+                if (other.counts[i] != 0) {
+                    add(other.values[i], other.counts[i]);
+                }
+            }
+        }
+
+        private void add(long v, int count) {
+            int mask = values.length - 1;
+            int i = hash(v) & mask;
+            for (; counts[i] != 0; i = (i + 1) & mask) {
+                if (values[i] == v) {
+                    counts[i] += count;
+                    return;
+                }
+            }
+
+            values[i] = v;
+            counts[i] = count;
+            // at most half full
+            if (++size > values.length / 2) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            var oldValues = values;
+            var oldCounts = counts;
+            values = new long[oldValues.length * 2];
+            counts = new int[oldCounts.length * 2];
+
+            int mask = values.length - 1;
+            for (int o = 0; o < oldValues.length; ++o) {
+                if (oldCounts[o] != 0) {
+                    int i = hash(oldValues[o]) & mask;
+                    while (counts[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    values[i] = oldValues[o];
+                    counts[i] = oldCounts[o];
+                }
+            }
+        }
+
+        /**
+         * Spreads the bits of {@code v}, as the words of a class file
+         * differ mostly in their low bits.
+         */
+        private static int hash(long v) {
+            long h = v * 0x9e3779b97f4a7c15L;
+
+            return (int) (h ^ h >>> 32);
+        }
     }
 
     /**
@@ -174,16 +1235,22 @@ public class GenIntArray {
     private static final class VarGenerator {
         private static final String COUNTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789$_";
 
+        private final String counters;
+
         private long counterId = 0;
 
+        VarGenerator(String counters) {
+            this.counters = counters;
+        }
+
         /**
          * Returns the next variable name.
          */
         public String nextVar() {
             String num;
-            for (num = toBase(counterId, COUNTERS, new StringBuilder());
+            for (num = toBase(counterId, counters, new StringBuilder());
                     !SourceVersion.isName(num);
-                    num = toBase(counterId, COUNTERS, new StringBuilder())) {
+                    num = toBase(counterId, counters, new StringBuilder())) {
                 ++counterId;
             }
 
@@ -0,0 +1,591 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.VMDisconnectedException;
+import com.sun.jdi.connect.AttachingConnector;
+import com.sun.tools.attach.VirtualMachine;
+
+/**
+ * Watches a directory of sources, {@code orig} by default, and swaps
+ * every class compiled from a changed source into a running program.
+ * The sources are compiled in this process, by one compiler that
+ * stays warm between changes, into memory rather than into class
+ * files.
+ *
+ * <p>It is compiled with the classes in {@code finl/shared}, whose
+ * {@code PrivateFiles} keeps the agent jar:
+ * <pre>
+ * $ javac -d out HotReload.java finl/shared/*.java
+ * </pre>
+ *
+ * <p>A program run like {@code finl/Replacement1}, with a JDWP agent
+ * listening on a socket, is swapped through JDI.  {@code
+ * Replacement1} exits after its second call, so {@code
+ * bench/SwapLoad.java --via=none} keeps calling it instead:
+ * <pre>
+ * $ javac orig/Replacement1.java
+ * $ java -agentlib:jdwp=transport=dt_socket,address=2718,server=y,suspend=n \
+ *         -cp orig bench/SwapLoad.java --via=none
+ * $ java -cp out HotReload --port=2718
+ * </pre>
+ *
+ * <p>Any other program is swapped through the Instrumentation API by
+ * an agent this program compiles and loads into it once, the way
+ * {@code finl/Replacement2} loads its own:
+ * <pre>
+ * $ java -cp out HotReload --pid=12345 --dir=orig
+ * </pre>
+ *
+ * <p>Only classes the program has already loaded are swapped, and the
+ * usual limits of redefinition apply: method bodies may change, but
+ * not the methods and fields of a class.
+ */
+public class HotReload {
+    /**
+     * How long to wait for the rest of the events of a save, since
+     * editors tend to write a file in more than one go.
+     */
+    private static final long SETTLE_MILLIS = 30;
+
+    private final Path dir;
+    private final JavaCompiler compiler;
+    private final StandardJavaFileManager standard;
+
+    public HotReload(Path dir) {
+        this.dir = dir;
+        this.compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("no system Java compiler, run on a JDK");
+        }
+        this.standard = compiler.getStandardFileManager(null, null, null);
+    }
+
+    public static void main(String[] args) throws Exception {
+        var dir = "orig";
+        var port = 0;
+        var pid = 0L;
+        for (String arg : args) {
+            if (arg.startsWith("--dir=")) {
+                dir = arg.substring("--dir=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--pid=")) {
+                pid = Long.parseLong(arg.substring("--pid=".length()));
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if ((port == 0) == (pid == 0)) {
+            throw new IllegalArgumentException("give one of --port and --pid");
+        }
+
+        var reload = new HotReload(Paths.get(dir));
+        try (var target = port != 0
+                ? new JdiTarget(port)
+                : new AgentTarget(pid, reload.compileAgent())) {
+            reload.watch(target);
+        }
+    }
+
+    /**
+     * Compiles every source in the directory once, which warms the
+     * compiler up and checks that the sources compile before anything
+     * is swapped, then swaps the classes of each source that changes
+     * until interrupted.
+     */
+    public void watch(Target target) throws IOException, InterruptedException {
+        try (Stream<Path> files = Files.list(dir)) {
+            var sources = files
+                    .filter(HotReload::isSource)
+                    .collect(Collectors.toList());
+            long start = System.nanoTime();
+            var classes = compile(sources);
+            System.out.printf("compiled %d classes in %d ms, watching %s%n",
+                    classes.size(), (System.nanoTime() - start) / 1_000_000, dir);
+        }
+
+        try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+            dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+            while (true) {
+                var key = watcher.take();
+                Set<Path> changed = new TreeSet<>();
+                do {
+                    for (var event : key.pollEvents()) {
+                        if (event.context() instanceof Path) {
+                            var path = dir.resolve((Path) event.context());
+                            if (isSource(path)) {
+                                changed.add(path);
+                            }
+                        }
+                    }
+                    key.reset();
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                changed.removeIf(path -> !Files.isRegularFile(path));
+                if (!changed.isEmpty()) {
+                    swap(target, changed);
+                }
+            }
+        }
+    }
+
+    private void swap(Target target, Collection<Path> sources) {
+        long start = System.nanoTime();
+        Map<String, byte[]> classes;
+        try {
+            classes = compile(sources);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        long compiled = System.nanoTime();
+
+        try {
+            var swapped = target.redefine(classes);
+            long done = System.nanoTime();
+            System.out.printf("swapped %s in %d ms (compile %d ms, swap %d ms)%n",
+                    swapped,
+                    (done - start) / 1_000_000,
+                    (compiled - start) / 1_000_000,
+                    (done - compiled) / 1_000_000);
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("swap failed: %s%n", e);
+        }
+    }
+
+    private static boolean isSource(Path path) {
+        return path.getFileName().toString().endsWith(".java");
+    }
+
+    /**
+     * Compiles {@code sources} and returns the class files of the
+     * classes they declare, by binary name.  Other sources in the
+     * directory are looked up but not compiled.
+     *
+     * @throws IllegalArgumentException with the diagnostics if the
+     * sources do not compile
+     */
+    public Map<String, byte[]> compile(Collection<Path> sources) {
+        return compile(
+                standard.getJavaFileObjects(sources.toArray(new Path[0])),
+                List.of("-sourcepath", dir.toString(), "-implicit:none"));
+    }
+
+    private Map<String, byte[]> compile(
+            Iterable<? extends JavaFileObject> units,
+            List<String> options) {
+        var classes = new TreeMap<String, byte[]>();
+        var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        var task = compiler.getTask(
+                null,
+                new MemoryFileManager(standard, classes),
+                diagnostics,
+                options,
+                null,
+                units);
+        if (!task.call()) {
+            throw new IllegalArgumentException(diagnostics.getDiagnostics().stream()
+                    .filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+                    .map(Object::toString)
+                    .collect(Collectors.joining(String.format("%n"))));
+        }
+
+        return classes;
+    }
+
+    /**
+     * Compiles the agent that {@link AgentTarget} loads.
+     */
+    byte[] compileAgent() {
+        var source = new SimpleJavaFileObject(
+                URI.create("string:///" + AgentTarget.AGENT + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return String.join(String.format("%n"), AGENT_SOURCE);
+            }
+        };
+
+        return compile(List.of(source), List.of()).get(AgentTarget.AGENT);
+    }
+
+    /**
+     * Keeps the class files the compiler writes in {@code classes}.
+     */
+    private static final class MemoryFileManager
+            extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, byte[]> classes;
+
+        MemoryFileManager(StandardJavaFileManager standard, Map<String, byte[]> classes) {
+            super(standard);
+            this.classes = classes;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(
+                JavaFileManager.Location location,
+                String className,
+                JavaFileObject.Kind kind,
+                FileObject sibling) throws IOException {
+            if (location != StandardLocation.CLASS_OUTPUT
+                    || kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+
+            return new SimpleJavaFileObject(
+                    URI.create("mem:///" + className.replace('.', '/') + ".class"),
+                    kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            classes.put(className, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * A running program whose classes can be swapped.
+     */
+    public interface Target extends AutoCloseable {
+        /**
+         * Redefines the loaded classes among the keys of {@code
+         * classes} with the class files they map to, and returns the
+         * names of those classes, or all of them if the target cannot
+         * tell which are loaded.
+         */
+        Collection<String> redefine(Map<String, byte[]> classes) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Swaps classes through a JDI session with a program listening on
+     * a socket.  The session is attached once and kept, and attached
+     * again if the program restarts.
+     */
+    static final class JdiTarget implements Target {
+        private final int port;
+        private com.sun.jdi.VirtualMachine vm;
+
+        JdiTarget(int port) throws IOException {
+            this.port = port;
+            this.vm = attach(port);
+        }
+
+        private static com.sun.jdi.VirtualMachine attach(int port) throws IOException {
+            var vmm = com.sun.jdi.Bootstrap.virtualMachineManager();
+
+            AttachingConnector socketConnector = null;
+            for (var connector : vmm.attachingConnectors()) {
+                if (connector.description().contains("socket")) {
+                    socketConnector = connector;
+                    break;
+                }
+            }
+            if (socketConnector == null) {
+                throw new IllegalStateException("no socket attaching connector");
+            }
+
+            var defaultArguments = socketConnector.defaultArguments();
+            defaultArguments.get("port").setValue(Integer.toString(port));
+
+            try {
+                return socketConnector.attach(defaultArguments);
+            } catch (com.sun.jdi.connect.IllegalConnectorArgumentsException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        public Collection<String> redefine(Map<String, byte[]> classes) throws IOException {
+            try {
+                return redefineAll(classes);
+            } catch (VMDisconnectedException e) {
+                vm = attach(port);
+                return redefineAll(classes);
+            }
+        }
+
+        private Collection<String> redefineAll(Map<String, byte[]> classes) {
+            var definitions = new HashMap<ReferenceType, byte[]>();
+            var names = new TreeSet<String>();
+            for (var e : classes.entrySet()) {
+                for (var type : vm.classesByName(e.getKey())) {
+                    definitions.put(type, e.getValue());
+                    names.add(e.getKey());
+                }
+            }
+            vm.redefineClasses(definitions);
+
+            return names;
+        }
+
+        @Override
+        public void close() {
+            try {
+                vm.dispose();
+            } catch (VMDisconnectedException e) {
+                // nothing left to dispose of
+            }
+        }
+    }
+
+    /**
+     * Swaps classes through an agent loaded into the program with the
+     * Attach API.  The agent is loaded once, from a jar in the
+     * directory of {@link PrivateFiles}, and then watches a directory
+     * of its own in there for requests: a file of class files, which
+     * it redefines with its {@code Instrumentation}, answering with
+     * the names of the classes it redefined or why it failed.  The
+     * agent of an earlier run is found watching and used again.
+     */
+    static final class AgentTarget implements Target {
+        static final String AGENT = "HotReloadAgent";
+
+        /**
+         * How long to wait for the agent to answer a request.
+         */
+        private static final long REPLY_MILLIS = 10_000;
+
+        private final long pid;
+        private final Path requests;
+
+        AgentTarget(long pid, byte[] agent) throws IOException {
+            this.pid = pid;
+            this.requests = Files.createDirectories(
+                    PrivateFiles.directory().resolve("hotreload-" + pid));
+
+            var manifest = new Manifest();
+            var attributes = manifest.getMainAttributes();
+            attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            attributes.putValue("Agent-Class", AGENT);
+            attributes.putValue("Can-Redefine-Classes", "true");
+            var jar = PrivateFiles.agentJar(manifest, Map.of(AGENT + ".class", agent));
+
+            VirtualMachine vm;
+            try {
+                vm = VirtualMachine.attach(Long.toString(pid));
+            } catch (com.sun.tools.attach.AttachNotSupportedException e) {
+                throw new IOException(e);
+            }
+            try {
+                vm.loadAgent(jar.toString(), requests.toString());
+            } catch (com.sun.tools.attach.AgentLoadException
+                    | com.sun.tools.attach.AgentInitializationException e) {
+                throw new IOException("agent failed, see the program's output", e);
+            } finally {
+                vm.detach();
+            }
+        }
+
+        @Override
+        public Collection<String> redefine(Map<String, byte[]> classes) throws IOException {
+            var name = "swap-" + System.nanoTime();
+            var request = requests.resolve(name + ".classes");
+            var reply = requests.resolve(name + ".reply");
+            var temporary = Files.createTempFile(requests, "swap", ".tmp");
+            try {
+                try (var out = new DataOutputStream(Files.newOutputStream(temporary))) {
+                    out.writeInt(classes.size());
+                    for (var e : classes.entrySet()) {
+                        out.writeUTF(e.getKey());
+                        out.writeInt(e.getValue().length);
+                        out.write(e.getValue());
+                    }
+                }
+                Files.move(temporary, request, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+
+            try {
+                long deadline = System.nanoTime() + REPLY_MILLIS * 1_000_000;
+                while (!Files.exists(reply)) {
+                    if (System.nanoTime() > deadline) {
+                        throw new IOException("no answer from the agent in " + pid
+                                + " within " + REPLY_MILLIS + " ms, has it exited?");
+                    }
+                    Thread.sleep(2);
+                }
+                var lines = Files.readAllLines(reply, UTF_8);
+                if (lines.isEmpty() || !lines.get(0).equals("redefined")) {
+                    throw new IOException("agent " + String.join(": ", lines));
+                }
+
+                return lines.subList(1, lines.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the agent");
+            } finally {
+                Files.deleteIfExists(request);
+                Files.deleteIfExists(reply);
+            }
+        }
+
+        @Override
+        public void close() {
+            // the agent keeps watching, for the next run
+        }
+    }
+
+    /**
+     * The source of the agent {@link AgentTarget} loads.  It watches
+     * the directory named by its arguments from a thread of its own.
+     * Each file of class files that appears there it takes by renaming
+     * it, so that it is answered once, redefines the loaded classes
+     * with one, and answers in a file of the same name with the names
+     * of those classes.  Loaded again for a directory it already
+     * watches, it does nothing.
+     */
+    private static final String[] AGENT_SOURCE = {
+        "import static java.nio.charset.StandardCharsets.UTF_8;",
+        "",
+        "import java.io.DataInputStream;",
+        "import java.io.IOException;",
+        "import java.lang.instrument.ClassDefinition;",
+        "import java.lang.instrument.Instrumentation;",
+        "import java.nio.file.Files;",
+        "import java.nio.file.NoSuchFileException;",
+        "import java.nio.file.Path;",
+        "import java.nio.file.Paths;",
+        "import java.nio.file.StandardCopyOption;",
+        "import java.nio.file.StandardWatchEventKinds;",
+        "import java.util.ArrayList;",
+        "import java.util.HashMap;",
+        "import java.util.List;",
+        "import java.util.Set;",
+        "import java.util.concurrent.ConcurrentHashMap;",
+        "",
+        "public class " + AgentTarget.AGENT + " {",
+        "    private static final Set<Path> WATCHED = ConcurrentHashMap.newKeySet();",
+        "",
+        "    public static void agentmain(String args, Instrumentation inst) {",
+        "        var dir = Paths.get(args);",
+        "        if (!WATCHED.add(dir)) {",
+        "            return;",
+        "        }",
+        "        var thread = new Thread(() -> watch(dir, inst), \"" + AgentTarget.AGENT + "\");",
+        "        thread.setDaemon(true);",
+        "        thread.start();",
+        "    }",
+        "",
+        "    private static void watch(Path dir, Instrumentation inst) {",
+        "        try (var watcher = dir.getFileSystem().newWatchService()) {",
+        "            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);",
+        "            for (boolean valid = true; valid; ) {",
+        "                try (var requests = Files.newDirectoryStream(dir, \"*.classes\")) {",
+        "                    for (var request : requests) {",
+        "                        try {",
+        "                            answer(request, inst);",
+        "                        } catch (IOException e) {",
+        "                            System.err.println(\"" + AgentTarget.AGENT + ": \" + e);",
+        "                        }",
+        "                    }",
+        "                }",
+        "                var key = watcher.take();",
+        "                key.pollEvents();",
+        "                valid = key.reset();",
+        "            }",
+        "        } catch (IOException | InterruptedException e) {",
+        "            System.err.println(\"" + AgentTarget.AGENT + ": \" + e);",
+        "        } finally {",
+        "            WATCHED.remove(dir);",
+        "        }",
+        "    }",
+        "",
+        "    private static void answer(Path request, Instrumentation inst) throws IOException {",
+        "        var file = request.getFileName().toString();",
+        "        var name = file.substring(0, file.length() - \".classes\".length());",
+        "        var taken = request.resolveSibling(name + \".taken\");",
+        "        try {",
+        "            Files.move(request, taken, StandardCopyOption.ATOMIC_MOVE);",
+        "        } catch (NoSuchFileException e) {",
+        "            return;",
+        "        }",
+        "",
+        "        List<String> lines = new ArrayList<>();",
+        "        try {",
+        "            var classes = new HashMap<String, byte[]>();",
+        "            try (var in = new DataInputStream(Files.newInputStream(taken))) {",
+        "                for (int n = in.readInt(); n > 0; --n) {",
+        "                    var className = in.readUTF();",
+        "                    var bytes = new byte[in.readInt()];",
+        "                    in.readFully(bytes);",
+        "                    classes.put(className, bytes);",
+        "                }",
+        "            }",
+        "",
+        "            var definitions = new ArrayList<ClassDefinition>();",
+        "            lines.add(\"redefined\");",
+        "            for (Class<?> type : inst.getAllLoadedClasses()) {",
+        "                var bytes = classes.get(type.getName());",
+        "                if (bytes != null) {",
+        "                    definitions.add(new ClassDefinition(type, bytes));",
+        "                    lines.add(type.getName());",
+        "                }",
+        "            }",
+        "            inst.redefineClasses(definitions.toArray(new ClassDefinition[0]));",
+        "        } catch (Exception | LinkageError e) {",
+        "            lines = List.of(\"failed\", e.toString());",
+        "        } finally {",
+        "            Files.deleteIfExists(taken);",
+        "        }",
+        "",
+        "        var temporary = Files.createTempFile(request.getParent(), \"reply\", \".tmp\");",
+        "        try {",
+        "            Files.write(temporary, lines, UTF_8);",
+        "            Files.move(temporary, request.resolveSibling(name + \".reply\"),",
+        "                    StandardCopyOption.ATOMIC_MOVE);",
+        "        } finally {",
+        "            Files.deleteIfExists(temporary);",
+        "        }",
+        "    }",
+        "}",
+    };
+}
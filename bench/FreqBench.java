@@ -0,0 +1,85 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+/**
+ * Compares the throughput of the byte counting step of {@link
+ * GenByteArray#freq(byte[])} before and after it moved to a primitive
+ * histogram.
+ *
+ * <h3>Run instructions</h3>
+ * <pre>
+ * javac -d out GenByteArray.java
+ * java -cp out bench/FreqBench.java [megabytes]
+ * </pre>
+ *
+ * <p>The input defaults to 100 MB of bytes whose distribution is
+ * skewed towards small values, like a class file.
+ */
+public class FreqBench {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        byte[] input = input(megabytes << 20);
+
+        // the slow path dominates the run time, give it fewer rounds
+        long before = best(ROUNDS / 2 + 1, () -> legacy(input).size());
+        long after = best(ROUNDS, () -> GenByteArray.histogram(input).length);
+
+        System.out.printf("input:  %d MB%n", megabytes);
+        System.out.printf("before: %8.1f MB/s (%d ms)%n",
+                throughput(megabytes, before), before / 1_000_000);
+        System.out.printf("after:  %8.1f MB/s (%d ms)%n",
+                throughput(megabytes, after), after / 1_000_000);
+    }
+
+    /**
+     * The counting loop as it was: one String and one boxed Integer
+     * per input byte.
+     */
+    private static Map<String, Integer> legacy(byte[] bytes) {
+        Map<String, Integer> counter = new HashMap<>(256);
+
+        for (byte b : bytes) {
+            counter.merge(Byte.toString(b), 1, (i, j) -> i + j);
+        }
+
+        return counter;
+    }
+
+    private static byte[] input(int length) {
+        var random = new Random(2718);
+        var bytes = new byte[length];
+
+        for (int i = 0; i < length; ++i) {
+            // squaring skews the values towards zero
+            int r = random.nextInt(256);
+            bytes[i] = (byte) (r * r >>> 8);
+        }
+
+        return bytes;
+    }
+
+    private static long best(int rounds, IntSupplier run) {
+        long best = Long.MAX_VALUE;
+        int sink = 0;
+
+        for (int i = 0; i < rounds; ++i) {
+            long start = System.nanoTime();
+            sink += run.getAsInt();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        if (sink == 42) {
+            System.out.println(); // keep the JIT honest
+        }
+
+        return best;
+    }
+
+    private static double throughput(int megabytes, long nanos) {
+        return megabytes / (nanos / 1e9);
+    }
+}
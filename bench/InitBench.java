@@ -0,0 +1,276 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import javax.tools.ToolProvider;
+
+/**
+ * Compares the class file size and the time to load, initialise and
+ * call a generated {@code replacement()} for each encoding of {@link
+ * GenByteArray}, and fits the constants of the cost model by which
+ * {@code --codec=auto} chooses a codec.
+ *
+ * <h3>Run instructions</h3>
+ * <pre>
+ * javac -d out GenByteArray.java
+ * java -cp out bench/InitBench.java [file]
+ * </pre>
+ *
+ * <p>The payload defaults to {@code GenByteArray.class}.  Arrays are
+ * split into chunks so that payloads over 10KB compile at all.  A
+ * class file is also split along its structure by {@link
+ * GenByteArray#classFile(byte[])}, with the rest of it in an array.
+ *
+ * <p>The cost model is fitted to the first quarter of the payload and
+ * to the whole of it.  An encoding costs a fixed time plus a time per
+ * byte of payload, the line through the median times of the two
+ * sizes with no codec.  A codec costs a time per decoded byte, the
+ * line through the median times of its {@code decode} on the two
+ * sizes, plus the time to load and initialise its {@code Codec}
+ * class and the fixed part of the decode.  That last is divided by
+ * the size of the {@code Codec} class file, and the sum over all
+ * codecs by the sum of their sizes gives the time per byte of
+ * decoder.  The constants of {@code GenByteArray.Encoding}, {@code
+ * GenByteArray.Codec} and {@code GenByteArray.DECODER_BYTE_NANOS} are
+ * what this prints for the default payload, rounded.  A fit below
+ * zero is noise, and is printed as zero.
+ */
+public class InitBench {
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) throws Exception {
+        byte[] input = args.length > 0
+                ? Files.readAllBytes(Paths.get(args[0]))
+                : GenByteArray.class
+                        .getResourceAsStream("GenByteArray.class")
+                        .readAllBytes();
+
+        var variants = new LinkedHashMap<String, Function<byte[], String>>();
+        variants.put("array", new GenByteArray().chunked(
+                32 * 1024, GenByteArray.ChunkStyle.CLASSES, "Payload")::freq);
+        variants.put("latin1", new GenByteArray()
+                .encoded(GenByteArray.Encoding.LATIN1)::freq);
+        variants.put("base64", new GenByteArray()
+                .encoded(GenByteArray.Encoding.BASE64)::freq);
+        variants.put("sidecar", new GenByteArray()
+                .encoded(GenByteArray.Encoding.SIDECAR)
+                .sidecar(Files.createTempFile("initbench", ".payload"))::freq);
+        if (isClassFile(input)) {
+            variants.put("classfile", new GenByteArray().chunked(
+                    32 * 1024, GenByteArray.ChunkStyle.CLASSES, "Payload")::classFile);
+        }
+
+        System.out.printf("payload: %d bytes%n", input.length);
+        System.out.printf("%-9s %12s %14s %14s%n",
+                "encoding", "class bytes", "median us", "best us");
+        for (var variant : variants.entrySet()) {
+            Path dir = compile(variant.getValue().apply(input));
+            long classBytes;
+            try (Stream<Path> files = Files.list(dir)) {
+                classBytes = files
+                        .filter(f -> f.toString().endsWith(".class"))
+                        .mapToLong(f -> f.toFile().length())
+                        .sum();
+            }
+
+            long[] times = new long[ROUNDS];
+            for (int i = 0; i < ROUNDS; ++i) {
+                try (var loader = new URLClassLoader(
+                        new URL[] { dir.toUri().toURL() }, null)) {
+                    long start = System.nanoTime();
+                    var method = loader.loadClass("Init")
+                            .getDeclaredMethod("replacement");
+                    method.setAccessible(true);
+                    var bytes = (byte[]) method.invoke(null);
+                    times[i] = System.nanoTime() - start;
+
+                    if (!Arrays.equals(bytes, input)) {
+                        throw new AssertionError(variant.getKey() + " does not round trip");
+                    }
+                }
+            }
+            Arrays.sort(times);
+
+            System.out.printf("%-9s %12d %14.1f %14.1f%n",
+                    variant.getKey(),
+                    classBytes,
+                    times[ROUNDS / 2] / 1e3,
+                    times[0] / 1e3);
+        }
+
+        fit(input);
+    }
+
+    /**
+     * Prints the constants of the cost model fitted to {@code input}
+     * and its first quarter.
+     */
+    private static void fit(byte[] input) throws Exception {
+        var small = Arrays.copyOf(input, input.length / 4);
+        System.out.printf("%ncost model, fitted to %d and %d bytes of payload%n",
+                small.length, input.length);
+        System.out.printf("%-10s %12s %12s%n", "encoding", "fixed ns", "ns/byte");
+        for (var encoding : GenByteArray.Encoding.values()) {
+            var generator = generator(encoding, GenByteArray.Codec.NONE);
+            double[] line = line(
+                    small.length, initNanos(generator.freq(small), small),
+                    input.length, initNanos(generator.freq(input), input));
+            System.out.printf("%-10s %12.0f %12.2f%n",
+                    name(encoding), Math.max(0, line[0]), Math.max(0, line[1]));
+        }
+
+        System.out.printf("%n%-10s %14s %12s %14s %12s%n",
+                "codec", "decoder bytes", "fixed ns", "ns/class byte", "ns/byte");
+        long decoderBytes = 0;
+        double decoderNanos = 0;
+        for (var codec : GenByteArray.Codec.values()) {
+            if (codec == GenByteArray.Codec.NONE || codec == GenByteArray.Codec.AUTO) {
+                continue;
+            }
+            var generator = generator(GenByteArray.Encoding.LATIN1, codec);
+            var dir = compile(generator.freq(small));
+            long[] smallNanos = decodeNanos(dir, small);
+            long[] inputNanos = decodeNanos(compile(generator.freq(input)), input);
+            double[] line = line(small.length, smallNanos[1], input.length, inputNanos[1]);
+            long classBytes = Files.size(dir.resolve("Codec.class"));
+            double fixed = Math.max(0, inputNanos[0] + line[0]);
+            decoderBytes += classBytes;
+            decoderNanos += fixed;
+            System.out.printf("%-10s %14d %12.0f %14.2f %12.2f%n",
+                    name(codec), classBytes, fixed, fixed / classBytes, Math.max(0, line[1]));
+        }
+        System.out.printf("%ndecoder: %.2f ns per class byte over all codecs%n",
+                decoderNanos / decoderBytes);
+    }
+
+    private static GenByteArray generator(
+            GenByteArray.Encoding encoding,
+            GenByteArray.Codec codec) throws Exception {
+        var generator = encoding == GenByteArray.Encoding.ARRAY
+                ? new GenByteArray().chunked(32 * 1024, GenByteArray.ChunkStyle.CLASSES, "Payload")
+                : new GenByteArray().encoded(encoding);
+        if (encoding == GenByteArray.Encoding.SIDECAR) {
+            generator.sidecar(Files.createTempFile("initbench", ".payload"));
+        }
+
+        return generator.compressed(codec);
+    }
+
+    /**
+     * Returns the median time to load, initialise and call the
+     * generated {@code replacement()}, which has to return {@code
+     * input}.
+     */
+    private static long initNanos(String generated, byte[] input) throws Exception {
+        Path dir = compile(generated);
+        long[] times = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; ++i) {
+            try (var loader = new URLClassLoader(new URL[] { dir.toUri().toURL() }, null)) {
+                long start = System.nanoTime();
+                var method = loader.loadClass("Init").getDeclaredMethod("replacement");
+                method.setAccessible(true);
+                var bytes = (byte[]) method.invoke(null);
+                times[i] = System.nanoTime() - start;
+
+                if (!Arrays.equals(bytes, input)) {
+                    throw new AssertionError("payload does not round trip");
+                }
+            }
+        }
+        Arrays.sort(times);
+
+        return times[ROUNDS / 2];
+    }
+
+    /**
+     * Returns the median times to load and initialise the {@code
+     * Codec} class compiled into {@code dir}, and to decode what
+     * {@code replacement()} returns with it, which has to be {@code
+     * input}.
+     */
+    private static long[] decodeNanos(Path dir, byte[] input) throws Exception {
+        long[] loads = new long[ROUNDS];
+        long[] decodes = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; ++i) {
+            try (var loader = new URLClassLoader(new URL[] { dir.toUri().toURL() }, null)) {
+                var method = loader.loadClass("Init").getDeclaredMethod("replacement");
+                method.setAccessible(true);
+                var payload = (byte[]) method.invoke(null);
+
+                long start = System.nanoTime();
+                var codec = Class.forName("Codec", true, loader);
+                var decode = codec.getDeclaredMethod("decode", byte[].class);
+                decode.setAccessible(true);
+                long loaded = System.nanoTime();
+                var bytes = (byte[]) decode.invoke(null, (Object) payload);
+                long decoded = System.nanoTime();
+                loads[i] = loaded - start;
+                decodes[i] = decoded - loaded;
+
+                if (!Arrays.equals(bytes, input)) {
+                    throw new AssertionError("payload does not round trip");
+                }
+            }
+        }
+        Arrays.sort(loads);
+        Arrays.sort(decodes);
+
+        return new long[] { loads[ROUNDS / 2], decodes[ROUNDS / 2] };
+    }
+
+    /**
+     * Returns the intercept and the slope of the line through the
+     * two points.
+     */
+    private static double[] line(long x0, long y0, long x1, long y1) {
+        double slope = (double) (y1 - y0) / (x1 - x0);
+
+        return new double[] { y0 - slope * x0, slope };
+    }
+
+    private static String name(Enum<?> constant) {
+        return constant.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isClassFile(byte[] input) {
+        return input.length > 4
+                && (input[0] & 0xff) == 0xca && (input[1] & 0xff) == 0xfe
+                && (input[2] & 0xff) == 0xba && (input[3] & 0xff) == 0xbe;
+    }
+
+    /**
+     * Compiles the generated source into a new directory and returns
+     * it.  Anything after the {@code ---8<---} line goes after the
+     * class.
+     */
+    private static Path compile(String generated) throws Exception {
+        var marker = generated.indexOf(String.format("%n// ---8<---"));
+        var body = marker < 0 ? generated : generated.substring(0, marker);
+        var rest = marker < 0 ? "" : generated.substring(marker);
+
+        var dir = Files.createTempDirectory("initbench");
+        var source = dir.resolve("Init.java");
+        Files.write(source, String.format(
+                "public class Init {%n"
+                + "    private static byte[] replacement() {%n%s%n    }%n}%n%s%n",
+                body, rest).getBytes(UTF_8));
+
+        int status = ToolProvider.getSystemJavaCompiler().run(
+                null, null, null,
+                "-d", dir.toString(), source.toString());
+        if (status != 0) {
+            throw new IllegalStateException("javac failed: " + status);
+        }
+
+        return dir;
+    }
+}
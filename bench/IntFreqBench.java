@@ -0,0 +1,86 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+/**
+ * Compares the throughput of the value counting step of {@link
+ * GenIntArray#freq(int[])} before and after it moved to a primitive
+ * hash table filled in parallel.
+ *
+ * <h3>Run instructions</h3>
+ * <pre>
+ * javac -d out GenIntArray.java
+ * java -cp out bench/IntFreqBench.java [millions of values]
+ * </pre>
+ *
+ * <p>The input defaults to 8 million values, a quarter of them
+ * distinct, skewed towards small values like the words of a class
+ * file.  The gain grows with the number of cores.
+ */
+public class IntFreqBench {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int millions = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int[] input = input(millions * 1_000_000);
+
+        long before = best(ROUNDS, () -> legacy(input).size());
+        long after = best(ROUNDS, () -> GenIntArray.histogram(input).size());
+
+        System.out.printf("input:  %d million values, %d cores%n",
+                millions, Runtime.getRuntime().availableProcessors());
+        System.out.printf("before: %8.1f M values/s (%d ms)%n",
+                throughput(millions, before), before / 1_000_000);
+        System.out.printf("after:  %8.1f M values/s (%d ms)%n",
+                throughput(millions, after), after / 1_000_000);
+    }
+
+    /**
+     * The counting loop as it was: one String and one boxed Integer
+     * per value.
+     */
+    private static Map<String, Integer> legacy(int[] array) {
+        Map<String, Integer> counter = new HashMap<>(array.length / 2);
+
+        for (int v : array) {
+            counter.merge(Integer.toString(v), 1, (i, j) -> i + j);
+        }
+
+        return counter;
+    }
+
+    private static int[] input(int length) {
+        var random = new Random(2718);
+        var values = new int[length];
+
+        for (int i = 0; i < length; ++i) {
+            // squaring skews the values towards zero
+            long r = random.nextInt(length / 4);
+            values[i] = (int) (r * r / (length / 4));
+        }
+
+        return values;
+    }
+
+    private static long best(int rounds, IntSupplier run) {
+        long best = Long.MAX_VALUE;
+        int sink = 0;
+
+        for (int i = 0; i < rounds; ++i) {
+            long start = System.nanoTime();
+            sink += run.getAsInt();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        if (sink == 42) {
+            System.out.println(); // keep the JIT honest
+        }
+
+        return best;
+    }
+
+    private static double throughput(int millions, long nanos) {
+        return millions / (nanos / 1e9);
+    }
+}
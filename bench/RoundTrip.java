@@ -0,0 +1,606 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Checks that what the generators write for a corpus of class files
+ * decodes back to them, and records what it costs downstream, for
+ * each way of writing them: the time javac takes to compile it, the
+ * size of the class files, the time to load and verify the class
+ * holding it and the time of the first call of {@code
+ * replacement()}.
+ *
+ * <h3>Run instructions</h3>
+ * <pre>
+ * javac -d out GenByteArray.java GenIntArray.java
+ * java -cp out bench/RoundTrip.java [--limit=N] [--csv=file] [--baseline=file] [corpus...]
+ * </pre>
+ *
+ * <p>A corpus entry is a class file, a directory or a jar of them, or
+ * a module of the run-time image such as {@code jrt:/java.base}, the
+ * default.  {@code --limit} takes that many class files spread evenly
+ * over the corpus, 40 by default, and {@code 0} takes them all.
+ *
+ * <p>Two of the modes name values from an alphabet of two
+ * characters, which runs out of names of one and two characters, to
+ * keep the solvers honest about longer ones.  Besides every class
+ * file on its own, up to {@value #BUNDLE} of them are written as one
+ * bundle, as for a directory or a jar, in the array encoding, with
+ * LZ and in deflated Latin-1.
+ *
+ * <p>Every snippet is compiled in memory and loaded in a class loader
+ * of its own.  {@code --csv} writes a line for every class file and
+ * mode, which a later run takes as {@code --baseline}.  The run fails
+ * if a snippet does not compile, if a payload does not decode to its
+ * input, or if the class files of a mode grew by more than {@value
+ * #SIZE_TOLERANCE}% over the baseline for the same inputs.  Times are reported but not compared, as they
+ * vary too much from one machine to the next.
+ */
+public class RoundTrip {
+    private static final int DEFAULT_LIMIT = 40;
+    private static final int CHUNK = 32 * 1024;
+    private static final double SIZE_TOLERANCE = 1;
+    private static final int[] BUCKETS = { 4 << 10, 16 << 10, 64 << 10 };
+    private static final String SMALL_ALPHABET = "ab";
+    private static final int MEMBER = 4 << 10;
+    private static final int BUNDLE = 16;
+
+    public static void main(String[] args) throws Exception {
+        int limit = DEFAULT_LIMIT;
+        Path csv = null;
+        Path baseline = null;
+        var corpus = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--limit=")) {
+                limit = Integer.parseInt(arg.substring("--limit=".length()));
+            } else if (arg.startsWith("--csv=")) {
+                csv = Paths.get(arg.substring("--csv=".length()));
+            } else if (arg.startsWith("--baseline=")) {
+                baseline = Paths.get(arg.substring("--baseline=".length()));
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown option " + arg);
+            } else {
+                corpus.add(arg);
+            }
+        }
+        if (corpus.isEmpty()) {
+            corpus.add("jrt:/java.base");
+        }
+
+        var inputs = new TreeMap<String, byte[]>();
+        for (String entry : corpus) {
+            inputs.putAll(read(entry));
+        }
+        inputs = sample(inputs, limit);
+
+        var results = new ArrayList<Result>();
+        var compiler = new MemoryCompiler();
+        var sidecar = Files.createTempFile("roundtrip", ".payload");
+        try {
+            for (var input : inputs.entrySet()) {
+                for (var mode : modes(sidecar).entrySet()) {
+                    byte[] bytes = input.getValue();
+                    results.add(run(compiler, input.getKey(), bytes.length, mode.getKey(),
+                            () -> mode.getValue().apply(bytes), "byte[]",
+                            value -> Arrays.equals((byte[]) value, bytes)));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(sidecar);
+        }
+
+        var bundled = sample(inputs, BUNDLE);
+        long bundledBytes = bundled.values().stream().mapToLong(b -> b.length).sum();
+        for (var mode : bundles().entrySet()) {
+            results.add(run(compiler, "bundle of " + bundled.size(), bundledBytes, mode.getKey(),
+                    () -> mode.getValue().apply(bundled), "java.util.Map<String, byte[]>",
+                    value -> same(bundled, (Map<?, ?>) value)));
+        }
+
+        summarise(results, System.out);
+        if (csv != null) {
+            writeCsv(results, csv);
+        }
+
+        boolean failed = false;
+        for (Result result : results) {
+            if (!result.ok) {
+                System.err.printf("%s in %s does not round trip%n",
+                        result.name, result.mode);
+                failed = true;
+            }
+        }
+        if (baseline != null) {
+            failed |= compare(results, readCsv(baseline), System.err);
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The ways of writing a class file, each a function from its bytes
+     * to a body for a {@code replacement()} that returns them.  The
+     * sidecar mode writes its payload to {@code sidecar}.
+     */
+    private static Map<String, Function<byte[], String>> modes(Path sidecar) {
+        var modes = new LinkedHashMap<String, Function<byte[], String>>();
+        modes.put("array", new GenByteArray()
+                .chunked(CHUNK, GenByteArray.ChunkStyle.CLASSES, "Payload")::freq);
+        modes.put("latin1", new GenByteArray()
+                .encoded(GenByteArray.Encoding.LATIN1)::freq);
+        modes.put("base64", new GenByteArray()
+                .encoded(GenByteArray.Encoding.BASE64)::freq);
+        modes.put("deflate", decoded(new GenByteArray()
+                .encoded(GenByteArray.Encoding.LATIN1)
+                .compressed(GenByteArray.Codec.DEFLATE)::freq));
+        modes.put("lz", decoded(new GenByteArray()
+                .encoded(GenByteArray.Encoding.LATIN1)
+                .compressed(GenByteArray.Codec.LZ)::freq));
+        modes.put("dictionary", decoded(new GenByteArray()
+                .encoded(GenByteArray.Encoding.LATIN1)
+                .compressed(GenByteArray.Codec.DICTIONARY)::freq));
+        modes.put("auto", decoded(new GenByteArray()
+                .encoded(GenByteArray.Encoding.LATIN1)
+                .compressed(GenByteArray.Codec.AUTO)::freq));
+        // members small enough that most class files have several
+        modes.put("members", decoded(new GenByteArray()
+                .encoded(GenByteArray.Encoding.LATIN1)
+                .compressed(GenByteArray.Codec.DEFLATE)
+                .members(MEMBER)::freq));
+        modes.put("sidecar", new GenByteArray()
+                .encoded(GenByteArray.Encoding.SIDECAR)
+                .sidecar(sidecar)::freq);
+        modes.put("methods", new GenByteArray()
+                .chunked(CHUNK, GenByteArray.ChunkStyle.METHODS, "chunk")::freq);
+        modes.put("classfile", new GenByteArray()
+                .chunked(CHUNK, GenByteArray.ChunkStyle.CLASSES, "Payload")::classFile);
+        modes.put("int", bytes -> new GenIntArray()
+                .chunked(CHUNK, GenIntArray.ChunkStyle.CLASSES, "Payload")
+                .decoding(true)
+                .freq(GenIntArray.toIntArray(bytes)));
+        // an alphabet that runs out of two character names, so that
+        // the solvers have to do with longer ones
+        modes.put("alphabet", new GenByteArray(GenByteArray.Solver.OPTIMAL, SMALL_ALPHABET)
+                .chunked(CHUNK, GenByteArray.ChunkStyle.CLASSES, "Payload")::freq);
+        modes.put("int-alpha", bytes -> new GenIntArray(GenIntArray.Solver.OPTIMAL, SMALL_ALPHABET)
+                .chunked(CHUNK, GenIntArray.ChunkStyle.CLASSES, "Payload")
+                .decoding(true)
+                .freq(GenIntArray.toIntArray(bytes)));
+        modes.put("long", bytes -> new GenIntArray()
+                .chunked(CHUNK, GenIntArray.ChunkStyle.CLASSES, "Payload")
+                .width(GenIntArray.Width.LONG)
+                .decoding(true)
+                .freq(GenIntArray.toLongArray(bytes)));
+
+        return modes;
+    }
+
+    /**
+     * The ways of writing the class files of a bundle, each a function
+     * from them by name to a body for a {@code replacement()} that
+     * returns a map of them by name.
+     */
+    private static Map<String, Function<Map<String, byte[]>, String>> bundles() {
+        var bundles = new LinkedHashMap<String, Function<Map<String, byte[]>, String>>();
+        bundles.put("bundle", new GenByteArray()::bundle);
+        bundles.put("bundle-lz", new GenByteArray()
+                .compressed(GenByteArray.Codec.LZ)::bundle);
+        bundles.put("bundle-latin1", new GenByteArray()
+                .encoded(GenByteArray.Encoding.LATIN1)
+                .compressed(GenByteArray.Codec.DEFLATE)::bundle);
+
+        return bundles;
+    }
+
+    private static boolean same(Map<String, byte[]> expected, Map<?, ?> actual) {
+        return actual != null
+                && actual.size() == expected.size()
+                && expected.entrySet().stream().allMatch(e -> actual.get(e.getKey()) instanceof byte[]
+                        && Arrays.equals((byte[]) actual.get(e.getKey()), e.getValue()));
+    }
+
+    /**
+     * Wraps a generator whose body returns a payload for {@code
+     * Codec.decode} into one that returns the decoded bytes.
+     */
+    private static Function<byte[], String> decoded(Function<byte[], String> generator) {
+        return bytes -> {
+            String generated = generator.apply(bytes);
+            int marker = generated.indexOf(String.format("%n// ---8<---"));
+
+            return String.format("        return Codec.decode(payload());%n    }%n%n"
+                    + "    private static byte[] payload() {%n%s",
+                    generated.substring(0, marker))
+                    + generated.substring(marker);
+        };
+    }
+
+    /**
+     * Compiles, loads and calls what {@code generator} writes, and
+     * checks what {@code replacement()}, returning {@code type},
+     * returns with {@code check}.  Source that does not compile fails
+     * the round trip.
+     */
+    private static Result run(
+            MemoryCompiler compiler,
+            String name,
+            long inputBytes,
+            String mode,
+            Supplier<String> generator,
+            String type,
+            Predicate<Object> check) throws Exception {
+        var result = new Result(name, mode, inputBytes);
+        String source = source(generator.get(), type);
+
+        long start = System.nanoTime();
+        Map<String, byte[]> classes;
+        try {
+            classes = compiler.compile("Init", source);
+        } catch (IllegalStateException e) {
+            System.err.printf("%s in %s: %s%n", name, mode, e.getMessage());
+            return result;
+        }
+        result.javacNanos = System.nanoTime() - start;
+        result.classBytes = classes.values().stream().mapToLong(b -> b.length).sum();
+
+        var loader = new MemoryClassLoader(classes);
+        start = System.nanoTime();
+        // Init has no static initializer, so this is loading, linking
+        // and, for the most part, verifying it
+        var init = Class.forName("Init", true, loader);
+        result.verifyNanos = System.nanoTime() - start;
+
+        var replacement = init.getDeclaredMethod("replacement");
+        replacement.setAccessible(true);
+        start = System.nanoTime();
+        Object value;
+        try {
+            value = replacement.invoke(null);
+        } catch (InvocationTargetException e) {
+            value = null;
+        }
+        result.callNanos = System.nanoTime() - start;
+        result.ok = value != null && check.test(value);
+
+        return result;
+    }
+
+    /**
+     * Returns the source of {@code Init}, whose {@code replacement()}
+     * returns {@code type} and has the body of {@code generated}.
+     * Methods after a {@code ---8<---} line go into {@code Init},
+     * classes after it.
+     */
+    private static String source(String generated, String type) {
+        var body = new StringBuilder();
+        var methods = new StringBuilder();
+        var classes = new StringBuilder();
+        var section = body;
+        for (String line : generated.split("\\R", -1)) {
+            if (line.startsWith("// ---8<---")) {
+                section = line.contains("methods") ? methods : classes;
+                continue;
+            }
+            section.append(line).append(String.format("%n"));
+        }
+
+        return String.format("public class Init {%n"
+                + "    private static %s replacement() {%n%s%n    }%n%s}%n%s",
+                type, body, methods, classes);
+    }
+
+    /**
+     * Reads the class files of a corpus entry by name.
+     */
+    private static Map<String, byte[]> read(String entry) throws IOException {
+        var classes = new TreeMap<String, byte[]>();
+        if (entry.startsWith("jrt:/")) {
+            var modules = FileSystems.getFileSystem(URI.create("jrt:/"))
+                    .getPath("/modules", entry.substring("jrt:/".length()));
+            try (Stream<Path> files = Files.walk(modules)) {
+                for (var file : (Iterable<Path>) files::iterator) {
+                    if (file.toString().endsWith(".class")) {
+                        classes.put(file.toString(), Files.readAllBytes(file));
+                    }
+                }
+            }
+        } else if (entry.endsWith(".jar")) {
+            try (var jar = new JarFile(entry)) {
+                for (var e : (Iterable<JarEntry>) jar.stream()::iterator) {
+                    if (e.getName().endsWith(".class")) {
+                        try (var in = jar.getInputStream(e)) {
+                            classes.put(entry + "!/" + e.getName(), in.readAllBytes());
+                        }
+                    }
+                }
+            }
+        } else {
+            try (Stream<Path> files = Files.walk(Paths.get(entry))) {
+                for (var file : (Iterable<Path>) files::iterator) {
+                    if (file.toString().endsWith(".class")) {
+                        classes.put(file.toString(), Files.readAllBytes(file));
+                    }
+                }
+            }
+        }
+
+        return classes;
+    }
+
+    /**
+     * Returns {@code limit} of {@code inputs}, spread evenly over
+     * them in the order of their names, so that the same corpus
+     * gives the same sample.
+     */
+    private static TreeMap<String, byte[]> sample(TreeMap<String, byte[]> inputs, int limit) {
+        if (limit <= 0 || inputs.size() <= limit) {
+            return inputs;
+        }
+
+        var names = new ArrayList<>(inputs.keySet());
+        var sample = new TreeMap<String, byte[]>();
+        for (int i = 0; i < limit; ++i) {
+            String name = names.get((int) ((long) i * names.size() / limit));
+            sample.put(name, inputs.get(name));
+        }
+
+        return sample;
+    }
+
+    private static void summarise(List<Result> results, PrintStream out) {
+        out.printf("%-13s %-6s %5s %5s %9s %9s %7s %10s %10s %10s%n",
+                "mode", "input", "files", "fails", "input KB", "class KB",
+                "ratio", "javac ms", "verify us", "call us");
+        var groups = results.stream().collect(Collectors.groupingBy(
+                r -> r.mode + " " + bucket(r.inputBytes),
+                LinkedHashMap::new,
+                Collectors.toList()));
+        var sorted = new ArrayList<>(groups.values());
+        var order = results.stream().map(r -> r.mode).distinct().collect(Collectors.toList());
+        sorted.sort((g1, g2) -> g1.get(0).mode.equals(g2.get(0).mode)
+                ? Integer.compare(bucketIndex(g1.get(0).inputBytes), bucketIndex(g2.get(0).inputBytes))
+                : Integer.compare(order.indexOf(g1.get(0).mode), order.indexOf(g2.get(0).mode)));
+        for (var group : sorted) {
+            long input = group.stream().mapToLong(r -> r.inputBytes).sum();
+            long classBytes = group.stream().mapToLong(r -> r.classBytes).sum();
+            out.printf("%-13s %-6s %5d %5d %9.1f %9.1f %7.2f %10.1f %10.1f %10.1f%n",
+                    group.get(0).mode,
+                    bucket(group.get(0).inputBytes),
+                    group.size(),
+                    group.stream().filter(r -> !r.ok).count(),
+                    input / 1024d,
+                    classBytes / 1024d,
+                    (double) classBytes / input,
+                    median(group, r -> r.javacNanos) / 1e6,
+                    median(group, r -> r.verifyNanos) / 1e3,
+                    median(group, r -> r.callNanos) / 1e3);
+        }
+    }
+
+    private static int bucketIndex(long bytes) {
+        int i = 0;
+        while (i < BUCKETS.length && bytes >= BUCKETS[i]) {
+            ++i;
+        }
+
+        return i;
+    }
+
+    private static String bucket(long bytes) {
+        int i = bucketIndex(bytes);
+
+        return i < BUCKETS.length
+                ? "<" + (BUCKETS[i] >> 10) + "K"
+                : ">=" + (BUCKETS[BUCKETS.length - 1] >> 10) + "K";
+    }
+
+    private static double median(List<Result> results, Function<Result, Long> nanos) {
+        long[] values = results.stream().mapToLong(nanos::apply).sorted().toArray();
+
+        return values[values.length / 2];
+    }
+
+    private static void writeCsv(List<Result> results, Path file) throws IOException {
+        var lines = new ArrayList<String>();
+        lines.add("class,mode,input,javac_us,class_bytes,verify_us,call_us,ok");
+        for (Result r : results) {
+            lines.add(String.format("%s,%s,%d,%d,%d,%d,%d,%b",
+                    r.name, r.mode, r.inputBytes, r.javacNanos / 1000,
+                    r.classBytes, r.verifyNanos / 1000, r.callNanos / 1000, r.ok));
+        }
+        Files.write(file, lines, UTF_8);
+    }
+
+    /**
+     * Reads the class bytes of every class file and mode of a file
+     * written by {@link #writeCsv}.
+     */
+    private static Map<String, Long> readCsv(Path file) throws IOException {
+        var sizes = new HashMap<String, Long>();
+        var lines = Files.readAllLines(file, UTF_8);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            sizes.put(fields[0] + "," + fields[1], Long.parseLong(fields[4]));
+        }
+
+        return sizes;
+    }
+
+    /**
+     * Compares the class bytes of every mode with {@code baseline},
+     * over the class files both have and that round trip, and returns
+     * whether any grew by more than {@link #SIZE_TOLERANCE} percent.
+     */
+    private static boolean compare(List<Result> results, Map<String, Long> baseline, PrintStream out) {
+        var before = new LinkedHashMap<String, Long>();
+        var after = new LinkedHashMap<String, Long>();
+        for (Result r : results) {
+            Long size = baseline.get(r.name + "," + r.mode);
+            if (size != null && r.ok) {
+                before.merge(r.mode, size, Long::sum);
+                after.merge(r.mode, r.classBytes, Long::sum);
+            }
+        }
+
+        boolean regressed = false;
+        for (String mode : after.keySet()) {
+            double change = 100d * (after.get(mode) - before.get(mode)) / before.get(mode);
+            out.printf("%-13s class bytes %+.2f%% over the baseline%n", mode, change);
+            regressed |= change > SIZE_TOLERANCE;
+        }
+
+        return regressed;
+    }
+
+    /**
+     * What one mode costs for one class file.
+     */
+    private static final class Result {
+        final String name;
+        final String mode;
+        final long inputBytes;
+        long javacNanos;
+        long classBytes;
+        long verifyNanos;
+        long callNanos;
+        boolean ok;
+
+        Result(String name, String mode, long inputBytes) {
+            this.name = name;
+            this.mode = mode;
+            this.inputBytes = inputBytes;
+        }
+    }
+
+    /**
+     * Compiles sources in memory, with one file manager for all of
+     * them so that the platform classes are only looked up once.
+     */
+    private static final class MemoryCompiler {
+        private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        private final StandardJavaFileManager standard =
+                compiler.getStandardFileManager(null, null, UTF_8);
+
+        Map<String, byte[]> compile(String name, String source) {
+            var classes = new HashMap<String, byte[]>();
+            var unit = new SimpleJavaFileObject(
+                    URI.create("string:///" + name + ".java"),
+                    JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                    return source;
+                }
+            };
+            var diagnostics = new DiagnosticCollector<JavaFileObject>();
+            boolean compiled = compiler.getTask(
+                    null,
+                    new MemoryFileManager(standard, classes),
+                    diagnostics,
+                    List.of("-proc:none"),
+                    null,
+                    List.of(unit)).call();
+            if (!compiled) {
+                throw new IllegalStateException("javac failed: " + diagnostics.getDiagnostics());
+            }
+
+            return classes;
+        }
+    }
+
+    /**
+     * Keeps the class files the compiler writes in {@code classes}.
+     */
+    private static final class MemoryFileManager
+            extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, byte[]> classes;
+
+        MemoryFileManager(StandardJavaFileManager standard, Map<String, byte[]> classes) {
+            super(standard);
+            this.classes = classes;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(
+                JavaFileManager.Location location,
+                String className,
+                JavaFileObject.Kind kind,
+                FileObject sibling) throws IOException {
+            if (location != StandardLocation.CLASS_OUTPUT
+                    || kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+
+            return new SimpleJavaFileObject(
+                    URI.create("mem:///" + className.replace('.', '/') + ".class"),
+                    kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            classes.put(className, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Defines the classes of one snippet, and only those, so that no
+     * two snippets share a class.
+     */
+    private static final class MemoryClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        MemoryClassLoader(Map<String, byte[]> classes) {
+            super(ClassLoader.getPlatformClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.tools.ToolProvider;
+
+/**
+ * Checks the {@code MethodSplice} of {@code finl/Replacement2.java}
+ * on the programs it is there for: for each of them, the code of the
+ * methods that differ between the class in {@code orig} and the one
+ * in {@code finl} is spliced both ways, and what comes out has to
+ * verify, has to leave the other methods as they were, and has to
+ * run the spliced {@code dwim}.
+ *
+ * <h3>Run instructions</h3>
+ * <pre>
+ * java -Xverify:all bench/SpliceCheck.java
+ * </pre>
+ *
+ * <p>Run it from the root of the repository.  The spliced class is
+ * defined in a class loader of its own, in front of the other classes
+ * of the program in {@code finl}, and initialised, which verifies it;
+ * {@code -Xverify:all} makes sure that nothing escapes verification.  The
+ * run fails if a splice comes out empty, does not verify, changes a
+ * method it should have left alone, or if {@code dwim} does not
+ * return what the class the code came from returns.
+ */
+public class SpliceCheck {
+    private static final String[] PROGRAMS = { "Replacement1", "Replacement2", "Replacement3" };
+
+    public static void main(String[] args) throws Exception {
+        if (!ManagementFactory.getRuntimeMXBean().getInputArguments().contains("-Xverify:all")) {
+            throw new IllegalStateException("run with -Xverify:all");
+        }
+
+        var splicer = new URLClassLoader(new URL[] {
+                compile(program("Replacement2")).toUri().toURL() }, null);
+        var splice = method(splicer, "MethodSplice", "splice", byte[].class, byte[].class, Set.class);
+        var digestOf = method(splicer, "ClassDigest", "of", byte[].class);
+        var methods = method(splicer, "ClassDigest", "methods");
+        var changedSince = method(splicer, "ClassDigest", "changedSince", digestOf.getReturnType());
+
+        boolean failed = false;
+        for (String name : PROGRAMS) {
+            var orig = compile(List.of(Paths.get("orig", name + ".java")));
+            var finl = compile(program(name));
+            var origBytes = Files.readAllBytes(orig.resolve(name + ".class"));
+            var finlBytes = Files.readAllBytes(finl.resolve(name + ".class"));
+
+            for (boolean intoFinl : new boolean[] { true, false }) {
+                var target = intoFinl ? finlBytes : origBytes;
+                var source = intoFinl ? origBytes : finlBytes;
+                String check = String.format("%s, %s into %s", name,
+                        intoFinl ? "orig" : "finl", intoFinl ? "finl" : "orig");
+
+                var before = digestOf.invoke(null, (Object) target);
+                var after = digestOf.invoke(null, (Object) source);
+                @SuppressWarnings("unchecked")
+                var changed = new TreeSet<>((Set<String>) changedSince.invoke(after, before));
+                @SuppressWarnings("unchecked")
+                var common = (Set<String>) methods.invoke(before);
+                changed.retainAll(common);
+                changed.retainAll((Set<?>) methods.invoke(after));
+
+                @SuppressWarnings("unchecked")
+                var spliced = (Optional<byte[]>) splice.invoke(null, target, source, changed);
+                if (spliced.isEmpty()) {
+                    System.out.printf("%s: not spliced%n", check);
+                    failed = true;
+                    continue;
+                }
+
+                @SuppressWarnings("unchecked")
+                var touched = (Set<String>) changedSince.invoke(
+                        digestOf.invoke(null, (Object) spliced.get()), before);
+                if (!changed.containsAll(touched)) {
+                    touched.removeAll(changed);
+                    System.out.printf("%s: changed %s too%n", check, touched);
+                    failed = true;
+                    continue;
+                }
+
+                String expected = dwim(load(finl, orig, name, source));
+                String actual;
+                try {
+                    actual = dwim(load(finl, orig, name, spliced.get()));
+                } catch (LinkageError e) {
+                    System.out.printf("%s: %s%n", check, e);
+                    failed = true;
+                    continue;
+                }
+                if (!actual.equals(expected)) {
+                    System.out.printf("%s: dwim returns %s, not %s%n", check, actual, expected);
+                    failed = true;
+                    continue;
+                }
+                System.out.printf("%s: spliced %d methods, %d bytes, verified, dwim returns %s%n",
+                        check, changed.size(), spliced.get().length, actual);
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns the sources of the program in {@code finl} whose class
+     * is {@code name}: its own file, and those of the classes the
+     * programs there share.
+     */
+    private static List<Path> program(String name) throws Exception {
+        var sources = new ArrayList<Path>();
+        sources.add(Paths.get("finl", name + ".java"));
+        try (Stream<Path> files = Files.list(Paths.get("finl", "shared"))) {
+            sources.addAll(files
+                    .filter(f -> f.toString().endsWith(".java"))
+                    .sorted()
+                    .collect(Collectors.toList()));
+        }
+
+        return sources;
+    }
+
+    /**
+     * Compiles {@code sources} into a new directory and returns it.
+     */
+    private static Path compile(List<Path> sources) throws Exception {
+        var dir = Files.createTempDirectory("splicecheck");
+        var arguments = new ArrayList<String>(List.of("-d", dir.toString()));
+        for (Path source : sources) {
+            arguments.add(source.toString());
+        }
+        int status = ToolProvider.getSystemJavaCompiler().run(
+                null, null, null, arguments.toArray(new String[0]));
+        if (status != 0) {
+            throw new IllegalStateException("javac failed on " + sources + ": " + status);
+        }
+
+        return dir;
+    }
+
+    private static Method method(ClassLoader loader, String type, String name, Class<?>... parameters)
+            throws Exception {
+        var method = Class.forName(type, false, loader).getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        return method;
+    }
+
+    /**
+     * Defines and initialises {@code name} from {@code classFile}, with
+     * the other classes of its program from {@code finl}, or from
+     * {@code orig} if {@code finl} has none of that name.
+     */
+    private static Class<?> load(Path finl, Path orig, String name, byte[] classFile)
+            throws Exception {
+        var loader = new URLClassLoader(new URL[] {
+                finl.toUri().toURL(), orig.toUri().toURL() }, null) {
+            @Override
+            protected Class<?> loadClass(String className, boolean resolve)
+                    throws ClassNotFoundException {
+                synchronized (getClassLoadingLock(className)) {
+                    if (!className.equals(name)) {
+                        return super.loadClass(className, resolve);
+                    }
+                    var loaded = findLoadedClass(className);
+                    return loaded != null
+                            ? loaded
+                            : defineClass(className, classFile, 0, classFile.length);
+                }
+            }
+        };
+
+        return Class.forName(name, true, loader);
+    }
+
+    private static String dwim(Class<?> type) throws Exception {
+        var constructor = type.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        var dwim = type.getDeclaredMethod("dwim", int.class, String.class, List.class);
+        dwim.setAccessible(true);
+
+        return (String) dwim.invoke(constructor.newInstance(), 3, ".14159", List.of("2", "6", "53"));
+    }
+}
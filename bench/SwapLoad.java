@@ -0,0 +1,541 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Swaps {@code Replacement1} back and forth between its two versions
+ * while threads call its {@code dwim} at a fixed rate, and measures
+ * what each swap costs them: the latency of the calls just before and
+ * just after it, the safepoint of the redefinition and the compiling
+ * it sets off.
+ *
+ * <h3>Run instructions</h3>
+ * <pre>
+ * javac -d swap finl/Replacement1.java finl/Replacement2.java finl/shared/*.java
+ * java -agentlib:jdwp=transport=dt_socket,address=2718,server=y,suspend=n \
+ *         -cp swap bench/SwapLoad.java --via=jdi
+ * java -Djdk.attach.allowAttachSelf=true -cp swap bench/SwapLoad.java --via=agent
+ * </pre>
+ *
+ * <p>The swap goes through the {@code HotSwap} JDI session of {@code
+ * finl/Replacement1.java}, or the {@code AgentSwap} Instrumentation
+ * session of {@code finl/Replacement2.java}.  The class swapped is
+ * {@code Replacement1} in both, as {@code Replacement2} cannot be
+ * redefined with its replacement.
+ *
+ * <p>{@code --platform} and {@code --virtual} set the number of
+ * platform and virtual threads calling {@code dwim}, 8 and 100 by
+ * default, the latter on Java 21 and later only.  Between them they
+ * make {@code --rate} calls a second, 20000 by default.  The latency
+ * of a call is counted from when it was due, so that calls held up by
+ * a pause count the time they waited.  After {@code --warmup} seconds,
+ * 2 by default, there are {@code --swaps} swaps, 20 by default, {@code
+ * --interval} milliseconds apart, 500 by default.  The calls due in the
+ * half interval before and after each swap are compared.
+ *
+ * <p>Safepoints and compilations are read from a Flight Recorder
+ * recording of the run, which {@code --jfr=file} keeps.  The pause is
+ * the whole of the safepoint the redefinition ran in, of which {@code
+ * ttsp} is the time it took the threads to reach it.  {@code
+ * compiles} is the number and time of compilations that started in the
+ * half interval after the swap, and {@code jit} the time from the
+ * swap until the last of them was done, which is about when the code
+ * the swap threw away is compiled again.
+ *
+ * <p>{@code --via=none} swaps nothing and measures nothing: the
+ * threads call {@code dwim} until the process is ended, and what it
+ * returns is printed whenever that changes.  That makes a target for
+ * {@code HotReload}, which swaps in what is saved in {@code orig}:
+ * <pre>
+ * javac orig/Replacement1.java
+ * java -agentlib:jdwp=transport=dt_socket,address=2718,server=y,suspend=n \
+ *         -cp orig bench/SwapLoad.java --via=none
+ * javac -d out HotReload.java finl/shared/*.java
+ * java -cp out HotReload --port=2718
+ * </pre>
+ */
+public class SwapLoad {
+    private static final String TARGET = "Replacement1";
+
+    private final MethodHandle dwim;
+    private final Object target;
+    private final long period;
+    private volatile boolean running = true;
+
+    private SwapLoad(MethodHandle dwim, Object target, long period) {
+        this.dwim = dwim;
+        this.target = target;
+        this.period = period;
+    }
+
+    public static void main(String[] args) throws Throwable {
+        var via = "";
+        var port = 2718;
+        var platform = 8;
+        var virtual = 100;
+        var rate = 20_000;
+        var warmup = 2;
+        var swaps = 20;
+        var interval = 500;
+        Path jfr = null;
+        for (String arg : args) {
+            if (arg.startsWith("--via=")) {
+                via = arg.substring("--via=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--platform=")) {
+                platform = Integer.parseInt(arg.substring("--platform=".length()));
+            } else if (arg.startsWith("--virtual=")) {
+                virtual = Integer.parseInt(arg.substring("--virtual=".length()));
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(arg.substring("--rate=".length()));
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--swaps=")) {
+                swaps = Integer.parseInt(arg.substring("--swaps=".length()));
+            } else if (arg.startsWith("--interval=")) {
+                interval = Integer.parseInt(arg.substring("--interval=".length()));
+            } else if (arg.startsWith("--jfr=")) {
+                jfr = Paths.get(arg.substring("--jfr=".length()));
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (virtual > 0 && !hasVirtualThreads()) {
+            System.err.println("no virtual threads before Java 21, running platform threads only");
+            virtual = 0;
+        }
+        if (platform + virtual == 0) {
+            throw new IllegalArgumentException("no threads to call dwim");
+        }
+
+        var type = Class.forName(TARGET);
+        var lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        var dwim = lookup.findVirtual(type, "dwim",
+                MethodType.methodType(String.class, int.class, String.class, List.class))
+                .asType(MethodType.methodType(
+                        String.class, Object.class, int.class, String.class, List.class));
+        var target = lookup.findConstructor(type, MethodType.methodType(void.class)).invoke();
+        var load = new SwapLoad(dwim, target, (platform + virtual) * 1_000_000_000L / rate);
+        if (via.equals("none")) {
+            load.start(platform, virtual, null);
+            watch(dwim, target, interval);
+            return;
+        }
+
+        var versions = versions(type);
+        var swapper = swapper(via, port, type);
+
+        var recording = new Recording();
+        recording.enable("jdk.SafepointBegin");
+        recording.enable("jdk.SafepointStateSynchronization");
+        recording.enable("jdk.SafepointEnd");
+        recording.enable("jdk.ExecuteVMOperation").withoutThreshold();
+        recording.enable("jdk.Compilation").withoutThreshold();
+        recording.enable("jdk.Deoptimization");
+        recording.start();
+        // starting the recording redefines the classes of its events
+        var recorded = Instant.now();
+
+        var recorders = new ArrayList<Recorder>();
+        var threads = load.start(platform, virtual, recorders);
+
+        Thread.sleep(warmup * 1000L);
+        var swapped = new long[swaps][];
+        for (int k = 0; k < swaps; ++k) {
+            var version = versions[(k + 1) % 2];
+            long begin = System.nanoTime();
+            swapper.swap(version.classFile);
+            swapped[k] = new long[] { begin, System.nanoTime() };
+
+            var output = (String) dwim.invoke(target, 3, ".14159", List.of("2", "6", "53"));
+            if (!output.equals(version.output)) {
+                throw new IllegalStateException("swap " + k + " left dwim returning " + output);
+            }
+            Thread.sleep(interval);
+        }
+
+        load.running = false;
+        for (var thread : threads) {
+            thread.join();
+        }
+        recording.stop();
+        var file = jfr != null ? jfr : Files.createTempFile("swapload", ".jfr");
+        recording.dump(file);
+        recording.close();
+        var events = RecordingFile.readAllEvents(file);
+        if (jfr == null) {
+            Files.delete(file);
+        }
+
+        events.removeIf(e -> e.getStartTime().isBefore(recorded));
+        report(swapped, versions, recorders, events, interval * 500_000L, via,
+                platform, virtual, rate);
+    }
+
+    /**
+     * Starts {@code platform} and {@code virtual} threads calling
+     * {@code dwim}, spread evenly over the period, each recording its
+     * calls in a recorder it adds to {@code recorders}, or recording
+     * nothing if that is {@code null}.
+     */
+    private List<Thread> start(int platform, int virtual, List<Recorder> recorders) {
+        var threads = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int t = 0; t < platform + virtual; ++t) {
+            var recorder = recorders != null ? new Recorder() : null;
+            long first = start + period * t / (platform + virtual);
+            Runnable task = () -> call(first, recorder);
+            var thread = t < platform ? new Thread(task) : virtualThread(task);
+            if (recorders != null) {
+                recorders.add(recorder);
+            }
+            threads.add(thread);
+            thread.start();
+        }
+
+        return threads;
+    }
+
+    /**
+     * Prints what {@code dwim} returns whenever that changes, looking
+     * every {@code interval} milliseconds, until the process is ended.
+     */
+    private static void watch(MethodHandle dwim, Object target, int interval) throws Throwable {
+        String last = null;
+        while (true) {
+            var output = (String) dwim.invoke(target, 3, ".14159", List.of("2", "6", "53"));
+            if (!output.equals(last)) {
+                System.out.printf("dwim returns %s%n", output);
+                last = output;
+            }
+            Thread.sleep(interval);
+        }
+    }
+
+    /**
+     * Calls {@code dwim} every {@code period} nanoseconds from {@code
+     * first} on, until the run is over, and records when each call was
+     * due and how late it returned, if {@code recorder} isn't {@code
+     * null}.
+     */
+    private void call(long first, Recorder recorder) {
+        var l = List.of("2", "6", "53");
+        int sink = 0;
+        for (long due = first; running; due += period) {
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            try {
+                sink += ((String) dwim.invokeExact(target, 3, ".14159", l)).length();
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+            if (recorder != null) {
+                recorder.add(due, System.nanoTime() - due);
+            }
+        }
+
+        if (sink == 42) {
+            System.out.println(); // keep the JIT honest
+        }
+    }
+
+    /**
+     * A version of the target class and what its {@code dwim} returns.
+     */
+    private static final class Version {
+        final String name;
+        final byte[] classFile;
+        final String output;
+
+        Version(String name, byte[] classFile, String output) {
+            this.name = name;
+            this.classFile = classFile;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Returns the target class as loaded and as its {@code
+     * replacement()} would swap it in.
+     */
+    private static Version[] versions(Class<?> type) throws Exception {
+        byte[] loaded;
+        try (var in = type.getResourceAsStream(TARGET + ".class")) {
+            loaded = in.readAllBytes();
+        }
+
+        var replacement = type.getDeclaredMethod("replacement");
+        replacement.setAccessible(true);
+        var decode = Class.forName("Codec").getDeclaredMethod("decode", byte[].class);
+        decode.setAccessible(true);
+        var replaced = (byte[]) decode.invoke(null, replacement.invoke(null));
+
+        return new Version[] {
+            new Version("finl", loaded, "3.14159[2, 6, 53]"),
+            new Version("orig", replaced, "2.718281828[4, 5]"),
+        };
+    }
+
+    /**
+     * Swaps the target class through a {@code HotSwap} or {@code
+     * AgentSwap} session.
+     */
+    private interface Swapper {
+        void swap(byte[] classFile) throws Exception;
+    }
+
+    /**
+     * Returns a swapper through the session {@code via} names.
+     */
+    private static Swapper swapper(String via, int port, Class<?> type) throws Exception {
+        Class<?> swapClass;
+        Method session;
+        Method redefine;
+        Object swap;
+        switch (via) {
+        case "jdi":
+            swapClass = swapClass("HotSwap", "Replacement1");
+            session = swapClass.getDeclaredMethod("session", int.class);
+            session.setAccessible(true);
+            redefine = swapClass.getDeclaredMethod("redefine", Map.class);
+            redefine.setAccessible(true);
+            swap = session.invoke(null, port);
+            return classFile -> redefine.invoke(swap, Map.of(TARGET, classFile));
+
+        case "agent":
+            swapClass = swapClass("AgentSwap", "Replacement2");
+            session = swapClass.getDeclaredMethod("session");
+            session.setAccessible(true);
+            redefine = swapClass.getDeclaredMethod("redefine", Map.class);
+            redefine.setAccessible(true);
+            swap = session.invoke(null);
+            return classFile -> redefine.invoke(swap, Map.of(type, classFile));
+
+        default:
+            throw new IllegalArgumentException("give --via=jdi, --via=agent or --via=none");
+        }
+    }
+
+    private static Class<?> swapClass(String name, String program) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException(name + " is not on the class path, compile finl/"
+                    + program + ".java and finl/shared/*.java");
+        }
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns an unstarted virtual thread, through reflection so that
+     * this compiles for Java 11.
+     */
+    private static Thread virtualThread(Runnable task) {
+        try {
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (Thread) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("unstarted", Runnable.class)
+                    .invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The calls of one thread, in the order they were due.
+     */
+    private static final class Recorder {
+        long[] due = new long[1024];
+        long[] latency = new long[1024];
+        int size;
+
+        void add(long due, long latency) {
+            if (size == this.due.length) {
+                this.due = Arrays.copyOf(this.due, size * 2);
+                this.latency = Arrays.copyOf(this.latency, size * 2);
+            }
+            this.due[size] = due;
+            this.latency[size] = latency;
+            ++size;
+        }
+
+        /**
+         * Adds the latencies of the calls due from {@code from} up to
+         * {@code to} to {@code latencies}.
+         */
+        void between(long from, long to, List<Long> latencies) {
+            for (int i = 0; i < size; ++i) {
+                if (due[i] >= from && due[i] < to) {
+                    latencies.add(latency[i]);
+                }
+            }
+        }
+    }
+
+    private static void report(
+            long[][] swapped,
+            Version[] versions,
+            List<Recorder> recorders,
+            List<RecordedEvent> events,
+            long half,
+            String via,
+            int platform,
+            int virtual,
+            int rate) {
+        var pauses = new HashMap<Long, Instant[]>();
+        var ttsp = new HashMap<Long, Duration>();
+        var redefinitions = new ArrayList<RecordedEvent>();
+        var compilations = new ArrayList<RecordedEvent>();
+        var deoptimizations = new ArrayList<RecordedEvent>();
+        for (var event : events) {
+            switch (event.getEventType().getName()) {
+            case "jdk.SafepointBegin":
+                pauses.computeIfAbsent(event.getLong("safepointId"), id -> new Instant[2])[0] =
+                        event.getStartTime();
+                break;
+            case "jdk.SafepointEnd":
+                pauses.computeIfAbsent(event.getLong("safepointId"), id -> new Instant[2])[1] =
+                        event.getEndTime();
+                break;
+            case "jdk.SafepointStateSynchronization":
+                ttsp.put(event.getLong("safepointId"), event.getDuration());
+                break;
+            case "jdk.ExecuteVMOperation":
+                if (event.getString("operation").equals("RedefineClasses")) {
+                    redefinitions.add(event);
+                }
+                break;
+            case "jdk.Compilation":
+                compilations.add(event);
+                break;
+            case "jdk.Deoptimization":
+                deoptimizations.add(event);
+                break;
+            default:
+                break;
+            }
+        }
+        redefinitions.sort((e1, e2) -> e1.getStartTime().compareTo(e2.getStartTime()));
+        if (redefinitions.size() != swapped.length) {
+            throw new IllegalStateException(String.format(
+                    "%d swaps but %d redefinitions recorded",
+                    swapped.length, redefinitions.size()));
+        }
+
+        System.out.printf("via %s: %d platform and %d virtual threads, %d calls/s, "
+                + "%d swaps of %s%n%n", via, platform, virtual, rate, swapped.length, TARGET);
+        System.out.printf("%4s %-5s %8s %9s %8s %13s %7s %8s %9s %9s %9s %9s%n",
+                "swap", "to", "swap ms", "pause us", "ttsp us", "compiles ms",
+                "deopts", "jit ms", "p99 <us", "p99 >us", "p999 >us", "max >us");
+        var columns = new ArrayList<double[]>();
+        for (int k = 0; k < swapped.length; ++k) {
+            var redefinition = redefinitions.get(k);
+            long id = redefinition.getLong("safepointId");
+            var pause = pauses.get(id);
+            var after = redefinition.getEndTime();
+            var until = after.plusNanos(half);
+
+            int compiled = 0;
+            var compiling = Duration.ZERO;
+            Duration settled = null;
+            for (var compilation : compilations) {
+                var started = compilation.getStartTime();
+                if (started.isBefore(after) || !started.isBefore(until)) {
+                    continue;
+                }
+                ++compiled;
+                compiling = compiling.plus(compilation.getDuration());
+                var done = Duration.between(after, compilation.getEndTime());
+                if (settled == null || done.compareTo(settled) > 0) {
+                    settled = done;
+                }
+            }
+            long deopts = deoptimizations.stream()
+                    .filter(e -> !e.getStartTime().isBefore(after) && e.getStartTime().isBefore(until))
+                    .count();
+
+            var before = new ArrayList<Long>();
+            var following = new ArrayList<Long>();
+            for (var recorder : recorders) {
+                recorder.between(swapped[k][0] - half, swapped[k][0], before);
+                recorder.between(swapped[k][0], swapped[k][0] + half, following);
+            }
+
+            double[] row = {
+                (swapped[k][1] - swapped[k][0]) / 1e6,
+                pause[0] == null || pause[1] == null
+                        ? Double.NaN
+                        : Duration.between(pause[0], pause[1]).toNanos() / 1e3,
+                ttsp.containsKey(id) ? ttsp.get(id).toNanos() / 1e3 : Double.NaN,
+                compiled,
+                compiling.toNanos() / 1e6,
+                deopts,
+                settled == null ? Double.NaN : settled.toNanos() / 1e6,
+                percentile(before, 0.99) / 1e3,
+                percentile(following, 0.99) / 1e3,
+                percentile(following, 0.999) / 1e3,
+                percentile(following, 1) / 1e3,
+            };
+            columns.add(row);
+            System.out.printf("%4d %-5s %s%n", k, versions[(k + 1) % 2].name, format(row));
+        }
+
+        var medians = new double[columns.get(0).length];
+        for (int c = 0; c < medians.length; ++c) {
+            int column = c;
+            double[] values = columns.stream()
+                    .mapToDouble(row -> row[column])
+                    .filter(v -> !Double.isNaN(v))
+                    .sorted()
+                    .toArray();
+            medians[c] = values.length == 0 ? Double.NaN : values[values.length / 2];
+        }
+        System.out.printf("%n%-10s %s%n", "median", format(medians));
+    }
+
+    private static String format(double[] row) {
+        return String.format("%8.2f %9s %8s %4.0f %8.1f %7.0f %8s %9.1f %9.1f %9.1f %9.1f",
+                row[0], orDash("%9.1f", row[1]), orDash("%8.1f", row[2]), row[3], row[4],
+                row[5], orDash("%8.1f", row[6]), row[7], row[8], row[9], row[10]);
+    }
+
+    private static String orDash(String format, double value) {
+        return Double.isNaN(value) ? "-" : String.format(format, value);
+    }
+
+    private static double percentile(List<Long> latencies, double p) {
+        if (latencies.isEmpty()) {
+            return Double.NaN;
+        }
+        var sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+}
@@ -0,0 +1,211 @@
+package selfmod.bench;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares swapping {@code dwim} through the {@code CallSiteSwap} of
+ * {@code finl/Replacement3.java} with redefining it through the
+ * {@code HotSwap} of {@code finl/Replacement1.java}: the cost of a
+ * call once swapped, and the latency of a swap.  Only {@link
+ * #redefine} runs with a debug agent, which the forked virtual machine
+ * attaches to itself.
+ *
+ * <p>{@link #direct} calls the replacement of {@code Replacement3}
+ * defined as an ordinary class, as a redefined {@code dwim} is
+ * called, and {@link #callSite} calls the same class file swapped in
+ * behind the call site.  The swaps flip {@code Replacement1} between
+ * its two versions, so that each one changes something.
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CallSiteBenchmark {
+    static final int PORT = 27183;
+
+    private static final MethodType DWIM =
+            MethodType.methodType(String.class, int.class, String.class, List.class);
+    private static final MethodType CALL =
+            MethodType.methodType(String.class, Object.class, int.class, String.class, List.class);
+
+    private static final MethodHandle DIRECT;
+    private static final Object DIRECT_RECEIVER;
+    private static final MethodHandle CALL_SITE;
+    private static final Object CALL_SITE_RECEIVER;
+
+    static {
+        try {
+            var program = Class.forName("Replacement3");
+            var replacement = program.getDeclaredMethod("replacement");
+            replacement.setAccessible(true);
+            var classFile = (byte[]) replacement.invoke(null);
+
+            var defined = new ClassLoader(program.getClassLoader()) {
+                Class<?> define() {
+                    return defineClass(null, classFile, 0, classFile.length);
+                }
+            }.define();
+            var lookup = MethodHandles.privateLookupIn(defined, MethodHandles.lookup());
+            DIRECT = lookup.findVirtual(defined, "dwim", DWIM).asType(CALL);
+            DIRECT_RECEIVER = lookup.findConstructor(defined, MethodType.methodType(void.class))
+                    .invoke();
+
+            var site = callSite(program);
+            swap().invoke(site, (Object) classFile);
+            CALL_SITE = ((MethodHandle) invoker().invoke(site)).asType(CALL);
+            CALL_SITE_RECEIVER = MethodHandles.privateLookupIn(program, MethodHandles.lookup())
+                    .findConstructor(program, MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Arguments {
+        int i = 3;
+        String s = ".14159";
+        List<String> l = List.of("2", "6", "53");
+    }
+
+    /**
+     * The two versions of {@code Replacement1}, the first as loaded and
+     * the second as its {@code replacement()} swaps it in.
+     */
+    @State(Scope.Benchmark)
+    public static class Versions {
+        private final byte[][] versions = new byte[2][];
+        private int version;
+
+        @Setup
+        public void setUp() throws ReflectiveOperationException, IOException {
+            var target = Class.forName("Replacement1");
+            try (var in = target.getResourceAsStream("Replacement1.class")) {
+                versions[0] = in.readAllBytes();
+            }
+            var replacement = target.getDeclaredMethod("replacement");
+            replacement.setAccessible(true);
+            var decode = Class.forName("Codec").getDeclaredMethod("decode", byte[].class);
+            decode.setAccessible(true);
+            versions[1] = (byte[]) decode.invoke(null, replacement.invoke(null));
+        }
+
+        /**
+         * Returns the version that is not in place now.
+         */
+        byte[] next() {
+            version ^= 1;
+            return versions[version];
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CallSite {
+        Object site;
+        Method swap;
+
+        @Setup
+        public void setUp() throws ReflectiveOperationException {
+            site = callSite(Class.forName("Replacement3"));
+            swap = swap();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Session {
+        Object session;
+        Method redefine;
+
+        @Setup
+        public void setUp() throws ReflectiveOperationException {
+            var hotSwap = Class.forName("HotSwap");
+            var sessionOf = hotSwap.getDeclaredMethod("session", int.class);
+            sessionOf.setAccessible(true);
+            session = sessionOf.invoke(null, PORT);
+            redefine = hotSwap.getDeclaredMethod("redefine", Map.class);
+            redefine.setAccessible(true);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String direct(Arguments a) throws Throwable {
+        return (String) DIRECT.invokeExact(DIRECT_RECEIVER, a.i, a.s, a.l);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String callSite(Arguments a) throws Throwable {
+        return (String) CALL_SITE.invokeExact(CALL_SITE_RECEIVER, a.i, a.s, a.l);
+    }
+
+    /**
+     * Defines a hidden class and retargets the call site to it.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void swapCallSite(Versions versions, CallSite site)
+            throws ReflectiveOperationException {
+        site.swap.invoke(site.site, (Object) versions.next());
+    }
+
+    /**
+     * Redefines the class through the live JDI session.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Fork(value = 1, jvmArgsAppend =
+            "-agentlib:jdwp=transport=dt_socket,address=" + PORT + ",server=y,suspend=n")
+    public void redefine(Versions versions, Session session)
+            throws ReflectiveOperationException {
+        session.redefine.invoke(session.session, Map.of("Replacement1", versions.next()));
+    }
+
+    /**
+     * Returns a new {@code CallSiteSwap} for {@code dwim} in {@code
+     * program}.
+     */
+    private static Object callSite(Class<?> program) throws ReflectiveOperationException {
+        var of = Class.forName("CallSiteSwap").getDeclaredMethod(
+                "of", MethodHandles.Lookup.class, String.class, MethodType.class);
+        of.setAccessible(true);
+
+        return of.invoke(null,
+                MethodHandles.privateLookupIn(program, MethodHandles.lookup()), "dwim", DWIM);
+    }
+
+    private static Method swap() throws ReflectiveOperationException {
+        var swap = Class.forName("CallSiteSwap").getDeclaredMethod("swap", byte[].class);
+        swap.setAccessible(true);
+
+        return swap;
+    }
+
+    private static Method invoker() throws ReflectiveOperationException {
+        var invoker = Class.forName("CallSiteSwap").getDeclaredMethod("invoker");
+        invoker.setAccessible(true);
+
+        return invoker;
+    }
+}
@@ -0,0 +1,86 @@
+package selfmod.bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the generators: the source they write for an input of
+ * {@code size} bytes and the packing of bytes into words.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class FreqBenchmark {
+    @State(Scope.Benchmark)
+    public static class ByteArray {
+        @Param({ "1024", "1048576", "104857600" })
+        int size;
+
+        @Param({ "ARRAY", "LATIN1", "BASE64" })
+        String encoding;
+
+        byte[] bytes;
+        Object gen;
+        Method freq;
+
+        @Setup
+        public void setUp() throws ReflectiveOperationException {
+            bytes = Generators.input(size);
+            gen = Generators.byteArray(encoding, null);
+            freq = Generators.freq(gen, byte[].class);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class IntArray {
+        @Param({ "1024", "1048576", "104857600" })
+        int size;
+
+        @Param({ "INT", "LONG" })
+        String width;
+
+        byte[] bytes;
+        Object words;
+        Object gen;
+        Method freq;
+        Method packer;
+
+        @Setup
+        public void setUp() throws ReflectiveOperationException {
+            bytes = Generators.input(size);
+            packer = Generators.packer(width);
+            words = Generators.pack(packer, bytes);
+            gen = Generators.intArray(width, true);
+            freq = Generators.freq(gen, words.getClass());
+        }
+    }
+
+    @Benchmark
+    public Object genByteArrayFreq(ByteArray state) throws ReflectiveOperationException {
+        return state.freq.invoke(state.gen, (Object) state.bytes);
+    }
+
+    @Benchmark
+    public Object genIntArrayFreq(IntArray state) throws ReflectiveOperationException {
+        return state.freq.invoke(state.gen, state.words);
+    }
+
+    @Benchmark
+    public Object genIntArrayPack(IntArray state) throws ReflectiveOperationException {
+        return state.packer.invoke(null, (Object) state.bytes);
+    }
+}
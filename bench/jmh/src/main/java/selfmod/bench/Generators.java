@@ -0,0 +1,101 @@
+package selfmod.bench;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Reflective access to the generators.  They live in the unnamed
+ * package, which code in a named package cannot refer to.
+ */
+final class Generators {
+    private Generators() {
+    }
+
+    /**
+     * Returns a {@code GenByteArray} with the default solver and the
+     * given encoding, chunked if it is an array.
+     */
+    static Object byteArray(String encoding, Path sidecar) throws ReflectiveOperationException {
+        var type = Class.forName("GenByteArray");
+        var gen = type.getConstructor().newInstance();
+        var encodings = Class.forName("GenByteArray$Encoding");
+        gen = type.getMethod("encoded", encodings).invoke(gen, enumValue(encodings, encoding));
+        if (encoding.equals("ARRAY")) {
+            gen = chunked(type, gen);
+        }
+        if (sidecar != null) {
+            gen = type.getMethod("sidecar", Path.class).invoke(gen, sidecar);
+        }
+
+        return gen;
+    }
+
+    /**
+     * Returns a chunked {@code GenIntArray} of the given width.
+     */
+    static Object intArray(String width, boolean decode) throws ReflectiveOperationException {
+        var type = Class.forName("GenIntArray");
+        var gen = chunked(type, type.getConstructor().newInstance());
+        var widths = Class.forName("GenIntArray$Width");
+        gen = type.getMethod("width", widths).invoke(gen, enumValue(widths, width));
+
+        return type.getMethod("decoding", boolean.class).invoke(gen, decode);
+    }
+
+    /**
+     * Returns the {@code freq} method of {@code gen} that takes {@code
+     * parameter}.
+     */
+    static Method freq(Object gen, Class<?> parameter) throws NoSuchMethodException {
+        return gen.getClass().getMethod("freq", parameter);
+    }
+
+    /**
+     * Returns {@code GenIntArray.toIntArray} or {@code toLongArray}.
+     */
+    static Method packer(String width) throws ReflectiveOperationException {
+        return Class.forName("GenIntArray").getMethod(
+                width.equals("INT") ? "toIntArray" : "toLongArray", byte[].class);
+    }
+
+    /**
+     * Returns the words of {@code bytes} as {@code packer} packs them.
+     */
+    static Object pack(Method packer, byte[] bytes) throws ReflectiveOperationException {
+        var words = packer.invoke(null, (Object) bytes);
+        assert Array.getLength(words) > 0;
+
+        return words;
+    }
+
+    /**
+     * Returns {@code length} bytes whose distribution is skewed
+     * towards small values, like a class file.
+     */
+    static byte[] input(int length) {
+        var random = new Random(2718);
+        var bytes = new byte[length];
+
+        for (int i = 0; i < length; ++i) {
+            // squaring skews the values towards zero
+            int r = random.nextInt(256);
+            bytes[i] = (byte) (r * r >>> 8);
+        }
+
+        return bytes;
+    }
+
+    private static Object chunked(Class<?> type, Object gen) throws ReflectiveOperationException {
+        var styles = Class.forName(type.getName() + "$ChunkStyle");
+
+        return type.getMethod("chunked", int.class, styles, String.class)
+                .invoke(gen, 32 * 1024, enumValue(styles, "CLASSES"), "Payload");
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object enumValue(Class<?> type, String name) {
+        return Enum.valueOf((Class) type, name);
+    }
+}
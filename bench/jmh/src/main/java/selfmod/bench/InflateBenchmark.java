@@ -0,0 +1,159 @@
+package selfmod.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how {@code finl/Replacement1.doTheDeed} gets the class
+ * file it redefines itself with: decoding {@code replacement()},
+ * from the source or from a mapped sidecar file, against the gzip
+ * stream it used to inflate through.  {@link #codec} decodes the
+ * class file in each codec of {@code GenByteArray} on its own, and
+ * {@link #members} inflates a large payload in members of each size,
+ * which scales with the number of cores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InflateBenchmark {
+    @State(Scope.Benchmark)
+    public static class Program {
+        Method replacement;
+        Method decode;
+        Method map;
+        Path sidecar;
+        byte[] gzipped;
+
+        @Setup
+        public void setUp() throws Exception {
+            replacement = Class.forName("Replacement1").getDeclaredMethod("replacement");
+            replacement.setAccessible(true);
+            decode = Class.forName("Codec").getDeclaredMethod("decode", ByteBuffer.class);
+            decode.setAccessible(true);
+            map = Class.forName("Sidecar").getDeclaredMethod("map", Path.class, boolean.class);
+            map.setAccessible(true);
+
+            var payload = (byte[]) replacement.invoke(null);
+            sidecar = Files.createTempFile("inflatebench", ".payload");
+            var gen = Generators.byteArray("SIDECAR", sidecar);
+            Generators.freq(gen, byte[].class).invoke(gen, (Object) payload);
+
+            var bytes = new ByteArrayOutputStream();
+            try (var out = new GZIPOutputStream(bytes)) {
+                out.write((byte[]) decode.invoke(null, ByteBuffer.wrap(payload)));
+            }
+            gzipped = bytes.toByteArray();
+        }
+
+        @TearDown
+        public void delete() throws IOException {
+            Files.delete(sidecar);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Payload {
+        @Param({ "STORED", "DEFLATE", "DICTIONARY", "LZ" })
+        String codec;
+
+        Method decompress;
+        ByteBuffer payload;
+
+        @Setup
+        public void setUp(Program program) throws Exception {
+            var type = Class.forName("GenByteArray");
+            var codecs = Class.forName("GenByteArray$Codec");
+            var compress = type.getDeclaredMethod("compress", List.class, codecs, int.class);
+            compress.setAccessible(true);
+            decompress = type.getDeclaredMethod("decompress", ByteBuffer.class);
+            decompress.setAccessible(true);
+
+            var bytes = program.decode.invoke(null,
+                    ByteBuffer.wrap((byte[]) program.replacement.invoke(null)));
+            payload = (ByteBuffer) compress.invoke(null,
+                    List.of(ByteBuffer.wrap((byte[]) bytes)),
+                    codecs.getField(codec).get(null), 0);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Members {
+        @Param("32")
+        int megabytes;
+
+        /**
+         * The decoded size of a member, {@code 0} for a single deflate
+         * stream.
+         */
+        @Param({ "0", "262144", "1048576", "4194304" })
+        int memberSize;
+
+        Method decompress;
+        ByteBuffer payload;
+
+        @Setup
+        public void setUp() throws Exception {
+            var type = Class.forName("GenByteArray");
+            var codecs = Class.forName("GenByteArray$Codec");
+            var compress = type.getDeclaredMethod("compress", List.class, codecs, int.class);
+            compress.setAccessible(true);
+            decompress = type.getDeclaredMethod("decompress", ByteBuffer.class);
+            decompress.setAccessible(true);
+
+            payload = (ByteBuffer) compress.invoke(null,
+                    List.of(ByteBuffer.wrap(Generators.input(megabytes << 20))),
+                    codecs.getField("DEFLATE").get(null), memberSize);
+        }
+    }
+
+    @Benchmark
+    public Object replacement(Program program) throws Exception {
+        var payload = (byte[]) program.replacement.invoke(null);
+
+        return program.decode.invoke(null, ByteBuffer.wrap(payload));
+    }
+
+    @Benchmark
+    public Object sidecar(Program program) throws Exception {
+        return program.decode.invoke(null, program.map.invoke(null, program.sidecar, true));
+    }
+
+    @Benchmark
+    public byte[] gzipStream(Program program) throws IOException {
+        return new GZIPInputStream(new ByteArrayInputStream(program.gzipped)).readAllBytes();
+    }
+
+    @Benchmark
+    public Object codec(Payload payload) throws Exception {
+        return payload.decompress.invoke(null, payload.payload);
+    }
+
+    @Benchmark
+    public Object members(Members members) throws Exception {
+        return members.decompress.invoke(null, members.payload);
+    }
+}
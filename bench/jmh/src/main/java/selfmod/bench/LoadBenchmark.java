@@ -0,0 +1,128 @@
+package selfmod.bench;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.tools.ToolProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the code the generators write: the time to load, verify
+ * and initialise the class holding a generated {@code replacement()},
+ * and the time to the bytes of its first call.  Every invocation
+ * gets a fresh class loader so that nothing is loaded twice.
+ *
+ * <p>The payload is the class file of {@code GenByteArray}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 50)
+@Measurement(iterations = 200)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+    /**
+     * A {@code GenByteArray} encoding or {@code INT} or {@code LONG}
+     * for the decoding {@code GenIntArray}.
+     */
+    @Param({ "ARRAY", "LATIN1", "BASE64", "SIDECAR", "INT", "LONG" })
+    String encoding;
+
+    private byte[] payload;
+    private Path dir;
+    private URLClassLoader loader;
+
+    @Setup(Level.Trial)
+    public void compile() throws Exception {
+        try (var in = Class.forName("GenByteArray")
+                .getResourceAsStream("GenByteArray.class")) {
+            payload = in.readAllBytes();
+        }
+        dir = Files.createTempDirectory("loadbench");
+
+        String generated;
+        if (encoding.equals("INT") || encoding.equals("LONG")) {
+            var gen = Generators.intArray(encoding, true);
+            var words = Generators.pack(Generators.packer(encoding), payload);
+            generated = (String) Generators.freq(gen, words.getClass()).invoke(gen, words);
+        } else {
+            var sidecar = encoding.equals("SIDECAR") ? dir.resolve("payload") : null;
+            var gen = Generators.byteArray(encoding, sidecar);
+            generated = (String) Generators.freq(gen, byte[].class).invoke(gen, (Object) payload);
+        }
+
+        // anything after the ---8<--- line goes after the class
+        var marker = generated.indexOf(String.format("%n// ---8<---"));
+        var body = marker < 0 ? generated : generated.substring(0, marker);
+        var rest = marker < 0 ? "" : generated.substring(marker);
+        var source = dir.resolve("Init.java");
+        Files.write(source, String.format(
+                "public class Init {%n"
+                + "    private static byte[] replacement() {%n%s%n    }%n}%n%s%n",
+                body, rest).getBytes(UTF_8));
+
+        int status = ToolProvider.getSystemJavaCompiler().run(
+                null, null, null,
+                "-d", dir.toString(), source.toString());
+        if (status != 0) {
+            throw new IllegalStateException("javac failed: " + status);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newLoader() throws IOException {
+        loader = new URLClassLoader(new URL[] { dir.toUri().toURL() }, null);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeLoader() throws IOException {
+        loader.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Class<?> load() throws ClassNotFoundException {
+        return Class.forName("Init", true, loader);
+    }
+
+    @Benchmark
+    public byte[] firstCall() throws ReflectiveOperationException {
+        var method = Class.forName("Init", true, loader)
+                .getDeclaredMethod("replacement");
+        method.setAccessible(true);
+        var bytes = (byte[]) method.invoke(null);
+
+        if (!Arrays.equals(bytes, payload)) {
+            throw new AssertionError(encoding + " does not round trip");
+        }
+        return bytes;
+    }
+}
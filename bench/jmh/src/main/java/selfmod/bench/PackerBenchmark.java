@@ -0,0 +1,71 @@
+package selfmod.bench;
+
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the private line packer of {@code GenByteArray} on its
+ * own, one token for each of {@code size} bytes, written to a writer
+ * that discards them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PackerBenchmark {
+    private static final int LINE_LIMIT = 80;
+
+    @Param({ "1024", "1048576", "104857600" })
+    int size;
+
+    private byte[] bytes;
+    private String[] tokens;
+
+    private MethodHandle constructor;
+    private MethodHandle append;
+    private MethodHandle finish;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        bytes = Generators.input(size);
+        tokens = new String[256];
+        for (int b = 0; b < tokens.length; ++b) {
+            tokens[b] = Byte.toString((byte) b);
+        }
+
+        var packer = Class.forName("GenByteArray$LinePacker");
+        var lookup = MethodHandles.privateLookupIn(packer, MethodHandles.lookup());
+        constructor = lookup.findConstructor(packer, MethodType.methodType(
+                void.class, Writer.class, String.class, char.class, String.class, int.class));
+        append = lookup.findVirtual(packer, "append",
+                MethodType.methodType(void.class, String.class));
+        finish = lookup.findVirtual(packer, "finish", MethodType.methodType(void.class));
+    }
+
+    @Benchmark
+    public void append() throws Throwable {
+        var packer = constructor.invoke(
+                Writer.nullWriter(), "            ", ',', String.format(",%n"), LINE_LIMIT);
+        for (byte b : bytes) {
+            append.invoke(packer, tokens[b & 0xff]);
+        }
+        finish.invoke(packer);
+    }
+}
@@ -0,0 +1,220 @@
+package selfmod.bench;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.tools.ToolProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of a swap through {@code HotSwap} from {@code
+ * finl/Replacement1.java}: attaching for a single class as {@code
+ * doTheDeed} used to, against a live session redefining {@code batch}
+ * classes in one call.  The forked virtual machine debugs itself.
+ *
+ * <p>Every swap flips the classes between two versions, so that each
+ * redefinition changes a method, except in {@link #unchanged}, which
+ * measures what a swap costs when the session finds nothing to do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend =
+        "-agentlib:jdwp=transport=dt_socket,address=" + SwapBenchmark.PORT + ",server=y,suspend=n")
+public class SwapBenchmark {
+    static final int PORT = 27182;
+
+    private static final int CLASSES = 100;
+
+    /**
+     * The classes to swap, loaded, and the {@code HotSwap} methods.
+     * The debug agent takes one connection at a time, so the shared
+     * session is left to {@link Session}.
+     */
+    @State(Scope.Benchmark)
+    public static class Classes {
+        private Path dir;
+        private URLClassLoader loader;
+        private final List<Map<String, byte[]>> versions = new ArrayList<>();
+        private int version;
+
+        Class<?> hotSwap;
+        Method attach;
+        Method redefine;
+        Method close;
+
+        @Setup
+        public void setUp() throws Exception {
+            dir = Files.createTempDirectory("swapbench");
+            for (int v = 0; v < 2; ++v) {
+                versions.add(compile(dir.resolve("v" + v), v));
+            }
+
+            // load the classes so that there is something to redefine
+            loader = new URLClassLoader(new URL[] { dir.resolve("v0").toUri().toURL() }, null);
+            for (String name : versions.get(0).keySet()) {
+                Class.forName(name, true, loader);
+            }
+
+            hotSwap = Class.forName("HotSwap");
+            attach = hotSwap.getDeclaredMethod("attach", int.class);
+            attach.setAccessible(true);
+            redefine = hotSwap.getDeclaredMethod("redefine", Map.class);
+            redefine.setAccessible(true);
+            close = hotSwap.getDeclaredMethod("close");
+            close.setAccessible(true);
+        }
+
+        @TearDown
+        public void delete() throws IOException {
+            loader.close();
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+        }
+
+        /**
+         * Returns the first {@code count} classes in the version they
+         * are not in now.
+         */
+        Map<String, byte[]> next(int count) {
+            version ^= 1;
+            return current(count);
+        }
+
+        /**
+         * Returns the first {@code count} classes in the version they
+         * are in now.
+         */
+        Map<String, byte[]> current(int count) {
+            var classes = new LinkedHashMap<String, byte[]>();
+            for (var e : versions.get(version).entrySet()) {
+                if (classes.size() == count) {
+                    break;
+                }
+                classes.put(e.getKey(), e.getValue());
+            }
+
+            return classes;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Session {
+        @Param({ "1", "10", "100" })
+        int batch;
+
+        Object session;
+
+        @Setup
+        public void setUp(Classes classes) throws ReflectiveOperationException {
+            var sessionOf = classes.hotSwap.getDeclaredMethod("session", int.class);
+            sessionOf.setAccessible(true);
+            session = sessionOf.invoke(null, PORT);
+        }
+    }
+
+    /**
+     * One class, attaching and disposing of the connection around it.
+     * The debug agent listens again only some time after a debugger
+     * leaves, and that wait is part of the cost of attaching each time.
+     */
+    @Benchmark
+    public void attachEachSwap(Classes classes) throws ReflectiveOperationException {
+        Object swap = null;
+        while (swap == null) {
+            try {
+                swap = classes.attach.invoke(null, PORT);
+            } catch (InvocationTargetException e) {
+                if (!(e.getCause() instanceof ConnectException)) {
+                    throw e;
+                }
+                Thread.onSpinWait();
+            }
+        }
+        try {
+            classes.redefine.invoke(swap, classes.next(1));
+        } finally {
+            classes.close.invoke(swap);
+        }
+    }
+
+    /**
+     * {@code batch} classes through the live session.
+     */
+    @Benchmark
+    public void session(Classes classes, Session session) throws ReflectiveOperationException {
+        classes.redefine.invoke(session.session, classes.next(session.batch));
+    }
+
+    /**
+     * {@code batch} classes through the live session, in the version
+     * it last installed, which it skips without redefining anything.
+     */
+    @Benchmark
+    public void unchanged(Classes classes, Session session) throws ReflectiveOperationException {
+        classes.redefine.invoke(session.session, classes.current(session.batch));
+    }
+
+    /**
+     * Compiles {@code CLASSES} classes whose method returns {@code
+     * version} into {@code out} and returns their class files by name.
+     */
+    private static Map<String, byte[]> compile(Path out, int version) throws IOException {
+        Files.createDirectories(out);
+        var sources = new ArrayList<String>();
+        for (int c = 0; c < CLASSES; ++c) {
+            var source = out.resolve("Swap" + c + ".java");
+            Files.write(source, String.format(
+                    "public class Swap%d {%n"
+                    + "    public static int version() {%n"
+                    + "        return %d;%n"
+                    + "    }%n"
+                    + "}%n", c, version).getBytes(UTF_8));
+            sources.add(source.toString());
+        }
+
+        var args = new ArrayList<>(List.of("-d", out.toString()));
+        args.addAll(sources);
+        int status = ToolProvider.getSystemJavaCompiler().run(
+                null, null, null, args.toArray(new String[0]));
+        if (status != 0) {
+            throw new IllegalStateException("javac failed: " + status);
+        }
+
+        var classes = new LinkedHashMap<String, byte[]>();
+        for (int c = 0; c < CLASSES; ++c) {
+            classes.put("Swap" + c, Files.readAllBytes(out.resolve("Swap" + c + ".class")));
+        }
+
+        return classes;
+    }
+}
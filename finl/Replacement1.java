@@ -1,8 +1,14 @@
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.VMDisconnectedException;
+import com.sun.jdi.VirtualMachine;
 import com.sun.jdi.connect.AttachingConnector;
 
 /**
@@ -17,7 +23,7 @@ import com.sun.jdi.connect.AttachingConnector;
  *
  * <h3>Compilation Instructions</h3>
  * <pre>
- * javac Replacement1.java
+ * javac -d . Replacement1.java shared/*.java
  * </pre>
  *
  * <h3>Run instructions</h3>
@@ -26,16 +32,21 @@ import com.sun.jdi.connect.AttachingConnector;
  *         Replacement1
  * </pre>
  *
- * <h3>Alternative run instructions</h3>
+ * <p>The classes in {@code shared}, which read and check the
+ * replacement and keep the versions of the class, are compiled along
+ * with it, so it is no longer a single file program that {@code java
+ * Replacement1.java} could run.  Only {@code Replacement1} itself is
+ * redefined.
  *
- * <a href="https://openjdk.java.net/jeps/330">JEP 330</a> released in
- * Java 11 allows direct execution of single file Java programs
- * without the compilation step.  This program can also be run as follows:
- *
- * <pre>
- * java -agentlib:jdwp=transport=dt_socket,address=2718,server=y,suspend=n      \
- *         Replacement1.java
- * </pre>
+ * <p>With {@code -Dselfmod.sidecar=<file>} the replacement is read
+ * from a sidecar file written by {@code GenByteArray
+ * --encoding=sidecar} rather than from {@code replacement()}.  Only
+ * its header is checked, so that mapping it takes the same time
+ * however large it is; {@code -Dselfmod.sidecar.verify=true} checks
+ * its checksum as well.  With
+ * {@code -Dselfmod.rollback=true} it switches back to the class as it
+ * was loaded afterwards, which its {@code ReplacementRegistry} keeps
+ * ready.
  */
 public class Replacement1 {
     public static void main(String[] args)
@@ -53,6 +64,14 @@ public class Replacement1 {
 
         final var run2 = r.dwim(i, s, l);
         System.out.println(run2); // prints 2.718281828[4, 5]
+
+        if (Boolean.getBoolean("selfmod.rollback")) {
+            HotSwap.session(2718).redefine(Map.of("Replacement1",
+                    ReplacementRegistry.of(Replacement1.class).classFile(0)));
+
+            final var run3 = r.dwim(i, s, l);
+            System.out.println(run3); // prints 3.14159[2, 6, 53]
+        }
     }
 
     private final <T> String dwim(
@@ -63,6 +82,137 @@ public class Replacement1 {
     }
 
     private static final void doTheDeed() throws Exception {
+        var swap = SwapMetrics.begin("swap");
+        var sidecar = System.getProperty("selfmod.sidecar");
+        var build = SwapMetrics.begin("build");
+        var verify = Boolean.getBoolean("selfmod.sidecar.verify");
+        var payload = sidecar != null
+                ? Sidecar.map(Paths.get(sidecar), verify)
+                : ByteBuffer.wrap(replacement());
+        build.end(payload.remaining(), 0);
+
+        var decode = SwapMetrics.begin("decode");
+        var bytecode = Codec.decode(payload);
+        decode.end(bytecode.length, 1);
+
+        var versions = ReplacementRegistry.of(Replacement1.class);
+        var version = versions.add(bytecode);
+        HotSwap.session(2718).redefine(Map.of("Replacement1", versions.classFile(version)));
+        swap.end(bytecode.length, 1);
+    }
+
+    private static final byte[] replacement() {
+        String[] chunks = {
+            "\1\0\0\7\277\235U\335v\23U\24\376N~f\322\351P\332\320\26B\5E\213" +
+            "N\200\20\0134\225\244\24m\0026Z(\222X\304*:M\216\311$\223\231" +
+            "\2309)\364\t\274\367\312\307P/J\254k\261\270\3661|\0\37\201\305>" +
+            "\231\2244m\352\352b\326\232sf\177\363\355\275\277\275\347\2343" +
+            "\377\274\332}\1`\1\3174\314\340R\4\227#\270\22Ab\24W\221T\361" +
+            "\261\6E\242sr\2766\202\353\270\241a\36)i.H\316'*nJ\317\264\206\f" +
+            "\0265\334\302\222\34nk\370\24\237)\267_\326\377{Q\377\267\246a\f" +
+            "\313\222\221\215R\262\317\245\343J\24\f_\250\370\222AY\264\34K,1" +
+            "\4\215\370:C(\353\2269M\r\323r\30\246\215\215\325\232\271e&m\323" +
+            "\251$\13\242e9\225\214\244iw\236\225xSX\256\343\251X%~\371\251" +
+            "\325`X0\362\207\371>\322\26\226\235\\\265<\221\211\37\2460\214" +
+            "\24\254\212c\212v\213\222\27\26\213\351}\234\265\315\32/\211\314" +
+            "\3221b/^.\0263KGd(\273\305*\317q^f\30m\361\246m\226x\203;\202" +
+            "\304\33\361\215e\35\357\340\34\3\273Fw\212!0\177]\305=\35\367" +
+            "\261\306\240?\354\323\347\250eW\347n\314\315\337\324\361\1fU<" +
+            "\320\361\25\36\252(\350(\342k\35\37\341\234\216u<b\30?\250B\3077" +
+            "x\254\342[\35\33\370N\305\367:\236\340\7\35?\302T\261\251\243" +
+            "\204\262D\270\34~\"\367e\327\25\236h\231\315{\\T\335\262wRA%\202" +
+            "\252\16\0135\251\254\36\201-\215\306@*\277]\f\247\372\320\233" +
+            "\217\30506\3300*\324\245T+\306\341~\37\7\211\37\374\266\203Eo{" +
+            "\202\223\270\240\333\246DS>\327r\223\17\250\27\202:\302\315FfO" +
+            "\347 \314\2406\245e\223\342)c\370\22\fV\270\214j\344\343\207u1D" +
+            "\204\353s\31&\215\241\353a\242\217\345\35\301+\274E^M\263\345" +
+            "\361\274#\216H\233\37hk\266j\266\314\222\220\216\352\226i\267" +
+            "\371\32\265\362\214\221\335\237\356\rG\256\300\22\31\353\222\330" +
+            "\335m\331\201f\345\334\366\246M/F\273\22\366\254\241*r\22\317\r-" +
+            "jz\260\35\275\3022\32\34\270\264\260\31\303\351\206Y\347Y\327)" +
+            "\231\342\221%\252\364\344\t\323\21\236\214\231\35\0323e\274\345R" +
+            "\b\310|)\343\255N\4\25M\271\264\351C\314\366\337Y\316\226[\347=" +
+            "\212_\303]j\256\333\332V\261E\373r\325u\353\355&\355\327\274\343" +
+            "\360V\3266=\217Sa\277\355\227\320\213\341o\251\25\323)\333\334" +
+            "\233\365\0353G)=\354X\334n\362!\364\215#\373\262?D\326\264\355" +
+            "\202%8\25\371\224\341\342\261\2641\234\377\177\36.\320_a\6\362\n" +
+            "\323\341N\207\31\215\347\311\232\240\231I\364\322s\260?\272\204" +
+            "\21\274\213\367\20\350\276\316#\4\225\346[\321@4\30\ru\20\276" +
+            "\3777\224\307\317\241\246C\261\220\22\215$v0\222\16\377\t-\26" +
+            "\336\301h\7z\37U$\252\20\352\207\275@w\210r\275\217\250<\32{\tj" +
+            "\204Eh~\222\b\375\205\23\1\274\304X:\224\bv\237wp\262\203\361T8" +
+            "\21\3363\323JL!\350\327\16&v\20M\2513\277\\\351\340\224;\211\311" +
+            "z\7\3231\3227>\25.wpzJ\335\305\31\240\203\330.\316\2\277w\25\\" +
+            "\244;\200\17\t\240S\270\227\377\4\374\213\35\24y\26\6\342\275&" +
+            "\215u[D\316\314\17\24\200G\243F\350\317h\243\205\30r]V\0w\b\273" +
+            "\333\35\363\257\1",
+        };
+        byte[] bytes = new byte[958];
+        int offset = 0;
+        for (String chunk : chunks) {
+            byte[] decoded = chunk.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+            System.arraycopy(decoded, 0, bytes, offset, decoded.length);
+            offset += decoded.length;
+        }
+        return bytes;
+    }
+}
+
+/**
+ * A JDI session with a virtual machine listening on a socket, usually
+ * this one.  Attaching is by far the slowest part of a swap, so a
+ * session is attached once per port and kept for the life of the
+ * program, and a batch of classes is redefined in a single call.
+ *
+ * <p>Typical usage:
+ *
+ * <pre>{@code
+ * HotSwap.session(2718).redefine(Map.of(
+ *         "Foo", fooBytes,
+ *         "Bar", barBytes));
+ * }</pre>
+ */
+final class HotSwap implements AutoCloseable {
+    private static final Map<Integer, HotSwap> SESSIONS = new HashMap<>();
+    private static final boolean REPORT = Boolean.getBoolean("selfmod.report");
+
+    private final int port;
+    private final VirtualMachine vm;
+    private final Map<String, ReferenceType> types = new HashMap<>();
+    private final Map<String, ClassDigest> installed = new HashMap<>();
+    private int redefined;
+    private int avoided;
+
+    private HotSwap(int port, VirtualMachine vm) {
+        this.port = port;
+        this.vm = vm;
+    }
+
+    /**
+     * Returns the session with the virtual machine listening on {@code
+     * port}, attaching to it on first use or after it disconnected.
+     * The session is closed when this virtual machine shuts down.
+     */
+    static synchronized HotSwap session(int port) throws IOException {
+        var session = SESSIONS.get(port);
+        if (session == null) {
+            session = attach(port);
+            SESSIONS.put(port, session);
+
+            var closing = session;
+            Runtime.getRuntime().addShutdownHook(new Thread(closing::close));
+        }
+
+        return session;
+    }
+
+    /**
+     * Attaches a new session to the virtual machine listening on
+     * {@code port}.  Unlike {@link #session} it is not shared, and
+     * the caller must close it.
+     */
+    static HotSwap attach(int port) throws IOException {
+        var phase = SwapMetrics.begin("attach");
         var vmm = com.sun.jdi.Bootstrap.virtualMachineManager();
 
         AttachingConnector socketConnector = null;
@@ -72,74 +222,115 @@ public class Replacement1 {
                 break;
             }
         }
+        if (socketConnector == null) {
+            throw new IllegalStateException("no socket attaching connector");
+        }
 
         var defaultArguments = socketConnector.defaultArguments();
-        defaultArguments.get("port").setValue("2718");
+        defaultArguments.get("port").setValue(Integer.toString(port));
 
-        var vm = socketConnector.attach(defaultArguments);
-        var replacementReferenceType = vm.classesByName("Replacement1").stream()
-                .findFirst()
-                .orElseThrow();
-        var bytecode = new GZIPInputStream(new ByteArrayInputStream(replacement()))
-                .readAllBytes();
+        try {
+            var session = new HotSwap(port, socketConnector.attach(defaultArguments));
+            phase.end(0, 0);
+            return session;
+        } catch (com.sun.jdi.connect.IllegalConnectorArgumentsException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
 
-        vm.redefineClasses(Map.of(replacementReferenceType, bytecode));
+    /**
+     * Redefines the classes named by the keys of {@code classes} with
+     * the class files they map to, all at once.  If the virtual
+     * machine went away the shared session attaches again and the
+     * batch is retried once.
+     *
+     * <p>Every redefinition costs a safepoint and throws away the
+     * compiled code that depends on the class, so a class is skipped
+     * if its class file is the one this session last installed.  Run
+     * with {@code -Dselfmod.report=true} to see what was skipped and
+     * which methods changed.
+     */
+    void redefine(Map<String, byte[]> classes) throws IOException {
+        try {
+            redefineAll(classes);
+        } catch (VMDisconnectedException e) {
+            synchronized (HotSwap.class) {
+                if (SESSIONS.get(port) != this) {
+                    throw e;
+                }
+                SESSIONS.remove(port);
+            }
+            session(port).redefineAll(classes);
+        }
     }
 
-    private static final byte[] replacement() {
-        byte A=-19,B=-21,C=-30,D=-41,E=-59,F=-65,G=-67,H=-76,I=102,J=20,K=31;
-        byte L=41,M=-100,N=-109,O=-107,P=-114,Q=-113,R=-119,S=-118,T=-125;
-        byte U=-124,V=-121,W=110,X=117,Y=118,Z=126,a=-115,aa=-23,ab=-29;
-        byte ac=-31,ad=-35,ae=-46,af=-48,ag=-50,ah=-78,ai=-84,aj=-88,ak=104;
-        byte al=106,am=-101,an=-102,ao=-105,ap=-127,aq=-128,b=-110,c=101;
-        byte d=-103,e=-117,f=119,g=-126,h=-45,i=-68,j=-72,k=29,l=-90,m=114;
-        byte n=-15,o=-25,p=-49,q=-52,r=-79,s=-87,t=109,u=-108,v=-106,w=-111;
-        byte x=-116,y=-96,z=115;
-        return new byte[] {
-            K,e,8,8,5,113,-40,94,2,3,82,c,112,108,97,99,c,t,c,W,116,49,46,99,
-            108,97,z,z,0,-99,85,ad,Y,19,85,J,-2,78,Z,I,ae,aa,80,-38,af,22,66,
-            5,69,e,78,aq,16,11,52,O,-92,J,t,2,54,90,40,b,88,-60,42,58,77,P,
-            -55,36,N,d,-104,57,L,-12,9,i,-9,-54,-57,80,47,74,ai,107,r,j,-10,
-            49,124,0,K,ap,E,62,d,u,52,t,-22,-22,98,-42,an,z,I,127,-13,A,G,F,G,
-            o,M,51,-1,i,-38,125,1,96,1,p,52,q,-32,82,4,ao,35,j,18,65,98,J,87,
-            w,84,n,r,6,69,-94,z,m,-66,54,g,B,j,-95,97,30,L,105,46,72,ag,39,42,
-            W,74,p,H,-122,12,22,53,-36,-62,b,28,W,107,-8,J,-97,L,-73,95,-42,
-            -1,123,81,-1,-73,l,97,12,-53,b,w,a,82,ah,p,-91,ab,74,J,12,95,aj,
-            -8,b,65,89,H,28,75,44,49,4,a,-8,58,67,40,B,v,57,77,13,h,m,24,l,a,
-            a,-43,an,-71,c,38,t,h,s,36,11,-94,c,57,O,x,-92,105,f,-98,O,120,83,
-            88,-82,ab,s,88,37,Z,-7,s,-43,96,88,48,-14,V,-7,62,ae,22,v,-99,92,
-            -75,60,w,R,K,l,48,x,J,ai,S,99,S,Y,e,b,23,22,e,aa,125,M,-75,-51,26,
-            47,R,q,ae,49,98,47,94,46,22,51,75,71,100,40,-69,E,42,p,113,94,I,
-            24,t,n,l,t,v,120,T,59,g,-60,27,n,a,c,k,-17,-32,28,3,-69,70,f,S,33,
-            48,127,93,E,61,k,-9,r,-58,y,63,-20,h,o,aj,c,87,o,W,q,-51,-33,-44,
-            n,1,I,85,60,af,n,21,30,-86,40,-24,40,C,107,k,K,ac,M,P,X,60,98,24,
-            63,aj,66,-57,55,120,ai,C,91,k,27,-8,78,E,-9,58,-98,-32,7,k,63,-62,
-            84,r,s,-93,U,ah,68,j,28,Z,34,-9,c,D,21,-98,ak,d,-51,123,92,84,ad,
-            ah,f,82,65,37,g,-86,14,11,53,s,ai,30,ap,45,a,-58,64,42,F,93,12,
-            -89,-6,af,am,Q,E,48,54,-40,48,42,-44,-91,84,43,-58,ac,Z,K,7,R,K,
-            -4,-74,T,69,111,123,g,N,j,y,-37,l,68,83,62,D,m,N,15,aj,23,g,58,
-            -62,-51,70,I,79,o,32,q,y,54,-91,c,N,C,L,99,-8,18,12,86,j,x,al,-28,
-            ab,V,X,49,68,U,B,z,25,38,a,-95,B,97,-94,Q,-27,k,-63,43,i,69,94,77,
-            -77,-27,n,i,35,P,72,am,K,ak,107,-74,al,-74,q,b,-112,P,-22,v,105,
-            -73,-7,26,-75,-14,x,w,ad,-97,-18,13,71,-82,-64,18,25,B,b,-40,ad,t,
-            -39,ap,I,-27,-36,-10,l,77,47,70,-69,18,-10,ai,-95,42,m,18,p,13,45,
-            al,122,-80,k,G,-62,50,26,28,j,H,-80,25,-61,aa,-122,89,o,89,D,L,d,
-            C,w,37,-86,-12,-28,9,h,17,-98,x,d,k,26,51,c,i,-27,82,8,-56,124,L,
-            ab,-83,78,4,21,77,-71,H,aa,67,q,-10,-33,89,ag,v,91,o,61,S,95,-61,
-            93,al,-82,-37,-38,86,r,69,-5,m,-43,X,B,A,38,A,D,i,ab,-16,86,-42,
-            54,61,Q,83,97,F,A,ao,af,e,ac,111,s,21,h,L,-37,-36,am,-11,k,51,71,
-            L,61,-20,88,-36,W,-14,33,-12,a,35,-5,ah,63,68,-42,H,A,g,37,56,21,
-            -7,u,ac,C,r,H,49,M,-1,127,30,46,af,95,97,6,-14,10,h,ac,78,V,25,a,
-            o,-55,an,y,d,73,-12,ae,z,-80,63,-70,U,17,i,e,-9,16,-24,-66,ag,35,
-            4,O,-26,91,-47,64,52,24,13,X,16,-66,-1,55,u,-57,p,-95,l,67,r,-112,
-            18,a,36,Y,48,b,14,-1,9,45,22,-34,-63,ak,7,122,K,85,36,-86,16,-22,
-            V,G,64,f,-120,m,G,Q,aj,60,26,123,9,al,U,69,ak,Z,b,8,-3,-123,19,1,
-            i,-60,88,58,u,8,Y,-97,f,112,ah,T,n,84,56,17,-34,51,h,74,76,33,-24,
-            D,14,38,Y,16,77,s,51,F,92,aa,-32,u,59,R,-55,122,7,h,49,ae,55,62,
-            21,46,f,112,122,74,ad,E,25,y,T,-40,46,ag,2,F,f,21,92,-92,59,aq,15,
-            9,y,83,j,ao,-1,4,-4,e,k,J,121,22,6,C,G,38,a,X,91,68,ag,q,15,J,aq,
-            71,-93,70,-24,p,ak,-93,-123,24,m,93,86,0,f,8,-69,-37,k,-13,-81,1,
-            D,A,d,7,F,7,0,0,
-        };
+    private synchronized void redefineAll(Map<String, byte[]> classes) {
+        var definitions = new HashMap<ReferenceType, byte[]>(classes.size() * 2);
+        var digests = new HashMap<String, ClassDigest>(classes.size() * 2);
+        var outcomes = new ArrayList<String>(classes.size());
+        for (var e : classes.entrySet()) {
+            var digest = ClassDigest.of(e.getValue());
+            var before = installed.get(e.getKey());
+            if (before != null && digest.sameAs(before)) {
+                ++avoided;
+                report("%s unchanged, not redefined", e.getKey());
+                continue;
+            }
+            definitions.put(type(e.getKey()), e.getValue());
+            digests.put(e.getKey(), digest);
+            outcomes.add(before == null
+                    ? String.format("%s redefined for the first time", e.getKey())
+                    : String.format("%s redefined, changed %s", e.getKey(), digest.changedSince(before)));
+        }
+        if (definitions.isEmpty()) {
+            return;
+        }
+
+        var phase = SwapMetrics.begin("redefine");
+        vm.redefineClasses(definitions);
+        phase.end(definitions.values().stream().mapToLong(b -> b.length).sum(),
+                definitions.size());
+        installed.putAll(digests);
+        for (var outcome : outcomes) {
+            ++redefined;
+            report("%s", outcome);
+        }
+    }
+
+    private void report(String format, Object... args) {
+        if (REPORT) {
+            System.err.printf("HotSwap: %s (%d redefined, %d avoided)%n",
+                    String.format(format, args), redefined, avoided);
+        }
+    }
+
+    /**
+     * Returns the loaded class called {@code name}, looked up once per
+     * session, leaving out the copies {@code ReplacementRegistry}
+     * defines to verify them.
+     */
+    private ReferenceType type(String name) {
+        var type = types.get(name);
+        if (type == null) {
+            type = vm.classesByName(name).stream()
+                    .filter(t -> t.classLoader() == null
+                            || !t.classLoader().referenceType().name().equals(
+                                    ReplacementRegistry.Verifier.class.getName()))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException(
+                            "class not loaded: " + name));
+            types.put(name, type);
+        }
+
+        return type;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            vm.dispose();
+        } catch (VMDisconnectedException e) {
+            // nothing left to dispose of
+        }
     }
 }
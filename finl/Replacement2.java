@@ -1,18 +1,33 @@
-import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.nio.file.Files.newOutputStream;
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.WRITE;
-import static java.util.stream.Collectors.joining;
-
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.jar.JarOutputStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
 import java.util.jar.Manifest;
-import java.util.zip.ZipEntry;
 
+import com.sun.tools.attach.AttachNotSupportedException;
 import com.sun.tools.attach.VirtualMachine;
 
 /**
@@ -23,13 +38,29 @@ import com.sun.tools.attach.VirtualMachine;
  *
  * <h3>Compile Instructions</h3>
  * <pre>
- * javac Replacement2.java
+ * javac -d . Replacement2.java shared/*.java
  * </pre>
  *
  * <h3>Run Instructions</h3>
  * <pre>
  * java -cp . -Djdk.attach.allowAttachSelf=true Replacement2
  * </pre>
+ *
+ * <p>With {@code -Dselfmod.sidecar=<file>} the replacement is read
+ * from a sidecar file written by {@code GenByteArray
+ * --encoding=sidecar} rather than from {@code replacement()}.  Only
+ * its header is checked, so that mapping it takes the same time
+ * however large it is; {@code -Dselfmod.sidecar.verify=true} checks
+ * its checksum as well.  With
+ * {@code -Dselfmod.retransform=true} it is installed as a patch that
+ * a class file transformer applies whenever the class is
+ * retransformed or loaded again, rather than redefined once.  With
+ * {@code -Dselfmod.rollback=true} it switches back to the class as it
+ * was loaded afterwards, which its {@code ReplacementRegistry} keeps
+ * ready.
+ *
+ * <p>The classes in {@code shared} are the same ones Replacement1.java
+ * is compiled with.  Only {@code Replacement2} itself is redefined.
  */
 public class Replacement2 {
     public static void main(String[] args)
@@ -46,7 +77,15 @@ public class Replacement2 {
         doTheDeed();
 
         final var run2 = r.dwim(i, s, l);
-        System.out.println(run2); // prints 2.71828[1, 8, 2, 8]
+        System.out.println(run2); // prints 2.718281828[4, 5]
+
+        if (Boolean.getBoolean("selfmod.rollback")) {
+            AgentSwap.session().redefine(Map.of(Replacement2.class,
+                    ReplacementRegistry.of(Replacement2.class).classFile(0)));
+
+            final var run3 = r.dwim(i, s, l);
+            System.out.println(run3); // prints 3.14159[2, 6, 53]
+        }
     }
 
     private final <T> String dwim(
@@ -56,129 +95,1167 @@ public class Replacement2 {
         return String.format("%s%s%s", i, s, l);
     }
 
-    private static Instrumentation ageinst;
+    private static void doTheDeed() throws Exception {
+        var swap = SwapMetrics.begin("swap");
+        var sidecar = System.getProperty("selfmod.sidecar");
+        var build = SwapMetrics.begin("build");
+        var verify = Boolean.getBoolean("selfmod.sidecar.verify");
+        var payload = sidecar != null
+                ? Sidecar.map(Paths.get(sidecar), verify)
+                : ByteBuffer.wrap(replacement());
+        build.end(payload.remaining(), 0);
+
+        var decode = SwapMetrics.begin("decode");
+        var bytecode = Codec.decode(payload);
+        decode.end(bytecode.length, 1);
+
+        if (Boolean.getBoolean("selfmod.retransform")) {
+            AgentSwap.session().patch(Replacement2.class.getName(), bytecode);
+        } else {
+            var versions = ReplacementRegistry.of(Replacement2.class);
+            var version = versions.add(bytecode);
+            AgentSwap.session().redefine(Map.of(Replacement2.class, versions.classFile(version)));
+        }
+        swap.end(bytecode.length, 1);
+    }
+
+    private static final byte[] replacement() {
+        String[] chunks = {
+            "\1\0\0\be\235U\335V\33U\24\376N\0222a\30\241\4(\4\n\266\25tR~\"" +
+            "\264@K(U\2H4@m\"\265\242\325!9\rC&3qfB\213>\200w^x\345cT/h\212ku" +
+            "\365\332\307\360\1|\4\227\373L\2$$\270X&k\2359g\237o\177\347\333" +
+            "{\237\237?\3779~\3\340>~\224\341\203_B@A\33\202\fW\366\265\3-fhf" +
+            ">\266\265\273\317\263.CpQ7uw\211\301\257F\267C\b1\260\231\20d" +
+            "\372\314\205\2400\370fow\240\23]\22\256(\350F\230\241\323#)\273" +
+            "\272\21K\351\16Q\370\254g\f\353j\352<y\3742\226h\252\221..\241" +
+            "\227Ay\304K\206\226\345En\27232z\340\17\241\237\304NM\337\231" +
+            "\236\275'\f\21\5\203\30b\b\344\236\353E\206y5Y\307\235vm\335\314" +
+            "\307\317SG\233!\355\30\306\210\204w\25\\\307\215\206\4\245\17\35" +
+            "\227\23\263\337*S\214}UW\335\212=$?\227\274\271V\214\313x\17\243" +
+            "\22\306\24\274\217\17\30zZ`\30\244\222\30\31&\221\250\315\2\242" +
+            "\333\"\232\250\202[\242@\3559+\263\307W8\317\211\244O(\230\304" +
+            "\24I\310s!AMF\233\363'\341\303F\331\36\255\250\373\214\202\333" +
+            "\270\303\20r\255\252\221\241Wm\221\2\31s\230\227pW\301=,0t\237\1" +
+            "\222\246\313\363\334&\212\222f;\234\206\27\304\220\224\261\210" +
+            "\373\22\226\24<\300G'\211\360 \211=\315\326\262\256`\221\0164" +
+            "\243\314\267h\263\f\250\211z!\247\230\270\340YV\220\300\n\345\"K" +
+            "\346m\341\342m\316\204\2145|\"a]A\22\2376\304\274b\225w\rBux2OF-" +
+            "\225\256\4\37\274-\374\375\246\360\327\276\214\0306\205\336-\1]" +
+            "\271 1\237\13\304#\206\253\215\311\257e&\36\246c\226Q\360\5\266" +
+            "\31\372\213Z\201',3\253\271\217uw\217z\216\253\231\256#\350\23-" +
+            "\350E\205\277\24g\352\t\303\234\372\277\316J\30\f;b\371\257\317Q" +
+            "\\\376\0\320\tJX9JWWJ7\371f\271\270\313\355\214\346%0P\324tS\204" +
+            "\276\323j\3332\310\253/\262\274\344\352\24\250\204lC\325Og\250" +
+            "\214i=ojn\331&\306\364bf\2419\254\245K\234\335\305\361L&\276\324" +
+            ":\200\16\373\354\262 \325jtg\231\304\245\255\262\235\345k\272" +
+            "\210\244\273\376:\231\22\24\264\177\226-\313u\\[+mpw\317\3129]A" +
+            "\0302\2120%X\"\247%\206\321\263\325t\363\300*\360\332\242\325*" +
+            "\257\321\236\265\354C\206_\353S_\3VI\32753gpg4eY\205r)~Q\230\315" +
+            "\216\231\303\22o\1\337\271pS\324S$4\303H\353.\217\207@\307\216" +
+            "\261\20\304-\315\30\335\253I\323\344v\302\320\34\207S\321\2363" +
+            "\214]J\271\4\ns\344\277\241t=W\301\270A7\232\17\342\327F\33\224^" +
+            "\36j\277\241\3210}\231\260\336z\5\366\33u\30\236R\33\364\214\235" +
+            "h\307\267\370\216\34\5\324@\200\34\201\273a)\334\36\356\250\340" +
+            "\235\324\37\350y\362\n}\33\23\301\360\325\361#\fl\376\216k\223G" +
+            "\270Y\201zbZ\b\220-\22 \343\31\373M\204\250\355\201\214>\204\321" +
+            "\217!\f\220m\20c\270F7\3000\3461\2\215\20\1\302\357\22\202^\225" +
+            "\232\206\237\311&|\237N\6^c\334\207\267\210-\4&\375^\377\b\323" +
+            "\25\314\316\265M\266\235\f\27\202\221 \231~\251 ~\204\217\347" +
+            "\244\241\237&*X\265z\361Y\241\202\215H\200\346\372\332r\25<\354" +
+            "\223\216\221\6*x|\214\257\200\227\247JG Q;\n\205\264\r\211\27" +
+            "\205\376\263P\261\212(\351Q\221\243Y\378EBoEMc\4\325_S:'\352\202" +
+            "\32\3043\344k5\30\364f\211\210\275<\3471\5?\366\274%t\354{\5\361" +
+            "\241@3\337{\255\2032\331d\352\35\340\5~@\344_",
+        };
+        byte[] bytes = new byte[1061];
+        int offset = 0;
+        for (String chunk : chunks) {
+            byte[] decoded = chunk.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+            System.arraycopy(decoded, 0, bytes, offset, decoded.length);
+            offset += decoded.length;
+        }
+        return bytes;
+    }
+}
+
+/**
+ * The agent this program loads into itself, and the {@link
+ * Instrumentation} it is handed.  Attaching and loading the agent is
+ * by far the slowest part of a swap, so it is done once per virtual
+ * machine, from a jar that is written once per content into a
+ * private directory of this user's and reused by later runs.  The class files
+ * swapped in are built once per class too, which leaves later swaps
+ * with just the {@code redefineClasses} call.
+ *
+ * <p>Typical usage:
+ *
+ * <pre>{@code
+ * AgentSwap.session().redefine(Foo.class, () -> fooBytes());
+ * AgentSwap.session().redefine(Map.of(Foo.class, fooBytes, Bar.class, barBytes));
+ * }</pre>
+ */
+final class AgentSwap {
+    private static final boolean REPORT = Boolean.getBoolean("selfmod.report");
+    private static volatile Instrumentation instrumentation;
+    private static AgentSwap session;
+
+    private final Instrumentation inst;
+    private final Map<Class<?>, byte[]> classFiles = new HashMap<>();
+    private final Map<Class<?>, ClassDigest> installed = new HashMap<>();
+    private final Patcher patcher = new Patcher();
+    private boolean patching;
+    private int redefined;
+    private int avoided;
+
+    private AgentSwap(Instrumentation inst) {
+        this.inst = inst;
+    }
+
+    /**
+     * Builds the class file a class is redefined with.
+     */
+    interface ClassFile {
+        byte[] build() throws IOException;
+    }
 
     public static void agentmain(
             @SuppressWarnings("unused") String args,
             Instrumentation inst) {
-        ageinst = inst;
+        instrumentation = inst;
     }
 
-    private static void doTheDeed() throws Exception {
-        var manifestEntries = List.of(
-                "Implementation-Title: selfmod",
-                "Implementation-Version: 0.0.1",
-                "Agent-Class: Replacement2",
-                "Can-Redefine-Classes: true",
-                "Can-Retransform-Classes: true",
-                "Can-Set-Native-Method-Prefix: false");
+    /**
+     * Returns the session of this virtual machine, loading the agent
+     * on first use.  That needs {@code -Djdk.attach.allowAttachSelf=true}.
+     */
+    static synchronized AgentSwap session() throws IOException {
+        if (session == null) {
+            var attach = SwapMetrics.begin("attach");
+            var vm = attachSelf();
+            attach.end(0, 0);
+            try {
+                var write = SwapMetrics.begin("agentJar");
+                var jar = agentJar();
+                write.end(Files.size(jar), 0);
 
+                var load = SwapMetrics.begin("loadAgent");
+                vm.loadAgent(jar.toString());
+                load.end(0, 0);
+            } catch (com.sun.tools.attach.AgentLoadException
+                    | com.sun.tools.attach.AgentInitializationException e) {
+                throw new IOException(e);
+            } finally {
+                vm.detach();
+            }
+            if (instrumentation == null) {
+                throw new IllegalStateException("agent not loaded");
+            }
+            session = new AgentSwap(instrumentation);
+        }
+
+        return session;
+    }
+
+    private static VirtualMachine attachSelf() throws IOException {
+        try {
+            return VirtualMachine.attach(Long.toString(ProcessHandle.current().pid()));
+        } catch (AttachNotSupportedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns the agent jar, which holds nothing but its manifest, in
+     * the private directory of {@link PrivateFiles}.
+     */
+    static Path agentJar() throws IOException {
         var manifest = new Manifest();
-        manifest.read(new ByteArrayInputStream(manifestEntries.stream()
-                .collect(joining("\n"))
-                .getBytes(UTF_8)));
+        var attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(Attributes.Name.IMPLEMENTATION_TITLE, "selfmod");
+        attributes.put(Attributes.Name.IMPLEMENTATION_VERSION, "0.0.1");
+        attributes.putValue("Agent-Class", AgentSwap.class.getName());
+        attributes.putValue("Can-Redefine-Classes", "true");
+        attributes.putValue("Can-Retransform-Classes", "true");
+        attributes.putValue("Can-Set-Native-Method-Prefix", "false");
 
-        var jarFile = Paths.get("selfmod.jar");
-        try (var out = newOutputStream(jarFile, WRITE, CREATE)) {
-            var jout = new JarOutputStream(out);
+        return PrivateFiles.agentJar(manifest, Map.of());
+    }
+
+    /**
+     * Redefines {@code type} with the class file {@code classFile}
+     * builds, which is only built the first time the class is
+     * redefined.
+     */
+    void redefine(Class<?> type, ClassFile classFile)
+            throws IOException, ClassNotFoundException, UnmodifiableClassException {
+        byte[] bytes;
+        synchronized (this) {
+            bytes = classFiles.get(type);
+            if (bytes == null) {
+                bytes = classFile.build();
+                classFiles.put(type, bytes);
+            }
+        }
 
-            jout.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
-            jout.write(manifestEntries.stream()
-                    .collect(joining("\n"))
-                    .getBytes(UTF_8));
-            jout.closeEntry();
+        redefine(Map.of(type, bytes));
+    }
 
-            jout.putNextEntry(new ZipEntry("Replacement.class"));
-            jout.write(replacement());
-            jout.closeEntry();
-            jout.finish();
+    /**
+     * Redefines the classes that are the keys of {@code classes} with
+     * the class files they map to, all at once.
+     *
+     * <p>Every redefinition costs a safepoint and throws away the
+     * compiled code that depends on the class, so a class is skipped
+     * if its class file is the one this session last installed.  Run
+     * with {@code -Dselfmod.report=true} to see what was skipped and
+     * which methods changed.
+     */
+    synchronized void redefine(Map<Class<?>, byte[]> classes)
+            throws ClassNotFoundException, UnmodifiableClassException {
+        var definitions = new ArrayList<ClassDefinition>(classes.size());
+        var digests = new HashMap<Class<?>, ClassDigest>(classes.size() * 2);
+        var outcomes = new ArrayList<String>(classes.size());
+        for (var e : classes.entrySet()) {
+            var name = e.getKey().getName();
+            var digest = ClassDigest.of(e.getValue());
+            var before = installed.get(e.getKey());
+            if (before != null && digest.sameAs(before)) {
+                ++avoided;
+                report("%s unchanged, not redefined", name);
+                continue;
+            }
+            definitions.add(new ClassDefinition(e.getKey(), e.getValue()));
+            digests.put(e.getKey(), digest);
+            outcomes.add(before == null
+                    ? String.format("%s redefined for the first time", name)
+                    : String.format("%s redefined, changed %s", name, digest.changedSince(before)));
+        }
+        if (definitions.isEmpty()) {
+            return;
         }
-        jarFile.toFile().deleteOnExit();
 
-        var vm = VirtualMachine.attach("" + ProcessHandle.current().pid());
+        var phase = SwapMetrics.begin("redefine");
+        inst.redefineClasses(definitions.toArray(new ClassDefinition[0]));
+        phase.end(digests.keySet().stream().mapToLong(c -> classes.get(c).length).sum(),
+                definitions.size());
+        installed.putAll(digests);
+        for (var outcome : outcomes) {
+            ++redefined;
+            report("%s", outcome);
+        }
+    }
 
-        vm.loadAgent("selfmod.jar");
+    /**
+     * Redefines the loaded classes named by the keys of {@code
+     * classes}, in every class loader that loaded them, as {@link
+     * #redefine(Map)} does, but for the copies {@code
+     * ReplacementRegistry} defines to verify them.  This takes the
+     * bundles {@code GenByteArray} generates from a directory or a jar
+     * as they are.
+     */
+    void redefineNamed(Map<String, byte[]> classes)
+            throws ClassNotFoundException, UnmodifiableClassException {
+        var types = new HashMap<Class<?>, byte[]>(classes.size() * 2);
+        for (Class<?> type : inst.getAllLoadedClasses()) {
+            var bytes = classes.get(type.getName());
+            if (bytes != null
+                    && !(type.getClassLoader() instanceof ReplacementRegistry.Verifier)) {
+                types.put(type, bytes);
+            }
+        }
 
-        ageinst.redefineClasses(new ClassDefinition(
-                Replacement2.class,
-                replacement()));
+        redefine(types);
     }
 
-    private static final byte[] replacement() {
-        byte x=10,N=11,s=12,J=16,H=18,I=21,K=25,P=33,X=36,v=40,w=41,L=45,d=47;
-        byte Y=49,Q=54,M=58,n=59,Z=62,E=67,R=68,B=-72,T=72,D=73,G=-74,m=76;
-        byte U=77,S=-79,F=79,q=83,V=84,W=86,a=97,C=98,y=99,t=100,f=101,e=103;
-        byte A=104,i=105,g=106,u=107,h=108,r=109,b=110,l=111,z=112,k=114;
-        byte o=115,c=116,p=117,j=118,O=121;
-        return new byte[] {
-            -54,-2,-70,-66,0,0,0,55,0,124,x,0,28,0,L,8,0,46,8,0,d,8,0,48,N,0,
-            Y,0,50,7,0,51,x,0,6,0,L,8,0,52,x,0,6,0,53,9,0,Q,0,55,x,0,56,0,57,
-            x,0,6,0,M,N,0,Y,0,n,7,0,60,x,0,28,0,61,x,0,Z,0,63,x,0,64,0,65,x,0,
-            64,0,66,x,0,E,0,R,6,63,-64,u,-18,-66,u,-30,g,x,0,14,0,69,x,0,Z,0,
-            70,H,0,0,0,74,N,0,Y,0,75,H,0,1,0,U,9,0,6,0,78,7,0,F,1,0,7,a,e,f,i,
-            b,o,c,1,0,38,m,g,a,j,a,d,h,a,b,e,d,i,b,o,c,k,p,r,f,b,c,d,D,b,o,c,
-            k,p,r,f,b,c,a,c,i,l,b,n,1,0,6,60,i,b,i,c,Z,1,0,3,v,w,W,1,0,4,E,l,
-            t,f,1,0,4,r,a,i,b,1,0,22,v,91,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,n,
-            w,W,1,0,x,69,120,y,f,z,c,i,l,b,o,7,0,80,1,0,4,t,119,i,r,1,0,55,v,
-            D,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,n,m,g,a,j,a,d,p,c,i,h,d,m,i,o,
-            c,n,w,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,n,1,0,9,q,i,e,b,a,c,p,k,f,
-            1,0,q,60,V,M,m,g,a,j,a,d,h,a,b,e,d,F,C,g,f,y,c,n,Z,v,D,m,g,a,j,a,
-            d,h,a,b,e,d,q,c,k,i,b,e,n,m,g,a,j,a,d,p,c,i,h,d,m,i,o,c,60,43,V,V,
-            n,Z,n,w,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,n,1,0,9,a,e,f,b,c,r,a,i,
-            b,1,0,n,v,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,n,m,g,a,j,a,d,h,a,b,e,
-            d,i,b,o,c,k,p,r,f,b,c,d,D,b,o,c,k,p,r,f,b,c,a,c,i,l,b,n,w,W,1,0,9,
-            t,l,V,A,f,R,f,f,t,s,0,31,0,32,1,0,1,50,1,0,1,Q,1,0,2,53,51,7,0,81,
-            s,0,82,0,q,1,0,s,82,f,z,h,a,y,f,r,f,b,c,50,1,0,6,46,Y,52,Y,53,57,
-            s,0,38,0,39,7,0,V,s,0,85,0,W,7,0,87,s,0,88,0,89,s,0,44,0,32,s,0,
-            90,0,91,1,0,J,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,s,0,92,0,93,7,0,94,
-            s,0,95,0,96,7,0,a,s,0,C,0,y,s,0,t,0,f,7,0,102,s,0,e,0,A,s,0,C,0,i,
-            s,0,C,0,g,1,0,J,66,l,l,c,o,c,k,a,z,U,f,c,A,l,t,o,15,6,0,u,8,0,h,s,
-            0,r,0,b,s,0,82,0,l,8,0,z,s,0,r,0,113,s,0,29,0,30,1,0,J,g,a,j,a,d,
-            h,a,b,e,d,F,C,g,f,y,c,1,0,19,g,a,j,a,d,h,a,b,e,d,69,120,y,f,z,c,i,
-            l,b,1,0,14,g,a,j,a,d,p,c,i,h,d,m,i,o,c,1,0,2,l,102,1,0,T,v,m,g,a,
-            j,a,d,h,a,b,e,d,F,C,g,f,y,c,n,m,g,a,j,a,d,h,a,b,e,d,F,C,g,f,y,c,n,
-            m,g,a,j,a,d,h,a,b,e,d,F,C,g,f,y,c,n,w,m,g,a,j,a,d,p,c,i,h,d,m,i,o,
-            c,n,1,0,J,g,a,j,a,d,h,a,b,e,d,q,O,o,c,f,r,1,0,3,l,p,c,1,0,I,m,g,a,
-            j,a,d,i,l,d,80,k,i,b,c,q,c,k,f,a,r,n,1,0,19,g,a,j,a,d,i,l,d,80,k,
-            i,b,c,q,c,k,f,a,r,1,0,7,z,k,i,b,c,h,b,1,0,I,v,m,g,a,j,a,d,h,a,b,e,
-            d,q,c,k,i,b,e,n,w,W,1,0,3,e,f,c,1,0,I,v,D,w,m,g,a,j,a,d,h,a,b,e,d,
-            F,C,g,f,y,c,n,1,0,8,c,l,q,c,k,i,b,e,1,0,20,v,w,m,g,a,j,a,d,h,a,b,
-            e,d,q,c,k,i,b,e,n,1,0,17,g,a,j,a,d,h,a,b,e,d,D,b,c,f,e,f,k,1,0,8,
-            z,a,k,o,f,D,b,c,1,0,I,v,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,n,w,D,1,
-            0,19,g,a,j,a,d,h,a,b,e,d,E,A,a,k,a,y,c,f,k,1,0,7,j,a,h,p,f,F,102,
-            1,0,24,v,E,w,m,g,a,j,a,d,h,a,b,e,d,E,A,a,k,a,y,c,f,k,n,1,0,9,y,A,
-            a,k,W,a,h,p,f,1,0,3,v,w,E,1,0,J,g,a,j,a,d,h,a,b,e,d,R,l,p,C,h,f,1,
-            0,N,z,a,k,o,f,R,l,p,C,h,f,1,0,I,v,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,
-            e,n,w,R,1,0,I,v,R,w,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,n,1,0,22,v,
-            D,w,m,g,a,j,a,d,h,a,b,e,d,D,b,c,f,e,f,k,n,x,0,k,0,o,1,0,1,1,1,0,
-            23,r,a,u,f,E,l,b,y,a,c,87,i,c,A,E,l,b,o,c,a,b,c,o,1,0,I,v,E,w,m,g,
-            a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,n,1,0,Q,v,m,g,a,j,a,d,h,a,b,e,d,F,C,
-            g,f,y,c,n,m,g,a,j,a,d,h,a,b,e,d,F,C,g,f,y,c,n,w,m,g,a,j,a,d,p,c,i,
-            h,d,m,i,o,c,n,1,0,2,1,1,1,0,Q,v,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,
-            n,m,g,a,j,a,d,p,c,i,h,d,m,i,o,c,n,w,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,
-            b,e,n,7,0,c,s,0,r,0,120,1,0,X,g,a,j,a,d,h,a,b,e,d,i,b,j,l,u,f,d,q,
-            c,k,i,b,e,E,l,b,y,a,c,70,a,y,c,l,k,O,7,0,122,1,0,6,m,l,l,u,p,z,1,
-            0,s,D,b,b,f,k,E,h,a,o,o,f,o,1,0,-104,v,m,g,a,j,a,d,h,a,b,e,d,i,b,
-            j,l,u,f,d,U,f,c,A,l,t,T,a,b,t,h,f,o,X,m,l,l,u,p,z,n,m,g,a,j,a,d,h,
-            a,b,e,d,q,c,k,i,b,e,n,m,g,a,j,a,d,h,a,b,e,d,i,b,j,l,u,f,d,U,f,c,A,
-            l,t,V,O,z,f,n,m,g,a,j,a,d,h,a,b,e,d,q,c,k,i,b,e,n,91,m,g,a,j,a,d,
-            h,a,b,e,d,F,C,g,f,y,c,n,w,m,g,a,j,a,d,h,a,b,e,d,i,b,j,l,u,f,d,E,a,
-            h,h,q,i,c,f,n,7,0,123,1,0,37,g,a,j,a,d,h,a,b,e,d,i,b,j,l,u,f,d,U,
-            f,c,A,l,t,T,a,b,t,h,f,o,X,m,l,l,u,p,z,1,0,30,g,a,j,a,d,h,a,b,e,d,
-            i,b,j,l,u,f,d,U,f,c,A,l,t,T,a,b,t,h,f,o,0,P,0,6,0,28,0,0,0,1,0,x,
-            0,29,0,30,0,0,0,5,0,1,0,31,0,32,0,1,0,P,0,0,0,17,0,1,0,1,0,0,0,5,
-            42,-73,0,1,S,0,0,0,0,0,9,0,34,0,35,0,2,0,P,0,0,0,D,0,4,0,7,0,0,0,
-            61,H,2,H,3,H,4,B,0,5,78,-69,0,6,89,-73,0,7,M,4,K,4,6,H,8,L,G,0,9,
-            M,5,-78,0,x,K,5,G,0,N,B,0,s,K,4,6,H,8,L,G,0,9,M,6,-78,0,x,K,6,G,0,
-            N,S,0,0,0,0,0,X,0,0,0,4,0,1,0,37,0,H,0,38,0,39,0,2,0,P,0,0,0,g,0,
-            4,0,8,0,0,0,94,L,4,-71,0,13,2,0,-64,0,14,M,4,L,3,-71,0,13,2,0,G,0,
-            15,B,0,J,Q,5,L,5,-71,0,13,2,0,G,0,15,M,6,K,6,B,0,J,-110,B,0,17,G,
-            0,H,Q,7,27,-121,44,B,0,19,l,20,0,20,u,B,0,22,K,4,B,0,J,I,5,t,B,0,
-            23,I,7,-70,0,24,0,0,B,0,K,-70,0,26,0,0,-80,0,0,0,0,0,v,0,0,0,2,0,
-            w,0,9,0,42,0,43,0,1,0,P,0,0,0,17,0,1,0,2,0,0,0,5,43,-77,0,27,S,0,
-            0,0,0,0,x,0,44,0,32,0,2,0,P,0,0,0,13,0,0,0,0,0,0,0,1,S,0,0,0,0,0,
-            X,0,0,0,4,0,1,0,37,0,2,0,119,0,0,0,x,0,1,0,p,0,O,0,j,0,K,0,71,0,0,
-            0,14,0,2,0,T,0,1,0,D,0,T,0,1,0,m,
-        };
+    /**
+     * Patches {@code type} with the class file {@code classFile}
+     * builds, which is only built the first time, in every class
+     * loader it is loaded by now or later.
+     *
+     * @see #patch(String, byte[])
+     */
+    void patch(Class<?> type, ClassFile classFile)
+            throws IOException, UnmodifiableClassException {
+        byte[] bytes;
+        synchronized (this) {
+            bytes = classFiles.get(type);
+            if (bytes == null) {
+                bytes = classFile.build();
+                classFiles.put(type, bytes);
+            }
+        }
+
+        patch(type.getName(), bytes);
+    }
+
+    /**
+     * Patches the class called {@code name} with {@code classFile}, in
+     * every class loader it is loaded by now or later, rather than
+     * redefining a single class once.  A class file transformer swaps
+     * in the patch whenever the class is loaded or retransformed, by
+     * this session or by any other agent, and keeps the patch in
+     * place when the class is redefined.
+     *
+     * <p>The patch is applied method by method: only the code of the
+     * methods that differ, and that both the patch and the class file
+     * the transformer is given have, is spliced into that class file
+     * with {@link MethodSplice}, so what other agents did to the rest
+     * of the class stays.  Where there is no such method, or its code
+     * cannot be spliced as it is, the patch replaces the class whole,
+     * but only if that keeps the methods of a class being
+     * retransformed, which redefinition requires.  The outcome is
+     * cached by the digest of the class file the transformer is
+     * given, so a class loaded by many loaders, or retransformed
+     * again, is only looked at once.
+     *
+     * @throws IllegalStateException if the patch could not be applied
+     * to a loaded class
+     */
+    void patch(String name, byte[] classFile) throws UnmodifiableClassException {
+        synchronized (this) {
+            if (!patching) {
+                inst.addTransformer(patcher, true);
+                patching = true;
+            }
+        }
+        patcher.put(name.replace('.', '/'), classFile);
+
+        var loaded = new ArrayList<Class<?>>();
+        for (Class<?> type : inst.getAllLoadedClasses()) {
+            if (type.getName().equals(name) && inst.isModifiableClass(type)) {
+                loaded.add(type);
+            }
+        }
+        if (loaded.isEmpty()) {
+            return;
+        }
+
+        var phase = SwapMetrics.begin("retransform");
+        patcher.leftAlone();
+        inst.retransformClasses(loaded.toArray(new Class<?>[0]));
+        phase.end((long) classFile.length * loaded.size(), loaded.size());
+        var leftAlone = patcher.leftAlone();
+        if (!leftAlone.isEmpty()) {
+            throw new IllegalStateException("patch of " + name + " not applied: "
+                    + String.join("; ", leftAlone));
+        }
+    }
+
+    private void report(String format, Object... args) {
+        if (REPORT) {
+            System.err.printf("AgentSwap: %s (%d redefined, %d avoided)%n",
+                    String.format(format, args), redefined, avoided);
+        }
+    }
+
+    /**
+     * Applies the patches of {@link #patch(String, byte[])}, and keeps
+     * the classes a retransform on this thread could not patch, and
+     * why.
+     */
+    private static final class Patcher implements ClassFileTransformer {
+        private final Map<String, Patch> patches = new ConcurrentHashMap<>();
+        private final ThreadLocal<List<String>> leftAlone = ThreadLocal.withInitial(ArrayList::new);
+
+        void put(String name, byte[] classFile) {
+            var patch = patches.get(name);
+            if (patch == null || !Arrays.equals(patch.classFile, classFile)) {
+                patches.put(name, new Patch(classFile));
+            }
+        }
+
+        /**
+         * Returns the classes not patched since the last call, and
+         * forgets them.
+         */
+        List<String> leftAlone() {
+            var classes = new ArrayList<>(leftAlone.get());
+            leftAlone.get().clear();
+            return classes;
+        }
+
+        @Override
+        public byte[] transform(
+                ClassLoader loader,
+                String className,
+                Class<?> classBeingRedefined,
+                ProtectionDomain protectionDomain,
+                byte[] classfileBuffer) {
+            var patch = className == null ? null : patches.get(className);
+            if (patch == null) {
+                return null;
+            }
+
+            boolean retransforming = classBeingRedefined != null;
+            try {
+                var outcome = patch.apply(className, retransforming, classfileBuffer);
+                if (!outcome.applied && retransforming) {
+                    leftAlone.get().add(className + " " + outcome.description);
+                }
+                return outcome.classFile;
+            } catch (RuntimeException e) {
+                // an exception would be silently dropped by the JVM
+                System.getLogger(AgentSwap.class.getName()).log(System.Logger.Level.WARNING,
+                        "patch of " + className + " failed", e);
+                if (retransforming) {
+                    leftAlone.get().add(className + " failed: " + e);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * What a patch made of a class file: the class file to use
+     * instead, or {@code null} to leave it alone, whether the class
+     * then has the code of the patch, and why.
+     */
+    private static final class Outcome {
+        final byte[] classFile;
+        final boolean applied;
+        final String description;
+
+        Outcome(byte[] classFile, boolean applied, String description) {
+            this.classFile = classFile;
+            this.applied = applied;
+            this.description = description;
+        }
+    }
+
+    /**
+     * A patch, and what it made of each class file it was given, by
+     * the SHA-256 of that class file.  Classes being defined and
+     * being retransformed are kept apart, since only the latter must
+     * keep their methods.
+     */
+    private static final class Patch {
+        private final byte[] classFile;
+        private final ClassDigest digest;
+        private final Map<ByteBuffer, Outcome> defined = new ConcurrentHashMap<>();
+        private final Map<ByteBuffer, Outcome> retransformed = new ConcurrentHashMap<>();
+
+        Patch(byte[] classFile) {
+            this.classFile = classFile;
+            this.digest = ClassDigest.of(classFile);
+        }
+
+        /**
+         * Splices the methods that changed and that both classes
+         * have into {@code input}.  If there are none, or they cannot
+         * be spliced, the patch replaces the class whole, unless the
+         * class is being retransformed and has other methods than the
+         * patch, which redefinition does not allow.
+         */
+        Outcome apply(String className, boolean retransforming, byte[] input) {
+            var outcomes = retransforming ? retransformed : defined;
+            var key = ByteBuffer.wrap(sha256(input));
+            var cached = outcomes.get(key);
+            if (cached != null) {
+                report(className, cached.description + ", from cache");
+                return cached;
+            }
+
+            var before = ClassDigest.of(input);
+            var changed = digest.changedSince(before);
+            var common = new TreeSet<>(changed);
+            common.retainAll(before.methods());
+            common.retainAll(digest.methods());
+            var spliced = common.isEmpty()
+                    ? Optional.<byte[]>empty()
+                    : MethodSplice.splice(input, classFile, common);
+            Outcome outcome;
+            if (changed.isEmpty()) {
+                outcome = new Outcome(null, true, "left alone, nothing to change");
+            } else if (spliced.isPresent()) {
+                var missing = new TreeSet<>(changed);
+                missing.removeAll(common);
+                outcome = new Outcome(spliced.get(), true, "patched, spliced " + common
+                        + (missing.isEmpty() ? "" : ", without " + missing));
+            } else if (retransforming && !digest.sameMethods(before)) {
+                outcome = new Outcome(null, false, "left alone, its methods differ from the patch"
+                        + " and " + (common.isEmpty() ? "none changed" : common + " cannot be spliced"));
+            } else {
+                outcome = new Outcome(classFile, true, "replaced whole, changed " + changed);
+            }
+            report(className, outcome.description);
+
+            outcomes.put(key, outcome);
+            return outcome;
+        }
+
+        private static byte[] sha256(byte[] bytes) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(bytes);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void report(String className, String outcome) {
+            if (REPORT) {
+                System.err.printf("AgentSwap: %s %s%n", className, outcome);
+            }
+        }
+    }
+}
+
+/**
+ * Splices the code of some methods of one version of a class into
+ * another version of it, which keeps whatever else the other version
+ * holds: its fields, its attributes and the code of its other
+ * methods, as another agent may have left them.  The constants the
+ * spliced code refers to are looked up in the constant pool of the
+ * class spliced into, and added to its end if it has none equal to
+ * them, together with the bootstrap methods they need.
+ *
+ * <p>The code is copied instruction by instruction, and its stack
+ * map, exception handlers and local variable tables with it.  Other
+ * attributes of the code are left out, and those of the method, such
+ * as its annotations and signature, stay as they were.
+ */
+final class MethodSplice {
+    private final Pool target;
+    private final Pool source;
+    private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+    private final List<byte[]> bootstrapMethods = new ArrayList<>();
+    private final Map<String, Integer> bootstrapIndex = new HashMap<>();
+    private final Map<Integer, Integer> copied = new HashMap<>();
+    private int count;
+
+    private MethodSplice(byte[] target, byte[] source) {
+        this.target = new Pool(target);
+        this.source = new Pool(source);
+        this.count = this.target.offsets.length;
+        this.target.index();
+        for (int i = 0; i < this.target.bootstrapMethods.size(); ++i) {
+            bootstrapMethods.add(this.target.bootstrapMethods.get(i));
+            bootstrapIndex.putIfAbsent(this.target.bootstrapKey(i), i);
+        }
+    }
+
+    /**
+     * Returns {@code target} with the code of {@code methods}, by name
+     * and descriptor, taken from {@code source}.  It is empty if that
+     * takes more than copying the code: if either class lacks one of
+     * the methods or its code, if {@code source} is of a later class
+     * file version, if an {@code ldc} would refer to a constant past
+     * the 256th, or if the constant pool would grow too large.
+     */
+    static Optional<byte[]> splice(byte[] target, byte[] source, Set<String> methods) {
+        var splice = new MethodSplice(target, source);
+        if (splice.source.major() > splice.target.major()) {
+            return Optional.empty();
+        }
+
+        return splice.splice(methods);
+    }
+
+    private Optional<byte[]> splice(Set<String> methods) {
+        var codes = new HashMap<String, byte[]>();
+        for (String method : methods) {
+            var range = source.code(method);
+            var code = range == null ? null : code(range[0], range[1]);
+            if (code == null) {
+                return Optional.empty();
+            }
+            codes.put(method, code);
+        }
+        boolean bootstrap = bootstrapMethods.size() > target.bootstrapMethods.size();
+        int bootstrapName = bootstrap && target.bootstrapAttribute < 0
+                ? utf8("BootstrapMethods")
+                : -1;
+        if (count > 0xffff) {
+            return Optional.empty();
+        }
+
+        var in = ByteBuffer.wrap(target.bytes);
+        var out = new ByteArrayOutputStream(target.bytes.length + constants.size());
+        var data = new DataOutputStream(out);
+        try {
+            data.writeInt(0xcafebabe);
+            data.write(target.bytes, 4, 4);
+            data.writeShort(count);
+            data.write(target.bytes, 10, target.end - 10);
+            constants.writeTo(out);
+
+            // access, this, super, interfaces and fields as they are
+            in.position(target.end + 6);
+            int interfaces = in.getShort() & 0xffff;
+            in.position(in.position() + 2 * interfaces);
+            for (int fields = in.getShort() & 0xffff; fields > 0; --fields) {
+                in.position(in.position() + 6);
+                skipAttributes(in);
+            }
+            data.write(target.bytes, target.end, in.position() - target.end);
+
+            int methodCount = in.getShort() & 0xffff;
+            data.writeShort(methodCount);
+            int spliced = 0;
+            for (int n = methodCount; n > 0; --n) {
+                int start = in.position();
+                String method = target.utf8(in.getShort(start + 2) & 0xffff)
+                        + target.utf8(in.getShort(start + 4) & 0xffff);
+                var code = codes.get(method);
+                data.write(target.bytes, start, 8);
+                in.position(start + 6);
+                int attributes = in.getShort() & 0xffff;
+                for (; attributes > 0; --attributes) {
+                    int attribute = in.position();
+                    int end = attribute + 6 + in.getInt(attribute + 2);
+                    if (code != null
+                            && target.utf8(in.getShort(attribute) & 0xffff).equals("Code")) {
+                        data.write(target.bytes, attribute, 2);
+                        data.writeInt(code.length);
+                        data.write(code);
+                        ++spliced;
+                    } else {
+                        data.write(target.bytes, attribute, end - attribute);
+                    }
+                    in.position(end);
+                }
+            }
+            if (spliced != codes.size()) {
+                return Optional.empty();
+            }
+
+            int attributes = in.getShort() & 0xffff;
+            data.writeShort(attributes + (bootstrapName > 0 ? 1 : 0));
+            for (; attributes > 0; --attributes) {
+                int attribute = in.position();
+                int end = attribute + 6 + in.getInt(attribute + 2);
+                if (bootstrap && attribute == target.bootstrapAttribute) {
+                    writeBootstrapMethods(data, in.getShort(attribute) & 0xffff);
+                } else {
+                    data.write(target.bytes, attribute, end - attribute);
+                }
+                in.position(end);
+            }
+            if (bootstrapName > 0) {
+                writeBootstrapMethods(data, bootstrapName);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return Optional.of(out.toByteArray());
+    }
+
+    private void writeBootstrapMethods(DataOutputStream data, int name) throws IOException {
+        int length = 2;
+        for (byte[] method : bootstrapMethods) {
+            length += method.length;
+        }
+        data.writeShort(name);
+        data.writeInt(length);
+        data.writeShort(bootstrapMethods.size());
+        for (byte[] method : bootstrapMethods) {
+            data.write(method);
+        }
+    }
+
+    /**
+     * Returns the {@code Code} attribute of {@code source} from {@code
+     * start} to {@code end}, without its name and length, with every
+     * constant it refers to moved into the constant pool of the
+     * target, or {@code null} if an {@code ldc} cannot reach its
+     * constant there.
+     */
+    private byte[] code(int start, int end) {
+        var in = ByteBuffer.wrap(source.bytes);
+        var out = ByteBuffer.allocate(end - start);
+        out.put(source.bytes, start, 8);
+        int length = in.getInt(start + 4);
+        int codeStart = start + 8;
+        int codeEnd = codeStart + length;
+        for (int pc = codeStart; pc < codeEnd; ) {
+            int opcode = in.get(pc) & 0xff;
+            int size;
+            switch (opcode) {
+            case 18: { // ldc
+                int index = constant(in.get(pc + 1) & 0xff);
+                if (index > 0xff) {
+                    return null;
+                }
+                out.put((byte) opcode).put((byte) index);
+                size = 2;
+                break;
+            }
+            case 19: // ldc_w
+            case 20: // ldc2_w
+            case 178: case 179: case 180: case 181: // fields
+            case 182: case 183: case 184: // invokevirtual, special, static
+            case 185: // invokeinterface
+            case 186: // invokedynamic
+            case 187: // new
+            case 189: // anewarray
+            case 192: // checkcast
+            case 193: // instanceof
+            case 197: // multianewarray
+                size = opcode == 185 || opcode == 186 ? 5 : opcode == 197 ? 4 : 3;
+                out.put((byte) opcode).putShort((short) constant(in.getShort(pc + 1) & 0xffff));
+                out.put(source.bytes, pc + 3, size - 3);
+                break;
+            case 170: // tableswitch
+            case 171: { // lookupswitch
+                int table = pc + 4 - (pc - codeStart) % 4;
+                size = table - pc + (opcode == 170
+                        ? 12 + 4 * (in.getInt(table + 8) - in.getInt(table + 4) + 1)
+                        : 8 + 8 * in.getInt(table + 4));
+                out.put(source.bytes, pc, size);
+                break;
+            }
+            default:
+                size = opcode == 196
+                        ? (in.get(pc + 1) & 0xff) == 132 ? 6 : 4
+                        : SIZES[opcode];
+                out.put(source.bytes, pc, size);
+                break;
+            }
+            pc += size;
+        }
+
+        in.position(codeEnd);
+        int handlers = in.getShort() & 0xffff;
+        out.putShort((short) handlers);
+        for (; handlers > 0; --handlers) {
+            out.put(source.bytes, in.position(), 6);
+            in.position(in.position() + 6);
+            int type = in.getShort() & 0xffff;
+            out.putShort((short) (type == 0 ? 0 : constant(type)));
+        }
+
+        int countAt = out.position();
+        int kept = 0;
+        out.putShort((short) 0);
+        for (int attributes = in.getShort() & 0xffff; attributes > 0; --attributes) {
+            int attribute = in.position();
+            String name = source.utf8(in.getShort(attribute) & 0xffff);
+            int attributeEnd = attribute + 6 + in.getInt(attribute + 2);
+            in.position(attribute + 6);
+            switch (name) {
+            case "StackMapTable":
+                out.putShort((short) constant(in.getShort(attribute) & 0xffff));
+                out.putInt(attributeEnd - attribute - 6);
+                stackMapTable(in, out);
+                ++kept;
+                break;
+            case "LineNumberTable":
+                out.putShort((short) constant(in.getShort(attribute) & 0xffff));
+                out.put(source.bytes, attribute + 2, attributeEnd - attribute - 2);
+                ++kept;
+                break;
+            case "LocalVariableTable":
+            case "LocalVariableTypeTable":
+                out.putShort((short) constant(in.getShort(attribute) & 0xffff));
+                out.put(source.bytes, attribute + 2, 6);
+                for (int n = in.getShort(attribute + 6) & 0xffff, at = attribute + 8;
+                        n > 0; --n, at += 10) {
+                    out.put(source.bytes, at, 4);
+                    out.putShort((short) constant(in.getShort(at + 4) & 0xffff));
+                    out.putShort((short) constant(in.getShort(at + 6) & 0xffff));
+                    out.put(source.bytes, at + 8, 2);
+                }
+                ++kept;
+                break;
+            default:
+                break;
+            }
+            in.position(attributeEnd);
+        }
+        out.putShort(countAt, (short) kept);
+
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private void stackMapTable(ByteBuffer in, ByteBuffer out) {
+        int frames = in.getShort() & 0xffff;
+        out.putShort((short) frames);
+        for (; frames > 0; --frames) {
+            int type = in.get() & 0xff;
+            out.put((byte) type);
+            if (type < 64) {
+                continue;
+            } else if (type < 128) {
+                verificationType(in, out);
+            } else if (type == 247) {
+                out.putShort(in.getShort());
+                verificationType(in, out);
+            } else if (type >= 248 && type <= 251) {
+                out.putShort(in.getShort());
+            } else if (type <= 254) {
+                out.putShort(in.getShort());
+                for (int n = type - 251; n > 0; --n) {
+                    verificationType(in, out);
+                }
+            } else {
+                out.putShort(in.getShort());
+                for (int pass = 0; pass < 2; ++pass) {
+                    int n = in.getShort() & 0xffff;
+                    out.putShort((short) n);
+                    for (; n > 0; --n) {
+                        verificationType(in, out);
+                    }
+                }
+            }
+        }
+    }
+
+    private void verificationType(ByteBuffer in, ByteBuffer out) {
+        int tag = in.get() & 0xff;
+        out.put((byte) tag);
+        if (tag == 7) { // Object
+            out.putShort((short) constant(in.getShort() & 0xffff));
+        } else if (tag == 8) { // Uninitialized
+            out.putShort(in.getShort());
+        }
+    }
+
+    /**
+     * Returns the index in the target of a constant equal to the one
+     * at {@code index} in the source, adding it if there is none.
+     */
+    private int constant(int index) {
+        var known = copied.get(index);
+        if (known != null) {
+            return known;
+        }
+
+        var key = source.key(index);
+        var existing = target.indices.get(key);
+        int result;
+        if (existing != null) {
+            result = existing;
+        } else {
+            var in = ByteBuffer.wrap(source.bytes);
+            int offset = source.offsets[index];
+            int tag = in.get(offset);
+            var entry = ByteBuffer.allocate(1 + source.size(index)).put((byte) tag);
+            switch (tag) {
+            case 1: // Utf8
+            case 3: // Integer
+            case 4: // Float
+            case 5: // Long
+            case 6: // Double
+                entry.put(source.bytes, offset + 1, source.size(index));
+                break;
+            case 7: // Class
+            case 8: // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+                entry.putShort((short) constant(in.getShort(offset + 1) & 0xffff));
+                break;
+            case 9: // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 12: // NameAndType
+                entry.putShort((short) constant(in.getShort(offset + 1) & 0xffff));
+                entry.putShort((short) constant(in.getShort(offset + 3) & 0xffff));
+                break;
+            case 15: // MethodHandle
+                entry.put(in.get(offset + 1));
+                entry.putShort((short) constant(in.getShort(offset + 2) & 0xffff));
+                break;
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+                entry.putShort((short) bootstrapMethod(in.getShort(offset + 1) & 0xffff));
+                entry.putShort((short) constant(in.getShort(offset + 3) & 0xffff));
+                break;
+            default:
+                throw new IllegalArgumentException("bad constant pool tag: " + tag);
+            }
+            result = count;
+            count += tag == 5 || tag == 6 ? 2 : 1;
+            constants.write(entry.array(), 0, entry.position());
+            target.indices.put(key, result);
+        }
+        copied.put(index, result);
+
+        return result;
+    }
+
+    /**
+     * Returns the index in the target of a bootstrap method equal to
+     * the one at {@code index} in the source, adding it if there is
+     * none.
+     */
+    private int bootstrapMethod(int index) {
+        var key = source.bootstrapKey(index);
+        var existing = bootstrapIndex.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        var in = ByteBuffer.wrap(source.bootstrapMethods.get(index));
+        var out = ByteBuffer.allocate(in.capacity());
+        out.putShort((short) constant(in.getShort() & 0xffff));
+        int arguments = in.getShort() & 0xffff;
+        out.putShort((short) arguments);
+        for (; arguments > 0; --arguments) {
+            out.putShort((short) constant(in.getShort() & 0xffff));
+        }
+        bootstrapMethods.add(out.array());
+        bootstrapIndex.put(key, bootstrapMethods.size() - 1);
+
+        return bootstrapMethods.size() - 1;
+    }
+
+    /**
+     * Returns the index of the {@code Utf8} constant {@code text} in
+     * the target, adding it if there is none.
+     */
+    private int utf8(String text) {
+        var key = "1:" + text;
+        var existing = target.indices.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            var data = new DataOutputStream(constants);
+            data.writeByte(1);
+            data.writeUTF(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        target.indices.put(key, count);
+
+        return count++;
+    }
+
+    private static void skipAttributes(ByteBuffer in) {
+        for (int attributes = in.getShort() & 0xffff; attributes > 0; --attributes) {
+            in.position(in.position() + 2);
+            in.position(in.position() + 4 + in.getInt(in.position()));
+        }
+    }
+
+    /**
+     * The constant pool and the bootstrap methods of a class file,
+     * with a key for every constant that is equal for equal
+     * constants of different class files.
+     */
+    private static final class Pool {
+        final byte[] bytes;
+        final int[] offsets;
+        final int end;
+        /** The index of each constant by its key, once {@link #index} filled it. */
+        final Map<String, Integer> indices = new HashMap<>();
+        final List<byte[]> bootstrapMethods = new ArrayList<>();
+        /** The offset of the {@code BootstrapMethods} attribute, or -1. */
+        int bootstrapAttribute = -1;
+        private final String[] keys;
+        private final Map<String, int[]> codes = new HashMap<>();
+
+        Pool(byte[] bytes) {
+            this.bytes = bytes;
+            var in = ByteBuffer.wrap(bytes);
+            offsets = new int[in.getShort(8) & 0xffff];
+            keys = new String[offsets.length];
+            in.position(10);
+            for (int i = 1; i < offsets.length; ++i) {
+                offsets[i] = in.position();
+                int tag = in.get();
+                in.position(in.position() + size(i));
+                if (tag == 5 || tag == 6) {
+                    ++i;
+                }
+            }
+            end = in.position();
+
+            in.position(end + 6);
+            int interfaces = in.getShort() & 0xffff;
+            in.position(in.position() + 2 * interfaces);
+            for (int fields = in.getShort() & 0xffff; fields > 0; --fields) {
+                in.position(in.position() + 6);
+                skipAttributes(in);
+            }
+            for (int n = in.getShort() & 0xffff; n > 0; --n) {
+                int start = in.position();
+                String method = utf8(in.getShort(start + 2) & 0xffff)
+                        + utf8(in.getShort(start + 4) & 0xffff);
+                in.position(start + 6);
+                for (int attributes = in.getShort() & 0xffff; attributes > 0; --attributes) {
+                    int attribute = in.position();
+                    int attributeEnd = attribute + 6 + in.getInt(attribute + 2);
+                    if (utf8(in.getShort(attribute) & 0xffff).equals("Code")) {
+                        codes.put(method, new int[] { attribute + 6, attributeEnd });
+                    }
+                    in.position(attributeEnd);
+                }
+            }
+            for (int attributes = in.getShort() & 0xffff; attributes > 0; --attributes) {
+                int attribute = in.position();
+                int attributeEnd = attribute + 6 + in.getInt(attribute + 2);
+                if (utf8(in.getShort(attribute) & 0xffff).equals("BootstrapMethods")) {
+                    bootstrapAttribute = attribute;
+                    int at = attribute + 8;
+                    for (int n = in.getShort(attribute + 6) & 0xffff; n > 0; --n) {
+                        int length = 4 + 2 * (in.getShort(at + 2) & 0xffff);
+                        bootstrapMethods.add(Arrays.copyOfRange(bytes, at, at + length));
+                        at += length;
+                    }
+                }
+                in.position(attributeEnd);
+            }
+        }
+
+        /**
+         * Fills {@link #indices} with the index of every constant.
+         */
+        void index() {
+            for (int i = 1; i < offsets.length; ++i) {
+                if (offsets[i] != 0) {
+                    indices.putIfAbsent(key(i), i);
+                }
+            }
+        }
+
+        int major() {
+            return ByteBuffer.wrap(bytes).getShort(6) & 0xffff;
+        }
+
+        /**
+         * Returns the start and end of the content of the {@code Code}
+         * attribute of {@code method}, or {@code null} if it has none.
+         */
+        int[] code(String method) {
+            return codes.get(method);
+        }
+
+        /**
+         * Returns the size of the constant at {@code index}, without
+         * its tag.
+         */
+        int size(int index) {
+            var in = ByteBuffer.wrap(bytes);
+            int offset = offsets[index];
+            int tag = in.get(offset);
+            switch (tag) {
+            case 1: // Utf8
+                return 2 + (in.getShort(offset + 1) & 0xffff);
+            case 5: // Long
+            case 6: // Double
+                return 8;
+            case 7: // Class
+            case 8: // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+                return 2;
+            case 15: // MethodHandle
+                return 3;
+            case 3: // Integer
+            case 4: // Float
+            case 9: // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 12: // NameAndType
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+                return 4;
+            default:
+                throw new IllegalArgumentException("bad constant pool tag: " + tag);
+            }
+        }
+
+        String utf8(int index) {
+            int offset = offsets[index];
+            int length = ByteBuffer.wrap(bytes).getShort(offset + 1) & 0xffff;
+            try {
+                return new DataInputStream(new ByteArrayInputStream(
+                        bytes, offset + 1, 2 + length)).readUTF();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        /**
+         * Returns the constant at {@code index} as text, with the
+         * constants and bootstrap methods it refers to resolved.
+         */
+        String key(int index) {
+            if (keys[index] != null) {
+                return keys[index];
+            }
+
+            var in = ByteBuffer.wrap(bytes);
+            int offset = offsets[index];
+            int tag = in.get(offset);
+            String key;
+            switch (tag) {
+            case 1:
+                key = utf8(index);
+                break;
+            case 3:
+            case 4:
+                key = Integer.toString(in.getInt(offset + 1));
+                break;
+            case 5:
+            case 6:
+                key = Long.toString(in.getLong(offset + 1));
+                break;
+            case 7:
+            case 8:
+            case 16:
+            case 19:
+            case 20:
+                key = "(" + key(in.getShort(offset + 1) & 0xffff) + ")";
+                break;
+            case 9:
+            case 10:
+            case 11:
+            case 12:
+                key = "(" + key(in.getShort(offset + 1) & 0xffff)
+                        + "," + key(in.getShort(offset + 3) & 0xffff) + ")";
+                break;
+            case 15:
+                key = in.get(offset + 1) + "(" + key(in.getShort(offset + 2) & 0xffff) + ")";
+                break;
+            case 17:
+            case 18:
+                key = "(" + bootstrapKey(in.getShort(offset + 1) & 0xffff)
+                        + "," + key(in.getShort(offset + 3) & 0xffff) + ")";
+                break;
+            default:
+                throw new IllegalArgumentException("bad constant pool tag: " + tag);
+            }
+            keys[index] = tag + ":" + key;
+
+            return keys[index];
+        }
+
+        /**
+         * Returns the bootstrap method at {@code index} as text, with
+         * the constants it refers to resolved.
+         */
+        String bootstrapKey(int index) {
+            var in = ByteBuffer.wrap(bootstrapMethods.get(index));
+            var key = new StringBuilder(key(in.getShort() & 0xffff)).append('(');
+            for (int arguments = in.getShort() & 0xffff; arguments > 0; --arguments) {
+                key.append(key(in.getShort() & 0xffff)).append(',');
+            }
+
+            return key.append(')').toString();
+        }
+    }
+
+    private static final byte[] SIZES = new byte[256];
+
+    static {
+        Arrays.fill(SIZES, (byte) 1);
+        SIZES[16] = 2; // bipush
+        SIZES[17] = 3; // sipush
+        Arrays.fill(SIZES, 21, 26, (byte) 2); // loads
+        Arrays.fill(SIZES, 54, 59, (byte) 2); // stores
+        SIZES[132] = 3; // iinc
+        Arrays.fill(SIZES, 153, 169, (byte) 3); // branches
+        SIZES[169] = 2; // ret
+        SIZES[188] = 2; // newarray
+        SIZES[198] = 3; // ifnull
+        SIZES[199] = 3; // ifnonnull
+        SIZES[200] = 5; // goto_w
+        SIZES[201] = 5; // jsr_w
     }
 }
@@ -0,0 +1,259 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+/**
+ * A self modifying program which swaps a method through a call site,
+ * without redefining any class.  For the programs this one varies on
+ * see the blog post at <a
+ * href="https://medium.com/galileo-onwards/java-self-modify-ecae04189196">
+ * Galileo Onwards</a>
+ *
+ * <h3>Compile Instructions</h3>
+ * <pre>
+ * javac -d . Replacement3.java
+ * </pre>
+ *
+ * <h3>Run Instructions</h3>
+ * <pre>
+ * java -cp . Replacement3
+ * </pre>
+ *
+ * <p>Unlike {@code Replacement1} and {@code Replacement2} it needs no
+ * debugger or agent, since {@code dwim} is only ever called through
+ * {@link CallSiteSwap}.  Its payload is stored rather than deflated,
+ * so that it needs no {@code Codec} either.
+ */
+public class Replacement3 {
+    private static final CallSiteSwap DWIM = CallSiteSwap.of(
+            MethodHandles.lookup(),
+            "dwim",
+            MethodType.methodType(String.class, int.class, String.class, List.class));
+    private static final MethodHandle DWIM_INVOKER = DWIM.invoker();
+
+    public static void main(String[] args)
+            throws Throwable {
+        final var i = 3;
+        final var s = ".14159";
+        final var l = List.of("2", "6", "53");
+
+        final var r = new Replacement3();
+
+        final var run1 = (String) DWIM_INVOKER.invokeExact(r, i, s, l);
+        System.out.println(run1); // prints 3.14159[2, 6, 53]
+
+        doTheDeed();
+
+        final var run2 = (String) DWIM_INVOKER.invokeExact(r, i, s, l);
+        System.out.println(run2); // prints 2.718281828[4, 5]
+    }
+
+    private final <T> String dwim(
+            final int i,
+            final String s,
+            final List<? extends T> l) {
+        return String.format("%s%s%s", i, s, l);
+    }
+
+    private static void doTheDeed() throws Exception {
+        DWIM.swap(replacement());
+    }
+
+    private static final byte[] replacement() {
+        String[] chunks = {
+            "\312\376\272\276\0\0\0007\0}\n\0\2\0\3\7\0\4\f\0\5\0\6\1\0\20jav" +
+            "a/lang/Object\1\0\6<init>\1\0\3()V\b\0\b\1\0\0012\b\0\n\1\0\0016" +
+            "\b\0\f\1\0\00253\13\0\16\0\17\7\0\20\f\0\21\0\22\1\0\16java/util" +
+            "/List\1\0\2of\1\0H(Ljava/lang/Object;Ljava/lang/Object;Ljava/lan" +
+            "g/Object;)Ljava/util/List;\7\0\24\1\0\fReplacement3\n\0\23\0\3\b" +
+            "\0\27\1\0\6.14159\n\0\23\0\31\f\0\32\0\33\1\0\4dwim\1\0007(ILjav" +
+            "a/lang/String;Ljava/util/List;)Ljava/lang/String;\t\0\35\0\36\7" +
+            "\0\37\f\0 \0!\1\0\20java/lang/System\1\0\3out\1\0\25Ljava/io/Pri" +
+            "ntStream;\n\0#\0$\7\0%\f\0&\0'\1\0\23java/io/PrintStream\1\0\7pr" +
+            "intln\1\0\25(Ljava/lang/String;)V\n\0\23\0)\f\0*\0\6\1\0\tdoTheD" +
+            "eed\13\0\16\0,\f\0-\0.\1\0\3get\1\0\25(I)Ljava/lang/Object;\7" +
+            "\0000\1\0\20java/lang/String\n\0\2\0002\f\0003\0004\1\0\btoStrin" +
+            "g\1\0\24()Ljava/lang/String;\n\0006\0007\7\08\f\09\0:\1\0\21java" +
+            "/lang/Integer\1\0\bparseInt\1\0\25(Ljava/lang/String;)I\n\0<\0=" +
+            "\7\0>\f\0?\0@\1\0\23java/lang/Character\1\0\7valueOf\1\0\30(C)Lj" +
+            "ava/lang/Character;\n\0<\0B\f\0C\0D\1\0\tcharValue\1\0\3()C\n\0F" +
+            "\0G\7\0H\f\0I\0J\1\0\20java/lang/Double\1\0\13parseDouble\1\0\25" +
+            "(Ljava/lang/String;)D\6?\300k\356\276k\342j\n\0/\0N\f\0?\0O\1\0" +
+            "\25(D)Ljava/lang/String;\n\0006\0Q\f\0?\0R\1\0\26(I)Ljava/lang/I" +
+            "nteger;\22\0\0\0T\f\0U\0V\1\0\27makeConcatWithConstants\1\0\25(C" +
+            ")Ljava/lang/String;\13\0\16\0X\f\0\21\0Y\1\0006(Ljava/lang/Objec" +
+            "t;Ljava/lang/Object;)Ljava/util/List;\22\0\1\0[\f\0U\0\\\1\0006(" +
+            "Ljava/lang/String;Ljava/util/List;)Ljava/lang/String;\1\0\4Code" +
+            "\1\0\17LineNumberTable\1\0\4main\1\0\26([Ljava/lang/String;)V\1" +
+            "\0\nExceptions\7\0c\1\0\23java/lang/Throwable\1\0\tSignature\1\0" +
+            "S<T:Ljava/lang/Object;>(ILjava/lang/String;Ljava/util/List<+TT;>" +
+            ";)Ljava/lang/String;\7\0g\1\0\23java/lang/Exception\1\0\13replac" +
+            "ement\1\0\4()[B\1\0\nSourceFile\1\0\21Replacement3.java\1\0\20Bo" +
+            "otstrapMethods\17\6\0n\n\0o\0p\7\0q\f\0U\0r\1\0$java/lang/invoke" +
+            "/StringConcatFactory\1\0\230(Ljava/lang/invoke/MethodHandles$Loo" +
+            "kup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/St" +
+            "ring;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;\b\0t\1\0\1" +
+            "\1\b\0v\1\0\2\1\1\1\0\fInnerClasses\7\0y\1\0%java/lang/invoke/Me" +
+            "thodHandles$Lookup\7\0{\1\0\36java/lang/invoke/MethodHandles\1\0" +
+            "\6Lookup\0!\0\23\0\2\0\0\0\0\0\5\0\1\0\5\0\6\0\1\0]\0\0\0\35\0\1" +
+            "\0\1\0\0\0\5*\267\0\1\261\0\0\0\1\0^\0\0\0\6\0\1\0\0\0\16\0\t\0_" +
+            "\0`\0\2\0]\0\0\0l\0\4\0\5\0\0\08\22\7\22\t\22\13\270\0\rL\273\0" +
+            "\23Y\267\0\25M,\6\22\26+\266\0\30N\262\0\34-\266\0\"\270\0(,\6" +
+            "\22\26+\266\0\30:\4\262\0\34\31\4\266\0\"\261\0\0\0\1\0^\0\0\0\"" +
+            "\0\b\0\0\0\23\0\n\0\25\0\22\0\27\0\33\0\30\0\"\0\32\0%\0\34\0/\0" +
+            "\35\0007\0\36\0a\0\0\0\4\0\1\0b\0\22\0\32\0\33\0\2\0]\0\0\0\216" +
+            "\0\4\0\b\0\0\0^-\4\271\0+\2\0\300\0/:\4-\3\271\0+\2\0\266\0001" +
+            "\270\00056\5-\5\271\0+\2\0\266\0001:\6\31\6\270\0005\222\270\0;" +
+            "\266\0A6\7\33\207,\270\0Eo\24\0Kk\270\0M\31\4\270\0005\25\5d\270" +
+            "\0P\25\7\272\0S\0\0\270\0W\272\0Z\0\0\260\0\0\0\1\0^\0\0\0\36\0" +
+            "\7\0\0\0$\0\f\0%\0\33\0&\0'\0'\0005\0(\0E\0)\0]\0(\0d\0\0\0\2\0e" +
+            "\0\n\0*\0\6\0\2\0]\0\0\0\31\0\0\0\0\0\0\0\1\261\0\0\0\1\0^\0\0\0" +
+            "\6\0\1\0\0\0,\0a\0\0\0\4\0\1\0f\0\32\0h\0i\0\1\0]\0\0\0\32\0\1\0" +
+            "\0\0\0\0\2\1\260\0\0\0\1\0^\0\0\0\6\0\1\0\0\0.\0\3\0j\0\0\0\2\0k" +
+            "\0l\0\0\0\16\0\2\0m\0\1\0s\0m\0\1\0u\0w\0\0\0\n\0\1\0x\0z\0|\0" +
+            "\31",
+        };
+        byte[] bytes = new byte[2174];
+        int offset = 0;
+        for (String chunk : chunks) {
+            byte[] decoded = chunk.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+            System.arraycopy(decoded, 0, bytes, offset, decoded.length);
+            offset += decoded.length;
+        }
+        return bytes;
+    }
+}
+
+/**
+ * A method whose callers all go through a {@link MutableCallSite}, so
+ * that it can be swapped for the method of the same name and type in
+ * another class file without redefining anything.  The class file is
+ * defined as a hidden class and the call site retargeted to its
+ * method.  Nothing attaches to the virtual machine, no safepoint stops
+ * it, and the only compiled code thrown away is the code that inlined
+ * the old target.
+ *
+ * <p>The call site stands in for an {@code invokedynamic} instruction
+ * bound to it, which Java source cannot express: a {@code static
+ * final} invoker is as constant to the JIT as the instruction, and
+ * its target is inlined the same way.
+ *
+ * <p>The new method is called on an instance of the hidden class made
+ * by its no argument constructor, not on the receiver of the call, so
+ * it must not depend on the state of the receiver.
+ *
+ * <p>Typical usage:
+ *
+ * <pre>{@code
+ * static final CallSiteSwap FOO = CallSiteSwap.of(
+ *         MethodHandles.lookup(), "foo", MethodType.methodType(int.class));
+ * static final MethodHandle FOO_INVOKER = FOO.invoker();
+ *
+ * int foo = (int) FOO_INVOKER.invokeExact(this);
+ * FOO.swap(fooBytes);
+ * }</pre>
+ */
+final class CallSiteSwap {
+    private final MethodHandles.Lookup lookup;
+    private final String name;
+    private final MethodType type;
+    private final MutableCallSite site;
+
+    private CallSiteSwap(
+            MethodHandles.Lookup lookup,
+            String name,
+            MethodType type,
+            MethodHandle target) {
+        this.lookup = lookup;
+        this.name = name;
+        this.type = type;
+        this.site = new MutableCallSite(target);
+    }
+
+    /**
+     * Returns a call site for the instance method {@code name} of type
+     * {@code type} of the class {@code lookup} is in, which it
+     * targets until swapped.
+     */
+    static CallSiteSwap of(MethodHandles.Lookup lookup, String name, MethodType type) {
+        try {
+            return new CallSiteSwap(lookup, name, type,
+                    lookup.findVirtual(lookup.lookupClass(), name, type));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns the handle callers call the method through, which takes
+     * the receiver followed by the arguments of the method.
+     */
+    MethodHandle invoker() {
+        return site.dynamicInvoker();
+    }
+
+    /**
+     * Defines {@code classFile}, which must be of a class in the same
+     * package, as a hidden class, and retargets the call site to its
+     * method of the same name and type.  Threads calling the method
+     * see the new target from their next call on.
+     */
+    synchronized void swap(byte[] classFile) throws ReflectiveOperationException {
+        var hidden = define(classFile);
+        var method = hidden.findVirtual(hidden.lookupClass(), name, type);
+        Object instance;
+        try {
+            instance = hidden.findConstructor(
+                    hidden.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+
+        site.setTarget(MethodHandles.dropArguments(
+                method.bindTo(instance), 0, lookup.lookupClass()));
+        MutableCallSite.syncAll(new MutableCallSite[] { site });
+    }
+
+    /**
+     * Defines {@code classFile} as a hidden class, through reflection
+     * so that this compiles for Java 11.  Before Java 15 it is defined
+     * by a class loader of its own instead, which is as unreachable
+     * once the call site moves on.
+     */
+    private MethodHandles.Lookup define(byte[] classFile) throws ReflectiveOperationException {
+        Class<?> options;
+        try {
+            options = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+        } catch (ClassNotFoundException e) {
+            var defined = new ClassLoader(lookup.lookupClass().getClassLoader()) {
+                Class<?> define() {
+                    return defineClass(null, classFile, 0, classFile.length);
+                }
+            }.define();
+            return MethodHandles.privateLookupIn(defined, lookup);
+        }
+
+        try {
+            return (MethodHandles.Lookup) MethodHandles.Lookup.class
+                    .getMethod("defineHiddenClass",
+                            byte[].class,
+                            boolean.class,
+                            java.lang.reflect.Array.newInstance(options, 0).getClass())
+                    .invoke(lookup, classFile, true, java.lang.reflect.Array.newInstance(options, 0));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The SHA-256 digest of a class file and of each of its methods, to
+ * tell whether redefining a class with it would change anything, and
+ * if so which methods.  A method is digested by its code with the
+ * constant pool references in it resolved, leaving out the debug
+ * attributes, so that it only counts as changed if what it does
+ * changed, and not because a constant was added elsewhere or a line
+ * moved.
+ */
+final class ClassDigest {
+    private final byte[] digest;
+    private final Map<String, byte[]> methods;
+
+    private ClassDigest(byte[] digest, Map<String, byte[]> methods) {
+        this.digest = digest;
+        this.methods = methods;
+    }
+
+    static ClassDigest of(byte[] classFile) {
+        if (classFile.length < 10
+                || ByteBuffer.wrap(classFile).getInt(0) != 0xcafebabe) {
+            throw new IllegalArgumentException("not a class file");
+        }
+
+        return new ClassDigest(sha256().digest(classFile), new Parser(classFile).methods());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean sameAs(ClassDigest other) {
+        return Arrays.equals(digest, other.digest);
+    }
+
+    /**
+     * Returns the names and descriptors of the methods of the class.
+     */
+    Set<String> methods() {
+        return Collections.unmodifiableSet(methods.keySet());
+    }
+
+    /**
+     * Returns whether the two classes have methods of the same names
+     * and descriptors, whatever their code.
+     */
+    boolean sameMethods(ClassDigest other) {
+        return methods.keySet().equals(other.methods.keySet());
+    }
+
+    /**
+     * Returns the methods, by name and descriptor, that were added,
+     * removed or changed since {@code before}.
+     */
+    Set<String> changedSince(ClassDigest before) {
+        var changed = new TreeSet<String>();
+        for (var e : methods.entrySet()) {
+            if (!Arrays.equals(e.getValue(), before.methods.get(e.getKey()))) {
+                changed.add(e.getKey());
+            }
+        }
+        for (var method : before.methods.keySet()) {
+            if (!methods.containsKey(method)) {
+                changed.add(method);
+            }
+        }
+
+        return changed;
+    }
+
+    private static final class Parser {
+        private final ByteBuffer in;
+        private final int[] offsets;
+
+        Parser(byte[] classFile) {
+            in = ByteBuffer.wrap(classFile);
+            offsets = new int[in.getShort(8) & 0xffff];
+            in.position(10);
+            for (int i = 1; i < offsets.length; ++i) {
+                offsets[i] = in.position();
+                int tag = in.get();
+                switch (tag) {
+                case 1: // Utf8
+                    in.position(in.position() + 2 + (in.getShort(in.position()) & 0xffff));
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.position(in.position() + 8);
+                    ++i;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.position(in.position() + 2);
+                    break;
+                case 15: // MethodHandle
+                    in.position(in.position() + 3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.position(in.position() + 4);
+                    break;
+                default:
+                    throw new IllegalArgumentException("bad constant pool tag: " + tag);
+                }
+            }
+        }
+
+        Map<String, byte[]> methods() {
+            in.position(in.position() + 6);
+            int interfaces = in.getShort() & 0xffff;
+            in.position(in.position() + 2 * interfaces);
+            for (int fields = in.getShort() & 0xffff; fields > 0; --fields) {
+                in.position(in.position() + 6);
+                for (int attributes = in.getShort() & 0xffff; attributes > 0; --attributes) {
+                    in.position(in.position() + 2);
+                    in.position(in.position() + 4 + in.getInt(in.position()));
+                }
+            }
+
+            var methods = new HashMap<String, byte[]>();
+            for (int n = in.getShort() & 0xffff; n > 0; --n) {
+                var digest = sha256();
+                int access = in.getShort() & 0xffff;
+                var name = constant(in.getShort() & 0xffff);
+                var descriptor = constant(in.getShort() & 0xffff);
+                digest.update((byte) (access >> 8));
+                digest.update((byte) access);
+                for (int attributes = in.getShort() & 0xffff; attributes > 0; --attributes) {
+                    var attribute = constant(in.getShort() & 0xffff);
+                    int length = in.getInt();
+                    int end = in.position() + length;
+                    if (attribute.equals("Code")) {
+                        code(digest);
+                    } else if (!attribute.equals("MethodParameters")) {
+                        update(digest, attribute);
+                        digest.update(in.array(), in.position(), length);
+                    }
+                    in.position(end);
+                }
+                methods.put(name + descriptor, digest.digest());
+            }
+
+            return methods;
+        }
+
+        /**
+         * Digests the code, the stack and locals and the exception
+         * handlers of a {@code Code} attribute, but not the debug
+         * attributes within it.
+         */
+        private void code(MessageDigest digest) {
+            digest.update(in.array(), in.position(), 4);
+            in.position(in.position() + 4);
+            int length = in.getInt();
+            int start = in.position();
+            int end = start + length;
+            for (int pc = start; pc < end; ) {
+                int opcode = in.get(pc) & 0xff;
+                int wide = opcode == 196 ? in.get(pc + 1) & 0xff : -1;
+                int size;
+                switch (opcode) {
+                case 18: // ldc
+                    digest.update((byte) opcode);
+                    update(digest, constant(in.get(pc + 1) & 0xff));
+                    size = 2;
+                    break;
+                case 19: // ldc_w
+                case 20: // ldc2_w
+                case 178: case 179: case 180: case 181: // fields
+                case 182: case 183: case 184: // invokevirtual, special, static
+                case 187: // new
+                case 189: // anewarray
+                case 192: // checkcast
+                case 193: // instanceof
+                    size = 3;
+                    digest.update((byte) opcode);
+                    update(digest, constant(in.getShort(pc + 1) & 0xffff));
+                    break;
+                case 185: // invokeinterface
+                case 186: // invokedynamic
+                case 197: // multianewarray
+                    size = opcode == 197 ? 4 : 5;
+                    digest.update((byte) opcode);
+                    update(digest, constant(in.getShort(pc + 1) & 0xffff));
+                    digest.update(in.array(), pc + 3, size - 3);
+                    break;
+                case 170: // tableswitch
+                case 171: { // lookupswitch
+                    int table = pc + 4 - (pc - start) % 4;
+                    size = table - pc + (opcode == 170
+                            ? 12 + 4 * (in.getInt(table + 8) - in.getInt(table + 4) + 1)
+                            : 8 + 8 * in.getInt(table + 4));
+                    digest.update((byte) opcode);
+                    digest.update(in.array(), table, pc + size - table);
+                    break;
+                }
+                default:
+                    size = opcode == 196 ? (wide == 132 ? 6 : 4) : SIZES[opcode];
+                    digest.update(in.array(), pc, size);
+                    break;
+                }
+                pc += size;
+            }
+
+            in.position(end);
+            for (int handlers = in.getShort() & 0xffff; handlers > 0; --handlers) {
+                digest.update(in.array(), in.position(), 6);
+                in.position(in.position() + 6);
+                int type = in.getShort() & 0xffff;
+                update(digest, type == 0 ? "" : constant(type));
+            }
+        }
+
+        /**
+         * Returns the constant at {@code index} as text, with the
+         * constants it refers to resolved.
+         */
+        private String constant(int index) {
+            int offset = offsets[index];
+            int tag = in.get(offset);
+            switch (tag) {
+            case 1: {
+                int length = in.getShort(offset + 1) & 0xffff;
+                try {
+                    return new DataInputStream(new ByteArrayInputStream(
+                            in.array(), offset + 1, 2 + length)).readUTF();
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+            case 3:
+            case 4:
+                return tag + ":" + in.getInt(offset + 1);
+            case 5:
+            case 6:
+                return tag + ":" + in.getLong(offset + 1);
+            case 15:
+                return tag + ":" + in.get(offset + 1) + ":"
+                        + constant(in.getShort(offset + 2) & 0xffff);
+            case 17:
+            case 18:
+                // the bootstrap method is left as an index
+                return tag + ":" + (in.getShort(offset + 1) & 0xffff) + ":"
+                        + constant(in.getShort(offset + 3) & 0xffff);
+            case 9:
+            case 10:
+            case 11:
+            case 12:
+                return tag + ":" + constant(in.getShort(offset + 1) & 0xffff) + ":"
+                        + constant(in.getShort(offset + 3) & 0xffff);
+            default:
+                return tag + ":" + constant(in.getShort(offset + 1) & 0xffff);
+            }
+        }
+
+        private static void update(MessageDigest digest, String text) {
+            digest.update(text.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+
+        /**
+         * The size of each instruction with a fixed size and no
+         * constant pool operand.
+         */
+        private static final byte[] SIZES = new byte[256];
+
+        static {
+            Arrays.fill(SIZES, (byte) 1);
+            SIZES[16] = 2; // bipush
+            SIZES[17] = 3; // sipush
+            Arrays.fill(SIZES, 21, 26, (byte) 2); // loads
+            Arrays.fill(SIZES, 54, 59, (byte) 2); // stores
+            SIZES[132] = 3; // iinc
+            Arrays.fill(SIZES, 153, 169, (byte) 3); // branches
+            SIZES[169] = 2; // ret
+            SIZES[188] = 2; // newarray
+            SIZES[198] = 3; // ifnull
+            SIZES[199] = 3; // ifnonnull
+            SIZES[200] = 5; // goto_w
+            SIZES[201] = 5; // jsr_w
+        }
+    }
+}
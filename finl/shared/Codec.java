@@ -0,0 +1,100 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a payload written by {@code GenByteArray --codec=...}: a
+ * byte naming the codec and the length of the decoded bytes as a
+ * big-endian int, followed by the bytes either stored or deflated
+ * without a zlib header, with or without a preset dictionary.
+ *
+ * <p>A payload of {@code MEMBERS} is deflated in pieces of the same
+ * size, which are inflated in parallel.  After the header come the
+ * codec of the members, their decoded size, their number and the
+ * length of each, then the members themselves.
+ */
+final class Codec {
+    static final int STORED = 0;
+    static final int DEFLATE = 1;
+    static final int DICTIONARY = 2;
+    static final int MEMBERS = 3;
+    static final int HEADER = 5;
+
+    private static final String PRESET = null;
+
+    static byte[] decode(byte[] payload) {
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Decodes {@code payload} into an array of exactly the decoded
+     * length, without any intermediate buffers.
+     */
+    static byte[] decode(ByteBuffer payload) {
+        int start = payload.position();
+        int codec = payload.get(start);
+        var bytes = new byte[payload.getInt(start + 1)];
+        var input = payload.duplicate().position(start + HEADER);
+        if (codec == STORED) {
+            input.get(bytes);
+            return bytes;
+        }
+        if (codec != MEMBERS) {
+            inflate(input, codec, bytes, 0, bytes.length);
+            return bytes;
+        }
+
+        int inner = input.get();
+        int size = input.getInt();
+        var ends = new int[input.getInt() + 1];
+        ends[0] = input.position() + (ends.length - 1) * 4;
+        for (int m = 1; m < ends.length; ++m) {
+            ends[m] = ends[m - 1] + input.getInt();
+        }
+        IntStream.range(0, ends.length - 1).parallel().forEach(m -> {
+            var member = input.duplicate().position(ends[m]).limit(ends[m + 1]);
+            int offset = m * size;
+            inflate(member, inner, bytes, offset, Math.min(size, bytes.length - offset));
+        });
+
+        return bytes;
+    }
+
+    /**
+     * Inflates {@code input} into {@code length} bytes of {@code bytes}
+     * from {@code offset} on.
+     */
+    private static void inflate(
+            ByteBuffer input,
+            int codec,
+            byte[] bytes,
+            int offset,
+            int length) {
+        if (codec != DEFLATE && (codec != DICTIONARY || PRESET == null)) {
+            throw new IllegalArgumentException("unknown codec: " + codec);
+        }
+
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            if (codec == DICTIONARY) {
+                inflater.setDictionary(PRESET.getBytes(
+                        StandardCharsets.ISO_8859_1));
+            }
+            for (int n = 0; n < length; ) {
+                int inflated = inflater.inflate(bytes, offset + n, length - n);
+                if (inflated == 0
+                        && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalArgumentException("truncated payload");
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Files kept in a directory of this user's that no one else may
+ * enter: the agent jars loaded into a program, which run in it, and
+ * anything else a program must not take from another user.
+ */
+final class PrivateFiles {
+    private PrivateFiles() {
+    }
+
+    /**
+     * Returns the agent jar of {@code manifest} and {@code entries},
+     * writing it first unless an earlier run already did.  It is named
+     * by the digest of its content, and a jar found there is read back
+     * and written again unless it holds exactly these bytes, since
+     * whatever it holds runs in the program it is loaded into.  It is
+     * moved into place whole so that it is never partly written
+     * either.
+     *
+     * @param entries the class files and other entries of the jar, by
+     * their path in it
+     */
+    static Path agentJar(Manifest manifest, Map<String, byte[]> entries) throws IOException {
+        // Every entry is given a fixed time and the entries a fixed
+        // order, so that the same content is always the same jar.
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new JarOutputStream(bytes)) {
+            var entry = new ZipEntry(JarFile.MANIFEST_NAME);
+            entry.setTime(0);
+            out.putNextEntry(entry);
+            manifest.write(out);
+            out.closeEntry();
+            for (var e : new TreeMap<>(entries).entrySet()) {
+                entry = new ZipEntry(e.getKey());
+                entry.setTime(0);
+                out.putNextEntry(entry);
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        }
+        var jar = bytes.toByteArray();
+
+        var path = directory().resolve(
+                "selfmod-" + sha256(jar).substring(0, 16) + ".jar");
+        if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)
+                || !Arrays.equals(Files.readAllBytes(path), jar)) {
+            var temporary = Files.createTempFile(path.getParent(), "selfmod", ".tmp");
+            try {
+                Files.write(temporary, jar);
+                Files.move(temporary, path,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        return path;
+    }
+
+    /**
+     * Returns {@code selfmod-<user>} in the temporary directory,
+     * creating it readable, writable and searchable by this user
+     * alone.  Where the file system has POSIX permissions, a directory
+     * of that name that is a link, is owned by someone else or lets
+     * anyone else in is refused rather than used.
+     */
+    static Path directory() throws IOException {
+        var dir = Paths.get(System.getProperty("java.io.tmpdir"),
+                "selfmod-" + System.getProperty("user.name"));
+        var posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!posix) {
+            return Files.createDirectories(dir);
+        }
+
+        var owner = PosixFilePermissions.fromString("rwx------");
+        if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(owner));
+            } catch (FileAlreadyExistsException e) {
+                // Created by another run meanwhile, and checked below.
+            }
+        }
+        var attributes = Files.getFileAttributeView(
+                dir, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).readAttributes();
+        var user = dir.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!attributes.isDirectory()
+                || !attributes.owner().equals(user)
+                || !attributes.permissions().equals(owner)) {
+            throw new IOException(dir + " is not a directory private to "
+                    + user.getName());
+        }
+
+        return dir;
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return String.format("%064x", new BigInteger(
+                    1, MessageDigest.getInstance("SHA-256").digest(bytes)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
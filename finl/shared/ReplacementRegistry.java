@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Several versions of a class, each checked once as it is added, so
+ * that switching to any of them, the class as it was loaded included,
+ * is a single redefinition with nothing to decode or verify first.
+ * The versions are kept decoded but split into pieces, cut where the
+ * content says rather than at fixed offsets, and a piece that several
+ * versions share is kept once.  A version that changes one method
+ * then costs little more than the pieces around that method.
+ *
+ * <p>Run with {@code -Dselfmod.report=true} to see what each version
+ * costs to keep.
+ *
+ * <p>Typical usage:
+ *
+ * <pre>{@code
+ * var versions = ReplacementRegistry.of(Foo.class);
+ * int next = versions.add(fooBytes);
+ * HotSwap.session(2718).redefine(Map.of("Foo", versions.classFile(next)));
+ * // and back to the class as it was loaded
+ * HotSwap.session(2718).redefine(Map.of("Foo", versions.classFile(0)));
+ * }</pre>
+ */
+final class ReplacementRegistry {
+    private static final boolean REPORT = Boolean.getBoolean("selfmod.report");
+    private static final Map<Class<?>, ReplacementRegistry> REGISTRIES =
+            new HashMap<>();
+
+    /**
+     * The least and the most bytes in a piece, and the bits of the
+     * rolling hash that cut one, which make pieces of about 96 bytes.
+     */
+    private static final int MIN_PIECE = 32;
+    private static final int MAX_PIECE = 1024;
+    private static final int CUT_MASK = 0xfc000000;
+    private static final int[] GEAR = new int[256];
+
+    static {
+        long seed = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < GEAR.length; ++i) {
+            long z = seed += 0x9e3779b97f4a7c15L;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = (int) (z ^ (z >>> 31));
+        }
+    }
+
+    private final Class<?> type;
+    private final ClassDigest original;
+    private final List<byte[]> pieces = new ArrayList<>();
+    private final List<int[]> versions = new ArrayList<>();
+    private final List<ClassDigest> digests = new ArrayList<>();
+
+    private ReplacementRegistry(Class<?> type, byte[] classFile) {
+        this.type = type;
+        this.original = ClassDigest.of(classFile);
+        store(classFile, original);
+    }
+
+    /**
+     * Returns the versions of {@code type}, of which version 0 is its
+     * class file as loaded, read on first use and before any swap.
+     */
+    static synchronized ReplacementRegistry of(Class<?> type) throws IOException {
+        var registry = REGISTRIES.get(type);
+        if (registry == null) {
+            var name = type.getName();
+            try (var in = type.getResourceAsStream(
+                    name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+                if (in == null) {
+                    throw new IOException("no class file for " + name);
+                }
+                registry = new ReplacementRegistry(type, in.readAllBytes());
+            }
+            REGISTRIES.put(type, registry);
+        }
+
+        return registry;
+    }
+
+    /**
+     * Adds {@code classFile} as a version of the class and returns its
+     * number, or the number of the version with the same bytes if
+     * there is one.  It must be a class file of the same class with
+     * the same methods, which the virtual machine verifies here rather
+     * than when the version is switched to.
+     *
+     * @throws IllegalArgumentException if the class file could not
+     * redefine the class
+     */
+    synchronized int add(byte[] classFile) {
+        var digest = ClassDigest.of(classFile);
+        for (int version = 0; version < digests.size(); ++version) {
+            if (digest.sameAs(digests.get(version))) {
+                return version;
+            }
+        }
+        if (!digest.sameMethods(original)) {
+            throw new IllegalArgumentException(
+                    "not the methods of " + type.getName() + ", which redefinition needs");
+        }
+        verify(classFile);
+
+        return store(classFile, digest);
+    }
+
+    /**
+     * Returns the class file of {@code version}.
+     */
+    synchronized byte[] classFile(int version) {
+        var refs = versions.get(version);
+        int length = 0;
+        for (int ref : refs) {
+            length += pieces.get(ref).length;
+        }
+        var classFile = new byte[length];
+        int offset = 0;
+        for (int ref : refs) {
+            var piece = pieces.get(ref);
+            System.arraycopy(piece, 0, classFile, offset, piece.length);
+            offset += piece.length;
+        }
+
+        return classFile;
+    }
+
+    synchronized int versions() {
+        return versions.size();
+    }
+
+    /**
+     * Returns the bytes kept for {@code version}: the pieces it added
+     * and a reference to each of its pieces.
+     */
+    synchronized long retained(int version) {
+        var earlier = new BitSet();
+        for (int v = 0; v < version; ++v) {
+            for (int ref : versions.get(v)) {
+                earlier.set(ref);
+            }
+        }
+        var added = new BitSet();
+        long retained = (long) Integer.BYTES * versions.get(version).length;
+        for (int ref : versions.get(version)) {
+            if (!earlier.get(ref) && !added.get(ref)) {
+                added.set(ref);
+                retained += pieces.get(ref).length;
+            }
+        }
+
+        return retained;
+    }
+
+    /**
+     * Defines {@code classFile} in a class loader of its own and links
+     * it, which runs the verifier over it.
+     */
+    private void verify(byte[] classFile) {
+        Class<?> defined;
+        try {
+            defined = new Verifier(type.getClassLoader()).define(classFile);
+            // linking verifies, and listing the methods links
+            defined.getDeclaredMethods();
+        } catch (LinkageError e) {
+            throw new IllegalArgumentException(
+                    "not a valid class file of " + type.getName() + ": " + e, e);
+        }
+        if (!defined.getName().equals(type.getName())) {
+            throw new IllegalArgumentException(
+                    "a class file of " + defined.getName() + ", not of " + type.getName());
+        }
+    }
+
+    /**
+     * The class loader of a class file being verified, which a swap
+     * must pass over when it looks a class up by name.
+     */
+    static final class Verifier extends ClassLoader {
+        Verifier(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(byte[] classFile) {
+            return defineClass(null, classFile, 0, classFile.length);
+        }
+    }
+
+    private int store(byte[] classFile, ClassDigest digest) {
+        var known = new HashMap<ByteBuffer, Integer>(pieces.size() * 2);
+        for (int ref = 0; ref < pieces.size(); ++ref) {
+            known.put(ByteBuffer.wrap(pieces.get(ref)), ref);
+        }
+
+        var refs = new ArrayList<Integer>();
+        int start = 0;
+        int hash = 0;
+        for (int i = 0; i < classFile.length; ++i) {
+            hash = (hash << 1) + GEAR[classFile[i] & 0xff];
+            int length = i + 1 - start;
+            if (i + 1 == classFile.length
+                    || length >= MAX_PIECE
+                    || length >= MIN_PIECE && (hash & CUT_MASK) == 0) {
+                var piece = Arrays.copyOfRange(classFile, start, i + 1);
+                var ref = known.get(ByteBuffer.wrap(piece));
+                if (ref == null) {
+                    ref = pieces.size();
+                    pieces.add(piece);
+                    known.put(ByteBuffer.wrap(piece), ref);
+                }
+                refs.add(ref);
+                start = i + 1;
+                hash = 0;
+            }
+        }
+
+        int version = versions.size();
+        versions.add(refs.stream().mapToInt(Integer::intValue).toArray());
+        digests.add(digest);
+        if (REPORT) {
+            System.err.printf("ReplacementRegistry: %s version %d, %d bytes in %d pieces, "
+                    + "%d bytes kept%n", type.getName(), version, classFile.length,
+                    refs.size(), retained(version));
+        }
+
+        return version;
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a payload from a sidecar file written by {@code GenByteArray
+ * --encoding=sidecar}: a 16 byte header of the magic number {@code
+ * SELF}, the payload length as a long and the CRC32 of the payload,
+ * followed by the payload itself.
+ */
+final class Sidecar {
+    static final int MAGIC = 0x53454c46;
+    static final int HEADER = 16;
+
+    /**
+     * Maps the payload of the sidecar file at {@code path}.  Only the
+     * header is read, unless {@code verify} asks for the checksum to
+     * be checked.
+     */
+    static ByteBuffer map(Path path, boolean verify)
+            throws IOException {
+        try (var channel = FileChannel.open(path)) {
+            var file = channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    0,
+                    channel.size());
+            if (file.remaining() < HEADER
+                    || file.getInt(0) != MAGIC
+                    || file.getLong(4) != file.remaining() - HEADER) {
+                throw new IOException("not a sidecar file: " + path);
+            }
+            var payload = file.position(HEADER).slice();
+            if (verify) {
+                var crc = new CRC32();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != file.getInt(12)) {
+                    throw new IOException("bad checksum: " + path);
+                }
+            }
+
+            return payload;
+        }
+    }
+}
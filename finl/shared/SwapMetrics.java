@@ -0,0 +1,198 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import java.util.stream.LongStream;
+
+/**
+ * Times the phases of a swap, both as JDK Flight Recorder events of
+ * type {@code selfmod.SwapPhase}, which line up with the safepoint and
+ * deoptimization events of the same recording, and as cumulative
+ * counters and latency histograms of the MXBean {@code
+ * selfmod:type=SwapMetrics}.
+ *
+ * <p>Typical usage:
+ *
+ * <pre>{@code
+ * var phase = SwapMetrics.begin("decode");
+ * var bytes = Codec.decode(payload);
+ * phase.end(bytes.length, 1);
+ * }</pre>
+ */
+final class SwapMetrics {
+    /**
+     * The upper bounds of the latency histogram buckets, in
+     * microseconds, doubling from 1us to about a second.  The last
+     * bucket counts everything slower.
+     */
+    static final long[] BOUNDS = LongStream.range(0, 21)
+            .map(i -> 1L << i)
+            .toArray();
+
+    private static final Map<String, Stats> PHASES =
+            new ConcurrentSkipListMap<>();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Bean(),
+                    new javax.management.ObjectName("selfmod:type=SwapMetrics"));
+        } catch (javax.management.InstanceAlreadyExistsException e) {
+            // another class loader got there first
+        } catch (javax.management.JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private SwapMetrics() {
+    }
+
+    /**
+     * Starts timing {@code phase}.
+     */
+    static Phase begin(String phase) {
+        return new Phase(phase);
+    }
+
+    /**
+     * A phase being timed.
+     */
+    static final class Phase {
+        private final String name;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long start;
+
+        private Phase(String name) {
+            this.name = name;
+            event.begin();
+            start = System.nanoTime();
+        }
+
+        /**
+         * Ends the phase, which handled {@code bytes} bytes of
+         * payload or class files and {@code classes} classes.
+         */
+        void end(long bytes, int classes) {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = name;
+                event.bytes = bytes;
+                event.classes = classes;
+                event.commit();
+            }
+
+            PHASES.computeIfAbsent(name, n -> new Stats()).add(nanos, bytes, classes);
+        }
+    }
+
+    @jdk.jfr.Name("selfmod.SwapPhase")
+    @jdk.jfr.Label("Swap Phase")
+    @jdk.jfr.Category("Self Modification")
+    @jdk.jfr.Description("A phase of swapping in a new version of a class")
+    static final class PhaseEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Phase")
+        String phase;
+
+        @jdk.jfr.Label("Bytes")
+        @jdk.jfr.DataAmount
+        long bytes;
+
+        @jdk.jfr.Label("Classes")
+        int classes;
+    }
+
+    private static final class Stats {
+        final LongAdder count =
+                new LongAdder();
+        final LongAdder nanos =
+                new LongAdder();
+        final LongAdder bytes =
+                new LongAdder();
+        final LongAdder classes =
+                new LongAdder();
+        final AtomicLongArray histogram =
+                new AtomicLongArray(BOUNDS.length + 1);
+
+        void add(long nanos, long bytes, int classes) {
+            count.increment();
+            this.nanos.add(nanos);
+            this.bytes.add(bytes);
+            this.classes.add(classes);
+
+            int bucket = Arrays.binarySearch(BOUNDS, (nanos + 999) / 1000);
+            histogram.incrementAndGet(bucket < 0 ? -bucket - 1 : bucket);
+        }
+    }
+
+    /**
+     * The view of the counters over JMX, each by phase.
+     */
+    public interface SwapMetricsMXBean {
+        Map<String, Long> getCounts();
+
+        Map<String, Long> getTotalNanos();
+
+        Map<String, Long> getBytes();
+
+        Map<String, Long> getClasses();
+
+        /**
+         * The upper bounds of the histogram buckets in microseconds.
+         */
+        long[] getHistogramBounds();
+
+        Map<String, long[]> getLatencyHistograms();
+    }
+
+    private static final class Bean implements SwapMetricsMXBean {
+        @Override
+        public Map<String, Long> getCounts() {
+            return sums(s -> s.count.sum());
+        }
+
+        @Override
+        public Map<String, Long> getTotalNanos() {
+            return sums(s -> s.nanos.sum());
+        }
+
+        @Override
+        public Map<String, Long> getBytes() {
+            return sums(s -> s.bytes.sum());
+        }
+
+        @Override
+        public Map<String, Long> getClasses() {
+            return sums(s -> s.classes.sum());
+        }
+
+        @Override
+        public long[] getHistogramBounds() {
+            return BOUNDS.clone();
+        }
+
+        @Override
+        public Map<String, long[]> getLatencyHistograms() {
+            var histograms = new TreeMap<String, long[]>();
+            PHASES.forEach((phase, stats) -> {
+                var counts = new long[stats.histogram.length()];
+                Arrays.setAll(counts, stats.histogram::get);
+                histograms.put(phase, counts);
+            });
+
+            return histograms;
+        }
+
+        private static Map<String, Long> sums(
+                ToLongFunction<Stats> sum) {
+            var sums = new TreeMap<String, Long>();
+            PHASES.forEach((phase, stats) -> sums.put(phase, sum.applyAsLong(stats)));
+
+            return sums;
+        }
+    }
+}
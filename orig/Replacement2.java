@@ -1,19 +1,4 @@
-import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.nio.file.Files.newOutputStream;
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.WRITE;
-import static java.util.stream.Collectors.joining;
-
-import java.io.ByteArrayInputStream;
-import java.lang.instrument.ClassDefinition;
-import java.lang.instrument.Instrumentation;
-import java.nio.file.Paths;
 import java.util.List;
-import java.util.jar.JarOutputStream;
-import java.util.jar.Manifest;
-import java.util.zip.ZipEntry;
-
-import com.sun.tools.attach.VirtualMachine;
 
 /*
  * <h3>Compile Instructions</h3>
@@ -41,7 +26,7 @@ public class Replacement2 {
         doTheDeed();
 
         final var run2 = r.dwim(i, s, l);
-        System.out.println(run2); // prints 2.71828[1, 8, 2, 8]
+        System.out.println(run2); // prints 2.718281828[4, 5]
     }
 
     private final <T> String dwim(
@@ -56,13 +41,7 @@ public class Replacement2 {
                 + List.of(Integer.parseInt(s1) - i0, "" + c2);
     }
 
-    private static Instrumentation ageinst;
-
-    public static void agentmain(
-            @SuppressWarnings("unused") String args,
-            Instrumentation inst) {
-        ageinst = inst;
-    }
-
     private static void doTheDeed() throws Exception {}
+
+    private static final byte[] replacement() { return null; }
 }
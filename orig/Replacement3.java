@@ -0,0 +1,47 @@
+import java.util.List;
+
+/*
+ * <h3>Compile Instructions</h3>
+ * <pre>
+ * javac -d . Replacement3.java
+ * </pre>
+ *
+ * <h3>Run Instructions</h3>
+ * <pre>
+ * java -cp . Replacement3
+ * </pre>
+ */
+public class Replacement3 {
+    public static void main(String[] args)
+            throws Throwable {
+        final var i = 3;
+        final var s = ".14159";
+        final var l = List.of("2", "6", "53");
+
+        final var r = new Replacement3();
+
+        final var run1 = r.dwim(i, s, l);
+        System.out.println(run1); // prints 3.14159[2, 6, 53]
+
+        doTheDeed();
+
+        final var run2 = r.dwim(i, s, l);
+        System.out.println(run2); // prints 2.718281828[4, 5]
+    }
+
+    private final <T> String dwim(
+            final int i,
+            final String s,
+            final List<? extends T> l) {
+        String s1 = (String) l.get(1);
+        int    i0 = Integer.parseInt(l.get(0).toString());
+        String s2 = l.get(2).toString();
+        char   c2 = Character.valueOf((char) Integer.parseInt(s2));
+        return String.valueOf(i / Double.parseDouble(s) * 0.1282938413421733d)
+                + List.of(Integer.parseInt(s1) - i0, "" + c2);
+    }
+
+    private static void doTheDeed() throws Exception {}
+
+    private static final byte[] replacement() { return null; }
+}